@@ -21,23 +21,23 @@
  */
 package uk.ac.diamond.cas.abfab.radius;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 // JRadius classes
-import net.jradius.client.RadiusClient;
+import net.jradius.client.auth.RadiusAuthenticator;
 import net.jradius.dictionary.Attr_UserName;
 import net.jradius.dictionary.Attr_UserPassword;
-import net.jradius.dictionary.Attr_GSSAcceptorHostName;
-import net.jradius.dictionary.Attr_GSSAcceptorRealmName;
-import net.jradius.dictionary.Attr_GSSAcceptorServiceName;
-import net.jradius.dictionary.Attr_GSSAcceptorServiceSpecifics;
 import net.jradius.exception.RadiusException;
+import net.jradius.exception.TimeoutException;
 import net.jradius.exception.UnknownAttributeException;
 import net.jradius.packet.AccessAccept;
 import net.jradius.packet.AccessRequest;
+import net.jradius.packet.RadiusFormat;
 import net.jradius.packet.RadiusPacket;
-import net.jradius.packet.attribute.AttributeFactory;
 import net.jradius.packet.attribute.AttributeList;
 
 // These are standard between CAS v3.5.2 and v4.0.0
@@ -54,6 +54,11 @@ import javax.validation.constraints.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.diamond.cas.abfab.radius.metrics.RadiusServerMetrics;
+import uk.ac.diamond.cas.adaptors.radius.RadiusChannelMultiplexer;
+import uk.ac.diamond.cas.adaptors.radius.RadiusClientPool;
+import uk.ac.diamond.cas.adaptors.radius.RetransmittingRadiusClient;
+
 /**
  * Implementation of a RadiusServer that utilizes the JRadius packages available
  * at <a href="http://jradius.sf.net">http://jradius.sf.net</a>.
@@ -68,6 +73,9 @@ public final class ABFABRadiusServerImpl implements RadiusServer {
     /** Default retry count, {@value}. */
     public static final int DEFAULT_RETRY_COUNT = 3;
 
+    /** Code of a Status-Server packet, {@value}. */
+    private static final int STATUS_SERVER = 12;
+
     /** Logger instance. */
     private static final Logger LOGGER = LoggerFactory.getLogger(ABFABRadiusServerImpl.class);
 
@@ -75,23 +83,120 @@ public final class ABFABRadiusServerImpl implements RadiusServer {
     @NotNull
     private final RadiusProtocol protocol;
 
-    /** Produces RADIUS client instances for authentication. */
+    /** Lends out pooled RADIUS client instances for authentication. */
     @NotNull
-    private final RadiusClientFactory radiusClientFactory;
+    private final RadiusClientPool radiusClientPool;
 
     /** Number of times to retry authentication when no response is received. */
     @Min(0)
     private int retries = DEFAULT_RETRY_COUNT;
 
+    /** Supplies the GSS acceptor attributes of each request. */
+    @NotNull
+    private AcceptorIdentityProvider acceptorIdentityProvider = AcceptorIdentityProvider.getDefault();
+
+    /** Runs asynchronous exchanges. */
+    @NotNull
+    private Executor executor = RadiusExecutors.getDefaultExecutor();
+
+    /** Time limit in milliseconds for asynchronous exchanges; 0 for none beyond the retries. */
+    @Min(0)
+    private long asyncTimeout;
+
+    /** Time limit in milliseconds for all transmissions of one login; 0 for none beyond the retries. */
+    @Min(0)
+    private long loginTimeout;
+
+    /** Outcomes and latencies of the exchanges with this server. */
+    private final RadiusServerMetrics metrics;
+
+    /** Creates the authenticator of each login. */
+    private final AuthenticatorFactory authenticatorFactory;
+
     /** Load the dictionary implementation. */
     static {
-        AttributeFactory
-        .loadAttributeDictionary("net.jradius.dictionary.AttributeDictionaryImpl");
+        RadiusDictionaryLoader.load();
     }
 
     public ABFABRadiusServerImpl(final RadiusProtocol protocol, final RadiusClientFactory clientFactory) {
+        this(protocol, new RadiusClientPool(clientFactory));
+    }
+
+    /**
+     * @param protocol The RADIUS protocol to authenticate with
+     * @param clientPool The client pool, which may be shared by several servers using the same factory
+     */
+    public ABFABRadiusServerImpl(final RadiusProtocol protocol, final RadiusClientPool clientPool) {
         this.protocol = protocol;
-        this.radiusClientFactory = clientFactory;
+        this.radiusClientPool = clientPool;
+        this.metrics = new RadiusServerMetrics(clientPool);
+        this.authenticatorFactory = new AuthenticatorFactory(protocol.getName());
+        RadiusDictionaryLoader.checkProtocol(protocol.getName());
+    }
+
+    /**
+     * Switches this server to the NIO transport: requests are sent over the multiplexer's shared
+     * channels rather than a socket per client. The setting applies to the server's client pool.
+     *
+     * @param multiplexer The shared multiplexer; null to return to a socket per client.
+     */
+    public void setMultiplexer(final RadiusChannelMultiplexer multiplexer) {
+        this.radiusClientPool.setMultiplexer(multiplexer);
+    }
+
+    /**
+     * Sets the provider of the GSS acceptor service, host, realm and service specifics attributes.
+     *
+     * @param acceptorIdentityProvider The provider; defaults to a shared one sending service "cas"
+     * and the local canonical host name.
+     */
+    public void setAcceptorIdentityProvider(final AcceptorIdentityProvider acceptorIdentityProvider) {
+        this.acceptorIdentityProvider = acceptorIdentityProvider;
+    }
+
+    /**
+     * Sets the executor that runs asynchronous exchanges.
+     *
+     * @param executor The executor; defaults to a shared pool of daemon threads.
+     */
+    public void setExecutor(final Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the time limit for asynchronous exchanges.
+     *
+     * @param asyncTimeout Time limit in milliseconds; 0 for none beyond the retries.
+     */
+    public void setAsyncTimeout(final long asyncTimeout) {
+        this.asyncTimeout = asyncTimeout;
+    }
+
+    /**
+     * Sets the time limit for one login, covering every transmission of every round of its
+     * exchange. No request is retransmitted once it has passed.
+     *
+     * @param loginTimeout Time limit in milliseconds; 0 for none beyond the retries.
+     */
+    public void setLoginTimeout(final long loginTimeout) {
+        this.loginTimeout = loginTimeout;
+    }
+
+    /**
+     * Publishes this server's metrics as JMX MBeans, under the domain uk.ac.diamond.cas.abfab with
+     * type RadiusServer and the given name.
+     *
+     * @param metricsName The name of the MBeans; metrics are kept but not published without one.
+     */
+    public void setMetricsName(final String metricsName) {
+        this.metrics.register(metricsName);
+    }
+
+    /**
+     * @return the outcomes and latencies of the exchanges with this server
+     */
+    public RadiusServerMetrics getMetrics() {
+        return this.metrics;
     }
 
     @Override
@@ -100,6 +205,32 @@ public final class ABFABRadiusServerImpl implements RadiusServer {
         return (this.authenticateEx(usernamePasswordCredentials) instanceof AccessAccept);
     }
 
+    /**
+     * Asynchronous counterpart of {@link #authenticateEx(UsernamePasswordCredentials)}, limited by the
+     * configured asyncTimeout.
+     *
+     * @param credentials The username and password used to authenticate against the server
+     * @return A stage completed with the RADIUS packet, or exceptionally with an IllegalStateException,
+     * IllegalArgumentException or TimeoutException
+     */
+    public CompletionStage<RadiusPacket> authenticateAsync(final UsernamePasswordCredentials credentials) {
+        return authenticateAsync(credentials, this.asyncTimeout);
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #authenticateEx(UsernamePasswordCredentials)}. The exchange runs
+     * on the configured executor; cancelling the returned stage, or letting it time out, interrupts it.
+     *
+     * @param credentials The username and password used to authenticate against the server
+     * @param timeout Time limit in milliseconds; 0 for none beyond the retries
+     * @return A stage completed with the RADIUS packet, or exceptionally with an IllegalStateException,
+     * IllegalArgumentException or TimeoutException
+     */
+    public CompletionStage<RadiusPacket> authenticateAsync(final UsernamePasswordCredentials credentials,
+            final long timeout) {
+        return RadiusExecutors.submit(this.executor, () -> authenticateEx(credentials), timeout);
+    }
+
     /**
      *  
      * @param credentials The username and password used to authenticate against the server
@@ -110,43 +241,116 @@ public final class ABFABRadiusServerImpl implements RadiusServer {
     public RadiusPacket authenticateEx(final UsernamePasswordCredentials credentials) 
             throws IllegalArgumentException, IllegalStateException {
 
-        final AttributeList attributeList = new AttributeList();
+        // the attributes go straight into the request, rather than into a list the request copies
+        final AccessRequest request = new AccessRequest();
+        final AttributeList attributeList = request.getAttributes();
         attributeList.add(new Attr_UserName(credentials
             .getUsername()));
         attributeList.add(new Attr_UserPassword(credentials
             .getPassword()));
 
-        // give it the GSS Service Name and Host Name attributes
-        attributeList.add(new Attr_GSSAcceptorServiceName("cas"));
-        try {
-            attributeList.add(new Attr_GSSAcceptorHostName(InetAddress.getLocalHost().getCanonicalHostName()));
-        } catch (final UnknownHostException e) {
-            attributeList.add(new Attr_GSSAcceptorHostName("localhost"));
-        }
+        // give it the GSS acceptor attributes
+        this.acceptorIdentityProvider.addAttributes(attributeList);
 
-        final RadiusClient client = this.radiusClientFactory.newInstance();
+        RetransmittingRadiusClient client = null;
+        boolean reusable = false;
         try {
-            final AccessRequest request = new AccessRequest(client, attributeList);
-            final RadiusPacket response = client.authenticate(
-                    request,
-                    RadiusClient.getAuthProtocol(this.protocol.getName()),
-                    this.retries);
+            final long borrowed = System.nanoTime();
+            client = this.radiusClientPool.borrowClient();
+            this.metrics.getClientWait().recordSince(borrowed);
+            client.setDeadline(this.loginTimeout > 0L
+                    ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.loginTimeout) : 0L);
+            request.setRadiusClient(client);
+            final RadiusAuthenticator authenticator = this.authenticatorFactory.newAuthenticator();
+            final long start = System.nanoTime();
+            final RadiusPacket response = client.authenticate(request, authenticator, this.retries);
+            this.metrics.getExchange().recordSince(start);
+            if (response instanceof AccessAccept) {
+                this.metrics.recordAccept();
+            } else {
+                this.metrics.recordReject();
+            }
 
             LOGGER.debug("RADIUS response from {}: {}",
                     client.getRemoteInetAddress().getCanonicalHostName(),
                     response.getClass().getName());
 
+            reusable = true;
             return response; 
         } catch (final UnknownAttributeException e) {
+            this.metrics.recordError();
             throw new IllegalArgumentException(
                     "Passed an unknown attribute to RADIUS client: "
                         + e.getMessage());
         } catch (final RadiusException e) {
+            if (e instanceof TimeoutException) {
+                this.metrics.recordTimeout();
+            } else {
+                this.metrics.recordError();
+            }
             throw new IllegalStateException(
                     "Received response that puts RadiusClient into illegal state: "
                         + e.getMessage());
         } finally {
-            client.close();
+            if (client != null) {
+                this.radiusClientPool.returnClient(client, reusable);
+            }
+        }
+    }
+
+    /**
+     * Runs the work of a first login ahead of time: loads the dictionary, resolves the acceptor
+     * host name, creates a pooled client and an authenticator, and encodes a synthetic request.
+     * Optionally, it also sends the server a Status-Server probe (RFC 5997), without retries.
+     * Neither the metrics nor the retransmission timer are touched.
+     *
+     * @param probe Whether to send a Status-Server probe
+     * @return false if the probe went unanswered or the warm-up failed, true otherwise
+     */
+    public boolean warmUp(final boolean probe) {
+        RadiusDictionaryLoader.load();
+
+        final AccessRequest request = new AccessRequest();
+        final AttributeList attributeList = request.getAttributes();
+        attributeList.add(new Attr_UserName("warm-up"));
+        attributeList.add(new Attr_UserPassword("warm-up"));
+        this.acceptorIdentityProvider.addAttributes(attributeList);
+
+        RetransmittingRadiusClient client = null;
+        boolean reusable = false;
+        try {
+            client = this.radiusClientPool.borrowClient();
+            this.authenticatorFactory.newAuthenticator();
+            RadiusFormat.getInstance().packPacket(request, client.getSharedSecret(),
+                    ByteBuffer.allocate(RadiusPacket.MAX_PACKET_LENGTH), true);
+            reusable = true;
+            if (!probe) {
+                return true;
+            }
+
+            // JRadius has no Status-Server packet; an Access-Request carries the Message-Authenticator it needs
+            final AccessRequest status = new AccessRequest(client);
+            status.setCode(STATUS_SERVER);
+            client.setDeadline(this.loginTimeout > 0L
+                    ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.loginTimeout) : 0L);
+            client.setMeasured(false);
+            final long start = System.nanoTime();
+            // a single transmission, so a server that ignores Status-Server does not hold up startup
+            final RadiusPacket response = client.sendReceive(status, 0);
+            LOGGER.info("RADIUS server {} answered Status-Server in {} ms",
+                    client.getRemoteInetAddress().getHostAddress(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return response != null;
+        } catch (final RadiusException | IOException e) {
+            reusable = false;
+            LOGGER.warn("RADIUS warm-up{} failed: {}", client != null
+                    ? " of " + client.getRemoteInetAddress().getHostAddress() : "", e.getMessage());
+            return false;
+        } finally {
+            if (client != null) {
+                client.setMeasured(true);
+                this.radiusClientPool.returnClient(client, reusable);
+            }
         }
     }
 }
@@ -0,0 +1,229 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import net.jradius.dictionary.Attr_GSSAcceptorHostName;
+import net.jradius.dictionary.Attr_GSSAcceptorRealmName;
+import net.jradius.dictionary.Attr_GSSAcceptorServiceName;
+import net.jradius.dictionary.Attr_GSSAcceptorServiceSpecifics;
+import net.jradius.packet.attribute.AttributeList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Supplies the GSS acceptor identity (service, host, realm and service specifics) sent in every
+ * ABFAB Access-Request.
+ *
+ * Unless a host name is configured, the local canonical host name is resolved once when the
+ * provider starts and then refreshed in the background, so that no login waits on a reverse DNS
+ * lookup. If a refresh fails, the previous name is kept.
+ *
+ * Declare the provider with init-method="init" and destroy-method="close".
+ *
+ * @author Stefan Paetow
+ */
+public class AcceptorIdentityProvider {
+
+    /** Default GSS acceptor service name, {@value}. */
+    public static final String DEFAULT_SERVICE_NAME = "cas";
+
+    /** Default time in milliseconds between host name lookups, {@value}. */
+    public static final long DEFAULT_REFRESH_INTERVAL = 3600000L;
+
+    /** Host name sent if the local host name cannot be resolved, {@value}. */
+    private static final String FALLBACK_HOST_NAME = "localhost";
+
+    /** Logger instance. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AcceptorIdentityProvider.class);
+
+    /** GSS acceptor service name. */
+    @NotNull
+    private String serviceName = DEFAULT_SERVICE_NAME;
+
+    /** Configured GSS acceptor host name; null to use the resolved local host name. */
+    private String hostName;
+
+    /** GSS acceptor realm name; null to leave it out. */
+    private String realmName;
+
+    /** GSS acceptor service specifics; null to leave them out. */
+    private String serviceSpecifics;
+
+    /** Time in milliseconds between host name lookups; 0 to resolve only once. */
+    @Min(0)
+    private long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+    /** Most recently resolved local host name. */
+    private volatile String resolvedHostName;
+
+    /** The scheduled background lookup, if any. */
+    private ScheduledFuture<?> refreshTask;
+
+    /**
+     * @return the shared, started provider with default settings, used by servers that have none configured
+     */
+    public static AcceptorIdentityProvider getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * Resolves the local host name, unless one is configured, and schedules its refresh.
+     * Called automatically before the first login if the provider was not started explicitly.
+     */
+    public synchronized void init() {
+        if (this.hostName != null || this.resolvedHostName != null) {
+            return;
+        }
+
+        refresh();
+        if (this.refreshInterval > 0L) {
+            // resolve on the worker pool, so a slow resolver never holds up the shared timer thread
+            this.refreshTask = RadiusExecutors.getScheduler().scheduleWithFixedDelay(
+                    () -> RadiusExecutors.getDefaultExecutor().execute(this::refresh),
+                    this.refreshInterval, this.refreshInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the background lookups.
+     */
+    public synchronized void close() {
+        if (this.refreshTask != null) {
+            this.refreshTask.cancel(false);
+            this.refreshTask = null;
+        }
+    }
+
+    /**
+     * Adds the acceptor identity attributes to an Access-Request.
+     *
+     * @param attributeList The attributes of the request
+     */
+    public void addAttributes(final AttributeList attributeList) {
+        attributeList.add(new Attr_GSSAcceptorServiceName(this.serviceName));
+        attributeList.add(new Attr_GSSAcceptorHostName(getHostName()));
+        if (this.realmName != null) {
+            attributeList.add(new Attr_GSSAcceptorRealmName(this.realmName));
+        }
+        if (this.serviceSpecifics != null) {
+            attributeList.add(new Attr_GSSAcceptorServiceSpecifics(this.serviceSpecifics));
+        }
+    }
+
+    /**
+     * @return the configured host name, or else the most recently resolved local host name
+     */
+    public String getHostName() {
+        if (this.hostName != null) {
+            return this.hostName;
+        }
+
+        final String resolved = this.resolvedHostName;
+        if (resolved != null) {
+            return resolved;
+        }
+        init();
+        return this.resolvedHostName;
+    }
+
+    /**
+     * Sets the GSS acceptor service name.
+     *
+     * @param serviceName The service name; defaults to "cas".
+     */
+    public void setServiceName(final String serviceName) {
+        this.serviceName = serviceName;
+    }
+
+    /**
+     * Sets the GSS acceptor host name, in which case the local host name is never looked up.
+     *
+     * @param hostName The host name; null to use the local canonical host name.
+     */
+    public void setHostName(final String hostName) {
+        this.hostName = hostName;
+    }
+
+    /**
+     * Sets the GSS acceptor realm name.
+     *
+     * @param realmName The realm name; null to leave it out of requests.
+     */
+    public void setRealmName(final String realmName) {
+        this.realmName = realmName;
+    }
+
+    /**
+     * Sets the GSS acceptor service specifics.
+     *
+     * @param serviceSpecifics The service specifics; null to leave them out of requests.
+     */
+    public void setServiceSpecifics(final String serviceSpecifics) {
+        this.serviceSpecifics = serviceSpecifics;
+    }
+
+    /**
+     * Sets the time between lookups of the local host name.
+     *
+     * @param refreshInterval Interval in milliseconds; 0 to resolve only once.
+     */
+    public void setRefreshInterval(final long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Looks up the local canonical host name, keeping the previous one if the lookup fails.
+     */
+    private void refresh() {
+        try {
+            final String resolved = InetAddress.getLocalHost().getCanonicalHostName();
+            if (!resolved.equals(this.resolvedHostName)) {
+                LOGGER.debug("GSS acceptor host name is {}", resolved);
+            }
+            this.resolvedHostName = resolved;
+        } catch (final UnknownHostException e) {
+            if (this.resolvedHostName == null) {
+                LOGGER.warn("Unable to resolve the local host name, using {}: {}", FALLBACK_HOST_NAME, e.getMessage());
+                this.resolvedHostName = FALLBACK_HOST_NAME;
+            } else {
+                LOGGER.warn("Unable to resolve the local host name, keeping {}: {}", this.resolvedHostName,
+                        e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Holds the default provider, started the first time a server asks for it.
+     */
+    private static final class DefaultHolder {
+
+        private static final AcceptorIdentityProvider INSTANCE = new AcceptorIdentityProvider();
+
+        static {
+            INSTANCE.init();
+        }
+    }
+}
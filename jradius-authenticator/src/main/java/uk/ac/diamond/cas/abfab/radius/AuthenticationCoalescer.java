@@ -0,0 +1,144 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Lets concurrent logins with identical credentials (after a double submit, say) share a single
+ * RADIUS exchange. The first login leads the exchange; the others attach to it while it is in
+ * flight and are given its outcome. Once the exchange completes, the next login starts afresh.
+ *
+ * Logins in flight are keyed on an HMAC-SHA256 of the username and password under a key drawn
+ * afresh for every coalescer, so passwords are never held. The bookkeeping is a concurrent map,
+ * so logins with different credentials do not contend.
+ *
+ * @param <T> The outcome shared by the logins
+ *
+ * @author Stefan Paetow
+ */
+public class AuthenticationCoalescer<T> {
+
+    /** Message authentication code function. */
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /** Length of the secret in bytes. */
+    private static final int SECRET_LENGTH = 32;
+
+    /** Key of every HMAC, unique to this coalescer. */
+    private final SecretKeySpec secret;
+
+    /** The outcome of each login in flight, by key. */
+    private final ConcurrentMap<Key, CompletableFuture<T>> inFlight = new ConcurrentHashMap<Key, CompletableFuture<T>>();
+
+    public AuthenticationCoalescer() {
+        final byte[] bytes = new byte[SECRET_LENGTH];
+        new SecureRandom().nextBytes(bytes);
+        this.secret = new SecretKeySpec(bytes, ALGORITHM);
+    }
+
+    /**
+     * @param username The username
+     * @param password The password
+     * @return the key under which identical logins are coalesced
+     * @throws IllegalStateException if the HMAC function is unavailable
+     */
+    public Key getKey(final String username, final String password) {
+        // the length prefix keeps the pair unambiguous
+        final byte[] secret = new StringBuilder(username.length() + password.length() + 12)
+                .append(username.length()).append(':').append(username).append(password).toString()
+                .getBytes(StandardCharsets.UTF_8);
+        try {
+            final Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(this.secret);
+            return new Key(mac.doFinal(secret));
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to derive a login coalescing key", e);
+        } finally {
+            Arrays.fill(secret, (byte) 0);
+        }
+    }
+
+    /**
+     * Attaches to the login in flight under the key or, if there is none, registers the caller's
+     * login to lead. A leading caller runs its exchange and must complete the given future with the
+     * outcome, normally or exceptionally; it is then no longer in flight.
+     *
+     * @param key The key of the login
+     * @param outcome A new future for the outcome of the caller's own login
+     * @return a future following the outcome of the login already in flight, which may be cancelled
+     * without affecting that login; or null if the caller leads
+     */
+    public CompletableFuture<T> join(final Key key, final CompletableFuture<T> outcome) {
+        final CompletableFuture<T> leader = this.inFlight.putIfAbsent(key, outcome);
+        if (leader == null) {
+            outcome.whenComplete((value, error) -> this.inFlight.remove(key, outcome));
+            return null;
+        }
+
+        final CompletableFuture<T> follower = new CompletableFuture<T>();
+        leader.whenComplete((value, error) -> {
+            if (error != null) {
+                follower.completeExceptionally(error);
+            } else {
+                follower.complete(value);
+            }
+        });
+        return follower;
+    }
+
+    /**
+     * @return the number of logins currently leading an exchange
+     */
+    public int getInFlightCount() {
+        return this.inFlight.size();
+    }
+
+    /**
+     * The key of a login: an HMAC of its username and password.
+     */
+    public static final class Key {
+
+        private final byte[] hash;
+
+        private final int hashCode;
+
+        private Key(final byte[] hash) {
+            this.hash = hash;
+            this.hashCode = Arrays.hashCode(hash);
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof Key && Arrays.equals(this.hash, ((Key) other).hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
+}
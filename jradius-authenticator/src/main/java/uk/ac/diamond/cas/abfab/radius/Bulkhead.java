@@ -0,0 +1,307 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of exchanges in flight to one RADIUS server, so that a slow server cannot tie
+ * up every request thread. Beyond the limit, a bounded number of logins wait briefly for an
+ * exchange to finish; the rest are shed at once.
+ *
+ * The limit may adapt to the server. With AIMD it drops by a tenth on every timeout or error and
+ * grows by one per limit's worth of answered exchanges. With Vegas it follows the queueing the
+ * server's latency reveals: the limit grows while exchanges answer close to the fastest
+ * round-trip seen and shrinks as they slow down. Either way it stays between 1 and the
+ * configured limit.
+ *
+ * @author Stefan Paetow
+ */
+public class Bulkhead {
+
+    /** Default maximum number of logins waiting for an exchange to finish, {@value}. */
+    public static final int DEFAULT_MAX_QUEUE_LENGTH = 16;
+
+    /** Default time in milliseconds a login waits for an exchange to finish, {@value}. */
+    public static final long DEFAULT_MAX_QUEUE_WAIT = 1000L;
+
+    /** How the limit adapts to the server. */
+    public enum Adaptation {
+        /** The limit is fixed. */
+        NONE,
+        /** Additive increase, multiplicative decrease on timeouts and errors. */
+        AIMD,
+        /** Follows the queueing estimated from round-trip times. */
+        VEGAS
+    }
+
+    /** Factor applied to the limit on a timeout or error under AIMD. */
+    private static final double AIMD_BACKOFF = 0.9;
+
+    /** Number of round-trips after which Vegas forgets the fastest one, in case the route changed. */
+    private static final int VEGAS_PROBE_INTERVAL = 1000;
+
+    /** Permit handed out when there is no limit. */
+    private static final Permit UNLIMITED = new Permit(null);
+
+    /** Upper bound of the limit; 0 for no limit. */
+    private final int maxLimit;
+
+    /** Maximum number of logins waiting for an exchange to finish. */
+    private final int maxQueueLength;
+
+    /** Time in nanoseconds a login waits for an exchange to finish. */
+    private final long maxQueueWait;
+
+    private final Adaptation adaptation;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled whenever an exchange finishes. */
+    private final Condition finished = this.lock.newCondition();
+
+    /** Current limit; guarded by the lock. */
+    private double limit;
+
+    /** Number of exchanges in flight; guarded by the lock. */
+    private int inFlight;
+
+    /** Number of logins waiting; guarded by the lock. */
+    private int queued;
+
+    /** Fastest round-trip in nanoseconds since the last probe; guarded by the lock. */
+    private long minRoundTrip = Long.MAX_VALUE;
+
+    /** Round-trips timed since the last probe; guarded by the lock. */
+    private int roundTrips;
+
+    /**
+     * @param maxLimit The maximum number of exchanges in flight; 0 for no limit
+     * @param maxQueueLength The maximum number of logins waiting for an exchange to finish
+     * @param maxQueueWait The time in milliseconds a login waits for an exchange to finish
+     * @param adaptation How the limit adapts to the server
+     */
+    public Bulkhead(final int maxLimit, final int maxQueueLength, final long maxQueueWait, final Adaptation adaptation) {
+        this.maxLimit = Math.max(maxLimit, 0);
+        this.maxQueueLength = maxQueueLength;
+        this.maxQueueWait = TimeUnit.MILLISECONDS.toNanos(maxQueueWait);
+        this.adaptation = adaptation;
+        this.limit = this.maxLimit;
+    }
+
+    /**
+     * Asks to start an exchange without waiting.
+     *
+     * @return a permit that must be ended with one of its record or release methods, or null if
+     * the limit is reached
+     */
+    public Permit tryAcquire() {
+        if (this.maxLimit == 0) {
+            return UNLIMITED;
+        }
+        this.lock.lock();
+        try {
+            return admit();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Asks to start an exchange, waiting in the queue for one to finish if the limit is reached.
+     *
+     * @return a permit that must be ended with one of its record or release methods, or null if
+     * the queue is full or the wait ran out
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public Permit acquire() throws InterruptedException {
+        if (this.maxLimit == 0) {
+            return UNLIMITED;
+        }
+        this.lock.lock();
+        try {
+            Permit permit = admit();
+            if (permit != null || this.queued >= this.maxQueueLength) {
+                return permit;
+            }
+
+            this.queued++;
+            try {
+                long remaining = this.maxQueueWait;
+                while (permit == null && remaining > 0L) {
+                    remaining = this.finished.awaitNanos(remaining);
+                    permit = admit();
+                }
+                return permit;
+            } finally {
+                this.queued--;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current limit, or 0 if there is none
+     */
+    public int getLimit() {
+        this.lock.lock();
+        try {
+            return (int) this.limit;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of exchanges in flight
+     */
+    public int getInFlight() {
+        this.lock.lock();
+        try {
+            return this.inFlight;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of logins waiting for an exchange to finish
+     */
+    public int getQueued() {
+        this.lock.lock();
+        try {
+            return this.queued;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return a new permit if the limit allows another exchange; called with the lock held
+     */
+    private Permit admit() {
+        if (this.inFlight >= (int) this.limit) {
+            return null;
+        }
+        this.inFlight++;
+        return new Permit(this);
+    }
+
+    /**
+     * Ends an exchange and adapts the limit to its outcome.
+     *
+     * @param roundTrip Round-trip time in nanoseconds; negative if the exchange was abandoned
+     * @param failed Whether the exchange timed out or failed
+     */
+    private void finish(final long roundTrip, final boolean failed) {
+        this.lock.lock();
+        try {
+            final int active = this.inFlight--;
+            if (roundTrip >= 0L) {
+                adapt(roundTrip, failed, active);
+            }
+            this.finished.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @param active The number of exchanges that were in flight, this one included
+     */
+    private void adapt(final long roundTrip, final boolean failed, final int active) {
+        switch (this.adaptation) {
+            case AIMD:
+                if (failed) {
+                    this.limit = this.limit * AIMD_BACKOFF;
+                } else if (active * 2 >= this.limit) {
+                    // only grow while the limit is actually being used
+                    this.limit += 1.0 / this.limit;
+                }
+                break;
+            case VEGAS:
+                if (++this.roundTrips >= VEGAS_PROBE_INTERVAL) {
+                    this.roundTrips = 0;
+                    this.minRoundTrip = roundTrip;
+                }
+                this.minRoundTrip = Math.min(this.minRoundTrip, Math.max(roundTrip, 1L));
+                final double step = Math.max(1.0, Math.log10(this.limit));
+                if (failed) {
+                    this.limit -= step;
+                } else if (active * 2 >= this.limit) {
+                    // exchanges in excess of what the server handles without queueing
+                    final double queue = this.limit * (1.0 - (double) this.minRoundTrip / Math.max(roundTrip, 1L));
+                    if (queue < 3.0 * step) {
+                        this.limit += step;
+                    } else if (queue > 6.0 * step) {
+                        this.limit -= step;
+                    }
+                }
+                break;
+            default:
+                return;
+        }
+        this.limit = Math.min(Math.max(this.limit, 1.0), this.maxLimit);
+    }
+
+    /**
+     * Leave to run one exchange. Only the first of its record or release methods counts.
+     */
+    public static final class Permit {
+
+        private final Bulkhead bulkhead;
+
+        private final long start = System.nanoTime();
+
+        private final AtomicBoolean ended = new AtomicBoolean();
+
+        private Permit(final Bulkhead bulkhead) {
+            this.bulkhead = bulkhead;
+        }
+
+        /**
+         * Records that the server answered.
+         */
+        public void recordSuccess() {
+            end(false, true);
+        }
+
+        /**
+         * Records that the server timed out or the exchange failed.
+         */
+        public void recordFailure() {
+            end(true, true);
+        }
+
+        /**
+         * Records that the exchange was abandoned without an outcome, for instance because it was cancelled.
+         */
+        public void release() {
+            end(false, false);
+        }
+
+        private void end(final boolean failed, final boolean timed) {
+            if (this.bulkhead != null && this.ended.compareAndSet(false, true)) {
+                this.bulkhead.finish(timed ? System.nanoTime() - this.start : -1L, failed);
+            }
+        }
+    }
+}
@@ -22,11 +22,28 @@
 
 package uk.ac.diamond.cas.abfab.radius.authentication.handler;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.management.AttributeNotFoundException;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
+import javax.xml.stream.XMLStreamException;
 
 import net.jradius.exception.UnknownAttributeException;
 import net.jradius.packet.AccessAccept;
@@ -43,6 +60,16 @@ import org.opensaml.xml.io.UnmarshallingException;
 import org.opensaml.xml.parse.XMLParserException;
 
 import uk.ac.diamond.cas.abfab.radius.ABFABRadiusServerImpl;
+import uk.ac.diamond.cas.abfab.radius.AuthenticationCoalescer;
+import uk.ac.diamond.cas.abfab.radius.AuthenticationResultCache;
+import uk.ac.diamond.cas.abfab.radius.Bulkhead;
+import uk.ac.diamond.cas.abfab.radius.CircuitBreaker;
+import uk.ac.diamond.cas.abfab.radius.LatencyTracker;
+import uk.ac.diamond.cas.abfab.radius.RadiusAccountant;
+import uk.ac.diamond.cas.abfab.radius.RadiusDictionaryLoader;
+import uk.ac.diamond.cas.abfab.radius.RadiusExecutors;
+import uk.ac.diamond.cas.abfab.radius.metrics.AuthenticationMetrics;
+import uk.ac.diamond.cas.abfab.radius.metrics.AuthenticationMetrics.SamlFailure;
 
 /**
  * ABFAB Authentication Handler to authenticate a user against a Moonshot (ABFAB) RADIUS server.
@@ -56,6 +83,15 @@ import uk.ac.diamond.cas.abfab.radius.ABFABRadiusServerImpl;
 public class ABFABRadiusAuthenticationHandler extends
     AbstractUsernamePasswordAuthenticationHandler {
 
+    /** Default percentile of recent latencies after which a hedged request is sent, {@value}. */
+    public static final double DEFAULT_HEDGE_PERCENTILE = 95.0;
+
+    /** Default hedge delay in milliseconds until enough latencies are known, {@value}. */
+    public static final long DEFAULT_HEDGE_DELAY = 1000L;
+
+    /** Default number of times the warm-up runs the SAML extraction, {@value}. */
+    public static final int DEFAULT_WARM_UP_ITERATIONS = 500;
+
     /** Array of RADIUS servers to authenticate against. */
     @NotNull
     @Size(min=1)
@@ -79,6 +115,89 @@ public class ABFABRadiusAuthenticationHandler extends
      */
     private String principalIdentifierURN;
 
+    /** Runs exchanges with servers that only offer blocking authentication, in asynchronous mode. */
+    @NotNull
+    private Executor executor = RadiusExecutors.getDefaultExecutor();
+
+    /** Parses SAML assertions; null to use the shared default context. */
+    private SAMLProcessingContext samlProcessingContext;
+
+    /** Whether to read the principal identifier in a single StAX pass rather than through OpenSAML. */
+    private boolean streamingExtraction = true;
+
+    /** Whether to send the request to the next server when the outstanding ones are slow to answer. */
+    private boolean hedging;
+
+    /** Percentile of recent exchange latencies after which a hedged request is sent. */
+    @DecimalMin("0")
+    @DecimalMax("100")
+    private double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+
+    /** Hedge delay in milliseconds while too few latencies are known to take a percentile. */
+    @Min(0)
+    private long hedgeDelay = DEFAULT_HEDGE_DELAY;
+
+    /** Recent exchange latencies, across all servers. */
+    private final LatencyTracker latencyTracker = new LatencyTracker();
+
+    /** Number of recent exchanges each server's circuit breaker considers. */
+    @Min(1)
+    private int circuitBreakerWindow = CircuitBreaker.DEFAULT_WINDOW;
+
+    /** Failure percentage at which a server's circuit breaker opens. */
+    @Min(1)
+    @Max(100)
+    private int circuitBreakerFailureThreshold = CircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+
+    /** Time in milliseconds a server is skipped once its circuit breaker opens; 0 to never skip. */
+    @Min(0)
+    private long circuitBreakerOpenTime = CircuitBreaker.DEFAULT_OPEN_TIME;
+
+    /** The health of each server, created on first use. */
+    private final ConcurrentMap<RadiusServer, CircuitBreaker> circuitBreakers =
+            new ConcurrentHashMap<RadiusServer, CircuitBreaker>();
+
+    /** Maximum number of exchanges in flight to each server; 0 for no limit. */
+    @Min(0)
+    private int bulkheadLimit;
+
+    /** Maximum number of logins waiting for an exchange with a server at its limit to finish. */
+    @Min(0)
+    private int bulkheadQueueLength = Bulkhead.DEFAULT_MAX_QUEUE_LENGTH;
+
+    /** Time in milliseconds a login waits for an exchange with a server at its limit to finish. */
+    @Min(0)
+    private long bulkheadQueueWait = Bulkhead.DEFAULT_MAX_QUEUE_WAIT;
+
+    /** How each server's limit adapts to the server. */
+    @NotNull
+    private Bulkhead.Adaptation bulkheadAdaptation = Bulkhead.Adaptation.NONE;
+
+    /** The exchanges in flight to each server, created on first use. */
+    private final ConcurrentMap<RadiusServer, Bulkhead> bulkheads = new ConcurrentHashMap<RadiusServer, Bulkhead>();
+
+    /** Remembers the outcome of recent logins; null to always ask the servers. */
+    private AuthenticationResultCache<String> authenticationResultCache;
+
+    /** Shares exchanges between identical logins in flight; null to give every login its own. */
+    private AuthenticationCoalescer<String> authenticationCoalescer;
+
+    /** Outcomes and latencies of the logins through this handler. */
+    private final AuthenticationMetrics metrics = new AuthenticationMetrics();
+
+    /** Sends Accounting-Requests for accepted logins; null to send none. */
+    private RadiusAccountant radiusAccountant;
+
+    /** Whether init() warms the handler and its servers up. */
+    private boolean warmUp;
+
+    /** Whether the warm-up sends each server a Status-Server probe. */
+    private boolean warmUpProbes;
+
+    /** Number of times the warm-up runs the SAML extraction. */
+    @Min(0)
+    private int warmUpIterations = DEFAULT_WARM_UP_ITERATIONS;
+
     /**
      * Authenticates the given credentials against the list of RADIUS servers,
      * and extends the service to retrieve the ultimate principal as returned in
@@ -89,103 +208,662 @@ public class ABFABRadiusAuthenticationHandler extends
      */
     protected final boolean authenticateUsernamePasswordInternal(final UsernamePasswordCredentials credentials) throws AuthenticationException {
 
+        final long start = System.nanoTime();
+        try {
+            final boolean accepted = authenticateWithCache(credentials);
+            if (accepted) {
+                this.metrics.recordAccept();
+            } else {
+                this.metrics.recordReject();
+            }
+            return accepted;
+        } catch (final RuntimeException e) {
+            this.metrics.recordError();
+            throw e;
+        } finally {
+            this.metrics.getLogin().recordSince(start);
+        }
+    }
+
+    /**
+     * Answers the login from the authentication result cache if possible, and otherwise authenticates
+     * the user at the configured servers.
+     */
+    private boolean authenticateWithCache(final UsernamePasswordCredentials credentials) {
+
+        final AuthenticationResultCache<String> cache = this.authenticationResultCache;
+        if (cache == null) {
+            return authenticateCoalesced(credentials);
+        }
+
+        final AuthenticationResultCache.Key key = cache.getKey(credentials.getUsername(), credentials.getPassword());
+        final AuthenticationResultCache.Result<String> cached = cache.get(key);
+        if (cached != null) {
+            return applyCachedResult(credentials, cached);
+        }
+
+        final boolean accepted = authenticateCoalesced(credentials);
+        cacheResult(cache, key, credentials, accepted);
+        return accepted;
+    }
+
+    /**
+     * Authenticates the user at the configured servers, sharing the exchange of an identical login
+     * already in flight if coalescing is enabled.
+     */
+    private boolean authenticateCoalesced(final UsernamePasswordCredentials credentials) {
+
+        final AuthenticationCoalescer<String> coalescer = this.authenticationCoalescer;
+        if (coalescer == null) {
+            return authenticateAtServers(credentials);
+        }
+
+        final CompletableFuture<String> outcome = new CompletableFuture<String>();
+        final CompletableFuture<String> shared = coalescer.join(
+                coalescer.getKey(credentials.getUsername(), credentials.getPassword()), outcome);
+        if (shared != null) {
+            log.debug("Attaching {} to an identical login in flight", credentials.getUsername());
+            this.metrics.recordCoalesced();
+            try {
+                return applySharedResult(credentials, shared.get());
+            } catch (final ExecutionException e) {
+                log.warn("Authentication failed with an error: " + e.getCause());
+                return false;
+            } catch (final InterruptedException e) {
+                shared.cancel(true);
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        try {
+            final boolean accepted = authenticateAtServers(credentials);
+            outcome.complete(accepted ? credentials.getUsername() : null);
+            return accepted;
+        } catch (final Throwable e) {
+            outcome.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Authenticates the user against the configured servers in turn, or with hedged requests.
+     */
+    private boolean authenticateAtServers(final UsernamePasswordCredentials credentials) {
+
+        if (this.hedging) {
+            // exchanges overlap, so let the asynchronous pipeline run them
+            final CompletableFuture<Boolean> result = authenticateAtServersAsync(credentials);
+            try {
+                return result.get().booleanValue();
+            } catch (final ExecutionException e) {
+                log.warn("Authentication failed with an error: " + e.getCause());
+                return false;
+            } catch (final InterruptedException e) {
+                result.cancel(true);
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        // the credentials may be renamed to the principal named in the assertion
+        final String username = credentials.getUsername();
         for (final RadiusServer radiusServer : this.servers) {
+            final CircuitBreaker circuitBreaker = getCircuitBreaker(radiusServer);
+            if (!circuitBreaker.tryAcquire()) {
+                log.debug("Skipping {}.  Its circuit breaker is open.", radiusServer);
+                continue;
+            }
+            final Bulkhead.Permit permit;
+            try {
+                permit = getBulkhead(radiusServer).acquire();
+            } catch (final InterruptedException e) {
+                circuitBreaker.release();
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (permit == null) {
+                circuitBreaker.release();
+                this.metrics.recordShed();
+                log.debug("Skipping {}.  Too many requests in flight.", radiusServer);
+                continue;
+            }
+
             try {
                 // let's initialise the variable to make Java happy
                 boolean response;
                 
                 if (!(radiusServer instanceof ABFABRadiusServerImpl)) {
                     response = radiusServer.authenticate(credentials);
+                    circuitBreaker.recordSuccess();
+                    permit.recordSuccess();
                 } else {
                     RadiusPacket radiusResponse = ((ABFABRadiusServerImpl) radiusServer).authenticateEx(credentials);
+                    circuitBreaker.recordSuccess();
+                    permit.recordSuccess();
                     response = (radiusResponse instanceof AccessAccept);
                     
                     // We had a successful authentication, and we have our extended server implementor
                     if (response) {
-    
-                        // get the list of attributes, then feed it into the SAMLAssertionFilter
-                        final SAMLAssertionAttributeFilter samlAssertionFilter = 
-                                new SAMLAssertionAttributeFilter(radiusResponse.getAttributes());
-                        try {
-                            final String samlAssertion = samlAssertionFilter.getAssertion();
-                            log
-                            .debug("Successfully extracted SAML assertion from RADIUS response: {}", samlAssertion);
-                            
-                            // try to load the assertion into a document
-                            final SAMLAssertionAttributeExtractor samlExtractor = new SAMLAssertionAttributeExtractor(samlAssertion);
-                            if (!samlExtractor.isEmpty()) {
-                                log
-                                .debug("Successfully parsed SAML assertion into XML document");
-                            }
-                            
-                            try {
-                                if (samlExtractor.getAttributeStatement().hasChildren()) {
-                                    log
-                                    .debug("Found attribute statement in SAML2 assertion.");
-                                }
-                                
-                                final String newCredential = samlExtractor.getAttributeValue(principalIdentifierURN);
-                                if (!newCredential.isEmpty()) {
-                                    log
-                                    .info("Authentication was successful. Credential {} mapped to {}", credentials.getUsername(), 
-                                            newCredential);
-                                    
-                                    // set the credential
-                                    credentials.setUsername(newCredential);
-                                    credentials.setPassword("");
-                                } else {
-                                    log
-                                    .info("Authentication was successful. Credential mapping for {} failed. Continuing with existing credentials", 
-                                            credentials.getUsername());
-                                }
-                            } catch (final UnmarshallingException e) {
-                                log
-                                .error("Authentication was successful, unable to load the SAML assertion for information retrieval!");
-                            } catch (final IndexOutOfBoundsException e) {
-                                log
-                                .error("Authentication was successful, no attribute statement found in the SAML assertion!");
-                            } catch (final AttributeNotFoundException e) {
-                                log
-                                .error("Authentication was successful, unable to retrieve attribute {} from SAML assertion!", 
-                                        principalIdentifierURN);
-                            }
-                            
-                        } catch (final UnknownAttributeException e) {
-                            log
-                            .error("Authentication was successful, but SAML assertion was not present in RADIUS response!");
-                        } catch (final ConfigurationException e) {
-                            log
-                            .error("Authentication was successful, but SAML library initialisation failed!");
-                        } catch (final XMLParserException e) {
-                            log
-                            .error("Authentication was successful, but parsing the included SAML assertion failed!");
-                        } catch (final Exception e) {
-                            log
-                            .error("Authentication was successful, but another error occurred: " + e.toString());
-                        }
+                        resolveCredentials(credentials, radiusResponse);
                     }
                 }
                 
+                if (response) {
+                    account(username);
+                }
                 if (response
                     || (!response && !this.failoverOnAuthenticationFailure)) {
                     return response;
                 }
 
+                this.metrics.recordFailover();
                 log
                     .debug("Failing over to next handler because failoverOnAuthenticationFailure is set to true.");
             } catch (Exception e) {
+                circuitBreaker.recordFailure();
+                permit.recordFailure();
                 if (!this.failoverOnException) {
                     log
                         .warn("Failover disabled.  Returning false for authentication request.");
                 } else {
+                    this.metrics.recordFailover();
                     log.warn("Failover enabled.  Trying next RadiusServer.");
                 }
+            } finally {
+                permit.release();
             }
         }
 
         return false;
     }
 
+    /**
+     * Asynchronous counterpart of {@link #authenticateUsernamePasswordInternal(UsernamePasswordCredentials)}:
+     * the RADIUS exchanges, SAML extraction and failover run as a pipeline, and the calling thread does
+     * not wait. Cancelling the returned stage cancels the exchanges in progress.
+     *
+     * With hedging enabled, the request is also sent to the next server whenever the outstanding
+     * ones have not answered within the hedge delay; the first definitive answer wins.
+     *
+     * @param credentials the username and password to authenticate
+     * @return A stage completed with true (accept) or false (deny)
+     */
+    public CompletionStage<Boolean> authenticateAsync(final UsernamePasswordCredentials credentials) {
+        final long start = System.nanoTime();
+        final CompletableFuture<Boolean> result = authenticateWithCacheAsync(credentials);
+        result.whenComplete((accepted, error) -> {
+            this.metrics.getLogin().recordSince(start);
+            if (error != null) {
+                this.metrics.recordError();
+            } else if (accepted.booleanValue()) {
+                this.metrics.recordAccept();
+            } else {
+                this.metrics.recordReject();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #authenticateWithCache(UsernamePasswordCredentials)}.
+     */
+    private CompletableFuture<Boolean> authenticateWithCacheAsync(final UsernamePasswordCredentials credentials) {
+        final AuthenticationResultCache<String> cache = this.authenticationResultCache;
+        if (cache == null) {
+            return authenticateCoalescedAsync(credentials);
+        }
+
+        final AuthenticationResultCache.Key key = cache.getKey(credentials.getUsername(), credentials.getPassword());
+        final AuthenticationResultCache.Result<String> cached = cache.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(Boolean.valueOf(applyCachedResult(credentials, cached)));
+        }
+
+        final CompletableFuture<Boolean> result = authenticateCoalescedAsync(credentials);
+        result.whenComplete((accepted, error) -> {
+            if (error == null) {
+                cacheResult(cache, key, credentials, accepted.booleanValue());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #authenticateCoalesced(UsernamePasswordCredentials)}.
+     */
+    private CompletableFuture<Boolean> authenticateCoalescedAsync(final UsernamePasswordCredentials credentials) {
+        final AuthenticationCoalescer<String> coalescer = this.authenticationCoalescer;
+        if (coalescer == null) {
+            return authenticateAtServersAsync(credentials);
+        }
+
+        final CompletableFuture<String> outcome = new CompletableFuture<String>();
+        final CompletableFuture<String> shared = coalescer.join(
+                coalescer.getKey(credentials.getUsername(), credentials.getPassword()), outcome);
+        if (shared != null) {
+            log.debug("Attaching {} to an identical login in flight", credentials.getUsername());
+            this.metrics.recordCoalesced();
+            return shared.thenApply(username -> Boolean.valueOf(applySharedResult(credentials, username)));
+        }
+
+        final CompletableFuture<Boolean> result = authenticateAtServersAsync(credentials);
+        result.whenComplete((accepted, error) -> {
+            if (error != null) {
+                outcome.completeExceptionally(error);
+            } else {
+                outcome.complete(accepted.booleanValue() ? credentials.getUsername() : null);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return the future outcome of a new asynchronous login at the configured servers
+     */
+    private CompletableFuture<Boolean> authenticateAtServersAsync(final UsernamePasswordCredentials credentials) {
+        final Authentication authentication = new Authentication(credentials);
+        authentication.start();
+        return authentication.result;
+    }
+
+    /**
+     * Answers a login from the cache, mapping the credentials as the original login did.
+     */
+    private boolean applyCachedResult(final UsernamePasswordCredentials credentials,
+            final AuthenticationResultCache.Result<String> cached) {
+        log.debug("Answering {} from the authentication result cache", credentials.getUsername());
+        return applySharedResult(credentials, cached.isAccepted() ? cached.getValue() : null);
+    }
+
+    /**
+     * Answers a login with the outcome of an identical one, mapping the credentials as that login did.
+     *
+     * @param username The username the identical login was mapped to, or null if it was rejected
+     */
+    private static boolean applySharedResult(final UsernamePasswordCredentials credentials, final String username) {
+        if (username == null) {
+            return false;
+        }
+        if (!username.equals(credentials.getUsername())) {
+            credentials.setUsername(username);
+            credentials.setPassword("");
+        }
+        return true;
+    }
+
+    /**
+     * Remembers the outcome of a login, and for an accepted one the username the credentials were mapped to.
+     */
+    private static void cacheResult(final AuthenticationResultCache<String> cache, final AuthenticationResultCache.Key key,
+            final UsernamePasswordCredentials credentials, final boolean accepted) {
+        if (accepted) {
+            cache.putAccepted(key, credentials.getUsername());
+        } else {
+            cache.putRejected(key);
+        }
+    }
+
+    /**
+     * @param radiusServer A configured server
+     * @return the circuit breaker tracking the server's health
+     */
+    private CircuitBreaker getCircuitBreaker(final RadiusServer radiusServer) {
+        return this.circuitBreakers.computeIfAbsent(radiusServer, server -> new CircuitBreaker(
+                this.circuitBreakerWindow, this.circuitBreakerFailureThreshold, this.circuitBreakerOpenTime));
+    }
+
+    /**
+     * @param radiusServer A configured server
+     * @return the bulkhead limiting the exchanges in flight to the server
+     */
+    private Bulkhead getBulkhead(final RadiusServer radiusServer) {
+        return this.bulkheads.computeIfAbsent(radiusServer, server -> new Bulkhead(
+                this.bulkheadLimit, this.bulkheadQueueLength, this.bulkheadQueueWait, this.bulkheadAdaptation));
+    }
+
+    /**
+     * Feeds the outcome of an exchange to the server's circuit breaker and bulkhead. Cancelled
+     * exchanges say nothing about the server's health.
+     */
+    private static void recordOutcome(final CircuitBreaker circuitBreaker, final Bulkhead.Permit permit,
+            final Throwable error) {
+        if (error == null) {
+            circuitBreaker.recordSuccess();
+            permit.recordSuccess();
+        } else if (error instanceof CancellationException || error.getCause() instanceof CancellationException) {
+            circuitBreaker.release();
+            permit.release();
+        } else {
+            circuitBreaker.recordFailure();
+            permit.recordFailure();
+        }
+    }
+
+    /**
+     * @return the time in milliseconds after which a hedged request goes to the next server
+     */
+    private long getHedgeDelay() {
+        return this.latencyTracker.getPercentile(this.hedgePercentile, this.hedgeDelay);
+    }
+
+    /**
+     * The state of one asynchronous login: which server to try next and how many exchanges are
+     * still outstanding. Guarded by itself, as hedge timers and answers arrive on different threads.
+     */
+    private final class Authentication {
+
+        /** The credentials to update once the login succeeds. */
+        private final UsernamePasswordCredentials credentials;
+
+        /** The username and password as entered, sent to every server. */
+        private final UsernamePasswordCredentials request = new UsernamePasswordCredentials();
+
+        private final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+
+        /** Index of the next server to try. */
+        private int nextServer;
+
+        /** Number of exchanges started but not yet answered. */
+        private int outstanding;
+
+        /** Bulkhead permit for the server last returned by {@link #nextAvailableServer()}. */
+        private Bulkhead.Permit permit;
+
+        private Authentication(final UsernamePasswordCredentials credentials) {
+            this.credentials = credentials;
+            this.request.setUsername(credentials.getUsername());
+            this.request.setPassword(credentials.getPassword());
+        }
+
+        /**
+         * Sends the request to the first available server.
+         */
+        private synchronized void start() {
+            if (!tryNextServer()) {
+                log.warn("No RADIUS server available.  Every server is at its limit or has its circuit breaker open.");
+                this.result.complete(Boolean.FALSE);
+            }
+        }
+
+        /**
+         * Sends the request to the next server whose circuit breaker lets it through, if any is left.
+         *
+         * @return false if every server has been tried or skipped
+         */
+        private synchronized boolean tryNextServer() {
+            final RadiusServer radiusServer = nextAvailableServer();
+            if (radiusServer == null) {
+                return false;
+            }
+            final CircuitBreaker circuitBreaker = getCircuitBreaker(radiusServer);
+            final Bulkhead.Permit permit = this.permit;
+            this.outstanding++;
+            final long start = System.nanoTime();
+
+            final CompletableFuture<?> exchange;
+            if (radiusServer instanceof ABFABRadiusServerImpl) {
+                final CompletableFuture<RadiusPacket> radiusResponse =
+                        ((ABFABRadiusServerImpl) radiusServer).authenticateAsync(this.request).toCompletableFuture();
+                radiusResponse.whenComplete((response, error) ->
+                        onOutcome(response instanceof AccessAccept, response, error, start));
+                exchange = radiusResponse;
+            } else {
+                // the classic JRadiusServerImpl blocks, so give it a thread of its own
+                final CompletableFuture<Boolean> accepted =
+                        RadiusExecutors.submit(executor, () -> radiusServer.authenticate(this.request), 0L);
+                accepted.whenComplete((response, error) ->
+                        onOutcome(Boolean.TRUE.equals(response), null, error, start));
+                exchange = accepted;
+            }
+            exchange.whenComplete((response, error) -> recordOutcome(circuitBreaker, permit, error));
+            this.result.whenComplete((response, error) -> exchange.cancel(true));
+
+            if (hedging && !exchange.isDone()) {
+                final ScheduledFuture<?> hedge = RadiusExecutors.getScheduler().schedule(() -> {
+                    if (!exchange.isDone() && tryNextServer()) {
+                        metrics.recordHedge();
+                        log.debug("No answer from {} within the hedge delay.  Trying next RadiusServer.", radiusServer);
+                    }
+                }, getHedgeDelay(), TimeUnit.MILLISECONDS);
+                exchange.whenComplete((response, error) -> hedge.cancel(false));
+            }
+            return true;
+        }
+
+        /**
+         * Finds the next server whose circuit breaker and bulkhead let the request through, leaving
+         * the bulkhead's permit in {@link #permit}. Asynchronous logins never wait for a bulkhead.
+         *
+         * @return the server, or null if none is left
+         */
+        private RadiusServer nextAvailableServer() {
+            while (this.nextServer < servers.size() && !this.result.isDone()) {
+                final RadiusServer radiusServer = servers.get(this.nextServer++);
+                final CircuitBreaker circuitBreaker = getCircuitBreaker(radiusServer);
+                if (!circuitBreaker.tryAcquire()) {
+                    log.debug("Skipping {}.  Its circuit breaker is open.", radiusServer);
+                    continue;
+                }
+                this.permit = getBulkhead(radiusServer).tryAcquire();
+                if (this.permit != null) {
+                    return radiusServer;
+                }
+                circuitBreaker.release();
+                metrics.recordShed();
+                log.debug("Skipping {}.  Too many requests in flight.", radiusServer);
+            }
+            return null;
+        }
+
+        /**
+         * Completes the login on a definitive answer, and otherwise fails over to the next server.
+         */
+        private synchronized void onOutcome(final boolean accepted, final RadiusPacket response,
+                final Throwable error, final long start) {
+            this.outstanding--;
+            if (error == null) {
+                latencyTracker.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            if (this.result.isDone()) {
+                return;
+            }
+
+            if (error == null) {
+                if (accepted) {
+                    // only the winning answer may update the credentials
+                    if (response != null) {
+                        resolveCredentials(this.credentials, response);
+                    }
+                    account(this.request.getUsername());
+                    this.result.complete(Boolean.TRUE);
+                    return;
+                } else if (!failoverOnAuthenticationFailure) {
+                    this.result.complete(Boolean.FALSE);
+                    return;
+                }
+                metrics.recordFailover();
+                log
+                    .debug("Failing over to next handler because failoverOnAuthenticationFailure is set to true.");
+            } else if (!failoverOnException) {
+                if (this.outstanding > 0) {
+                    // a hedged exchange may still answer, so the login fails only if that one fails too
+                    log.debug("Exchange failed.  Waiting for the hedged request: {}", error.toString());
+                    return;
+                }
+                log
+                    .warn("Failover disabled.  Returning false for authentication request.");
+                this.result.complete(Boolean.FALSE);
+                return;
+            } else {
+                metrics.recordFailover();
+                log.warn("Failover enabled.  Trying next RadiusServer.");
+            }
+
+            // a hedged exchange may still answer, in which case the login waits for it
+            if (!tryNextServer() && this.outstanding == 0) {
+                this.result.complete(Boolean.FALSE);
+            }
+        }
+    }
+
+    /**
+     * Consumes the SAML assertion in an Access-Accept and updates the credentials with the principal
+     * it identifies.
+     *
+     * @param credentials the credentials that were authenticated
+     * @param radiusResponse the Access-Accept packet
+     */
+    private void resolveCredentials(final UsernamePasswordCredentials credentials, final RadiusPacket radiusResponse) {
+
+        // get the list of attributes, then feed it into the SAMLAssertionFilter
+        final SAMLAssertionAttributeFilter samlAssertionFilter = 
+                new SAMLAssertionAttributeFilter(radiusResponse.getAttributes());
+        try {
+            final long start = System.nanoTime();
+            final ByteBuffer samlAssertion = samlAssertionFilter.getAssertionBytes();
+            this.metrics.getAssertion().recordSince(start);
+            if (log.isDebugEnabled()) {
+                log
+                .debug("Successfully extracted SAML assertion from RADIUS response: {}", 
+                        StandardCharsets.UTF_8.decode(samlAssertion.duplicate()));
+            }
+            
+            try {
+                final long extraction = System.nanoTime();
+                final String newCredential = extractPrincipalIdentifier(samlAssertion);
+                this.metrics.getExtraction().recordSince(extraction);
+                if (!newCredential.isEmpty()) {
+                    log
+                    .info("Authentication was successful. Credential {} mapped to {}", credentials.getUsername(), 
+                            newCredential);
+                    
+                    // set the credential
+                    credentials.setUsername(newCredential);
+                    credentials.setPassword("");
+                } else {
+                    this.metrics.recordSamlFailure(SamlFailure.ATTRIBUTE_MISSING);
+                    log
+                    .info("Authentication was successful. Credential mapping for {} failed. Continuing with existing credentials", 
+                            credentials.getUsername());
+                }
+            } catch (final UnmarshallingException e) {
+                this.metrics.recordSamlFailure(SamlFailure.UNMARSHALLING);
+                log
+                .error("Authentication was successful, unable to load the SAML assertion for information retrieval!");
+            } catch (final IndexOutOfBoundsException e) {
+                this.metrics.recordSamlFailure(SamlFailure.ATTRIBUTE_STATEMENT_MISSING);
+                log
+                .error("Authentication was successful, no attribute statement found in the SAML assertion!");
+            } catch (final AttributeNotFoundException e) {
+                this.metrics.recordSamlFailure(SamlFailure.ATTRIBUTE_MISSING);
+                log
+                .error("Authentication was successful, unable to retrieve attribute {} from SAML assertion!", 
+                        principalIdentifierURN);
+            }
+            
+        } catch (final UnknownAttributeException e) {
+            this.metrics.recordSamlFailure(SamlFailure.ASSERTION_MISSING);
+            log
+            .error("Authentication was successful, but SAML assertion was not present in RADIUS response!");
+        } catch (final ConfigurationException e) {
+            this.metrics.recordSamlFailure(SamlFailure.CONFIGURATION);
+            log
+            .error("Authentication was successful, but SAML library initialisation failed!");
+        } catch (final XMLParserException e) {
+            this.metrics.recordSamlFailure(SamlFailure.PARSING);
+            log
+            .error("Authentication was successful, but parsing the included SAML assertion failed!");
+        } catch (final Exception e) {
+            this.metrics.recordSamlFailure(SamlFailure.OTHER);
+            log
+            .error("Authentication was successful, but another error occurred: " + e.toString());
+        }
+    }
+
+    /**
+     * Reads the principal identifier attribute from the SAML assertion: in a single streaming pass
+     * unless streaming extraction is disabled, and otherwise (or if that pass fails) through the full
+     * OpenSAML object model.
+     *
+     * @param samlAssertion the SAML assertion as its encoded bytes
+     * @return the value of the principal identifier attribute
+     */
+    private String extractPrincipalIdentifier(final ByteBuffer samlAssertion) throws ConfigurationException,
+            XMLParserException, UnmarshallingException, AttributeNotFoundException {
+        if (this.streamingExtraction) {
+            try {
+                return new SAMLAssertionStreamingExtractor(samlAssertion).getAttributeValue(principalIdentifierURN);
+            } catch (final XMLStreamException e) {
+                log.debug("Streaming SAML extraction failed, falling back to the full parser: {}", e.getMessage());
+            }
+        }
+
+        // try to load the assertion into a document
+        final SAMLAssertionAttributeExtractor samlExtractor = this.samlProcessingContext != null
+                ? new SAMLAssertionAttributeExtractor(this.samlProcessingContext, samlAssertion)
+                : new SAMLAssertionAttributeExtractor(samlAssertion);
+        if (!samlExtractor.isEmpty()) {
+            log
+            .debug("Successfully parsed SAML assertion into XML document");
+        }
+
+        if (samlExtractor.getAttributeStatement().hasChildren()) {
+            log
+            .debug("Found attribute statement in SAML2 assertion.");
+        }
+        return samlExtractor.getAttributeValue(principalIdentifierURN);
+    }
+
+    /**
+     * Queues the accounting of a login a server has just accepted; the login does not wait for it
+     * to be sent.
+     */
+    private void account(final String username) {
+        if (this.radiusAccountant != null) {
+            this.radiusAccountant.login(username);
+        }
+    }
+
+    /**
+     * Warms the handler up, if enabled, so that the first logins do not pay for loading the RADIUS
+     * dictionary and the SAML libraries, resolving names, or running the extraction path cold.
+     * Declare the handler with init-method="init"; it is ready for load once this returns.
+     */
+    public void init() {
+        if (!this.warmUp) {
+            return;
+        }
+        final long start = System.nanoTime();
+        RadiusDictionaryLoader.load();
+
+        int warmed = 0;
+        int ready = 0;
+        for (final RadiusServer radiusServer : this.servers) {
+            if (radiusServer instanceof ABFABRadiusServerImpl) {
+                warmed++;
+                if (((ABFABRadiusServerImpl) radiusServer).warmUp(this.warmUpProbes)) {
+                    ready++;
+                }
+            }
+        }
+
+        try {
+            if (this.samlProcessingContext == null) {
+                SAMLProcessingContext.getDefault();
+            }
+            final AttributeList attributes = WarmUpAssertion.build(principalIdentifierURN != null
+                    ? Collections.singleton(principalIdentifierURN) : Collections.<String>emptySet());
+            for (int i = 0; i < this.warmUpIterations; i++) {
+                extractPrincipalIdentifier(new SAMLAssertionAttributeFilter(attributes).getAssertionBytes());
+            }
+        } catch (final Exception e) {
+            log.warn("Warm-up of the SAML extraction failed: " + e.toString());
+        }
+        log.info("Warmed up in {} ms; {} of {} RADIUS servers ready",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), ready, warmed);
+    }
+
     /**
      * Determines whether to fail over to the next configured RadiusServer if
      * there was an authentication failure.
@@ -218,6 +896,203 @@ public class ABFABRadiusAuthenticationHandler extends
         this.principalIdentifierURN = principalIdentifierURN;
     }
 
+    /**
+     * Sets the executor that runs exchanges with servers that only offer blocking authentication,
+     * when authenticating asynchronously.
+     * 
+     * @param executor The executor; defaults to a shared pool of daemon threads.
+     */
+    public void setExecutor(final Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the context that parses the SAML assertions, for instance to size its parser pool.
+     * 
+     * @param samlProcessingContext The context; defaults to a shared one.
+     */
+    public void setSamlProcessingContext(final SAMLProcessingContext samlProcessingContext) {
+        this.samlProcessingContext = samlProcessingContext;
+    }
+
+    /**
+     * Determines how the principal identifier is read from the SAML assertion.
+     * 
+     * @param streamingExtraction true (the default) for a single streaming pass over the assertion,
+     * false to always unmarshall the complete assertion with OpenSAML.
+     */
+    public void setStreamingExtraction(final boolean streamingExtraction) {
+        this.streamingExtraction = streamingExtraction;
+    }
+
+    /**
+     * Enables hedged requests: if no configured server has answered within the hedge delay, the
+     * request is also sent to the next server, and the first definitive answer wins. Outstanding
+     * requests are then cancelled.
+     * 
+     * @param hedging true to hedge, false (the default) to try servers strictly one after the other.
+     */
+    public void setHedging(final boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * Sets the percentile of recent exchange latencies used as the hedge delay.
+     * 
+     * @param hedgePercentile The percentile, between 0 and 100; defaults to 95.
+     */
+    public void setHedgePercentile(final double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Sets the hedge delay used until enough exchange latencies are known.
+     * 
+     * @param hedgeDelay Delay in milliseconds; defaults to 1000.
+     */
+    public void setHedgeDelay(final long hedgeDelay) {
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    /**
+     * Sets the number of recent exchanges each server's circuit breaker considers.
+     * 
+     * @param circuitBreakerWindow The window size; defaults to 20.
+     */
+    public void setCircuitBreakerWindow(final int circuitBreakerWindow) {
+        this.circuitBreakerWindow = circuitBreakerWindow;
+    }
+
+    /**
+     * Sets the share of failed exchanges (timeouts and errors) in the window at which a server's
+     * circuit breaker opens.
+     * 
+     * @param circuitBreakerFailureThreshold The failure percentage; defaults to 50.
+     */
+    public void setCircuitBreakerFailureThreshold(final int circuitBreakerFailureThreshold) {
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+    }
+
+    /**
+     * Sets how long a failing server is skipped before a single login is let through to probe it.
+     * 
+     * @param circuitBreakerOpenTime Time in milliseconds; defaults to 30000, 0 disables the circuit breakers.
+     */
+    public void setCircuitBreakerOpenTime(final long circuitBreakerOpenTime) {
+        this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+    }
+
+    /**
+     * Sets the maximum number of exchanges in flight to each server. Logins beyond it wait for an
+     * exchange to finish or, if the wait queue is full or the wait runs out, skip the server.
+     *
+     * @param bulkheadLimit Maximum number of exchanges; defaults to 0, no limit.
+     */
+    public void setBulkheadLimit(final int bulkheadLimit) {
+        this.bulkheadLimit = bulkheadLimit;
+    }
+
+    /**
+     * @param bulkheadQueueLength Maximum number of logins waiting for each server; defaults to 16.
+     */
+    public void setBulkheadQueueLength(final int bulkheadQueueLength) {
+        this.bulkheadQueueLength = bulkheadQueueLength;
+    }
+
+    /**
+     * @param bulkheadQueueWait Time in milliseconds a login waits for a server; defaults to 1000.
+     */
+    public void setBulkheadQueueWait(final long bulkheadQueueWait) {
+        this.bulkheadQueueWait = bulkheadQueueWait;
+    }
+
+    /**
+     * Sets how the limit on exchanges in flight adapts to each server, below the configured limit.
+     *
+     * @param bulkheadAdaptation NONE, AIMD or VEGAS; defaults to NONE.
+     */
+    public void setBulkheadAdaptation(final Bulkhead.Adaptation bulkheadAdaptation) {
+        this.bulkheadAdaptation = bulkheadAdaptation;
+    }
+
+    /**
+     * Sets the cache that answers repeated logins without a RADIUS round-trip.
+     * 
+     * @param authenticationResultCache The cache; defaults to none.
+     */
+    public void setAuthenticationResultCache(final AuthenticationResultCache<String> authenticationResultCache) {
+        this.authenticationResultCache = authenticationResultCache;
+        this.metrics.setResultCache(authenticationResultCache);
+    }
+
+    /**
+     * Sets whether concurrent logins with identical credentials share one RADIUS exchange. A login
+     * that arrives while an identical one is in flight waits for that login's outcome instead of
+     * sending its own request; cancelling the leading login fails the ones attached to it.
+     *
+     * @param coalescing true to share exchanges; defaults to false.
+     */
+    public void setCoalescing(final boolean coalescing) {
+        this.authenticationCoalescer = coalescing ? new AuthenticationCoalescer<String>() : null;
+    }
+
+    /**
+     * Sets the accountant that sends an Accounting-Request for every login accepted in an exchange
+     * with a server. Logins answered from the authentication result cache, or by sharing an identical
+     * login in flight, are not accounted again. The requests go to the accountant's own client
+     * factory or pool, whichever server accepted the login.
+     *
+     * @param radiusAccountant The accountant; defaults to none.
+     */
+    public void setRadiusAccountant(final RadiusAccountant radiusAccountant) {
+        this.radiusAccountant = radiusAccountant;
+    }
+
+    /**
+     * Sets whether init() warms the handler and its servers up: it loads the RADIUS dictionary and
+     * the SAML libraries, prepares a client and a request for each server, and runs the SAML
+     * extraction on a synthetic assertion.
+     *
+     * @param warmUp true to warm up; defaults to false.
+     */
+    public void setWarmUp(final boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    /**
+     * Sets whether the warm-up sends each server a Status-Server probe. A server that does not
+     * answer is only logged.
+     *
+     * @param warmUpProbes true to probe the servers; defaults to false.
+     */
+    public void setWarmUpProbes(final boolean warmUpProbes) {
+        this.warmUpProbes = warmUpProbes;
+    }
+
+    /**
+     * @param warmUpIterations Number of times the warm-up runs the SAML extraction; defaults to 500.
+     */
+    public void setWarmUpIterations(final int warmUpIterations) {
+        this.warmUpIterations = warmUpIterations;
+    }
+
+    /**
+     * Publishes this handler's metrics as JMX MBeans, under the domain uk.ac.diamond.cas.abfab with
+     * type AuthenticationHandler and the given name.
+     * 
+     * @param metricsName The name of the MBeans; metrics are kept but not published without one.
+     */
+    public void setMetricsName(final String metricsName) {
+        this.metrics.register(metricsName);
+    }
+
+    /**
+     * @return the outcomes and latencies of the logins through this handler
+     */
+    public AuthenticationMetrics getMetrics() {
+        return this.metrics;
+    }
+
     public void setServers(final List<RadiusServer> servers) {
         this.servers = servers;
     }
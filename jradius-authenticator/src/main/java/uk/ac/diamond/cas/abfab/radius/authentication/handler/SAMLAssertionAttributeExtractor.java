@@ -1,21 +1,21 @@
 package uk.ac.diamond.cas.abfab.radius.authentication.handler;
 
-import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.management.AttributeNotFoundException;
 
-import org.opensaml.Configuration;
-import org.opensaml.DefaultBootstrap;
 import org.opensaml.saml2.core.Assertion;
 import org.opensaml.saml2.core.Attribute;
 import org.opensaml.saml2.core.AttributeStatement;
 import org.opensaml.xml.ConfigurationException;
 import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.io.Unmarshaller;
-import org.opensaml.xml.io.UnmarshallerFactory;
 import org.opensaml.xml.io.UnmarshallingException;
-import org.opensaml.xml.parse.BasicParserPool;
 import org.opensaml.xml.parse.XMLParserException;
 import org.opensaml.xml.schema.XSAny;
 import org.opensaml.xml.schema.XSString;
@@ -33,23 +33,57 @@ public class SAMLAssertionAttributeExtractor {
     /** The assertion that you intend to extract an attribute from */
     private Document assertion;
 
+    /** The shared parser pool and unmarshallers */
+    private final SAMLProcessingContext context;
+
+    /** The unmarshalled assertion, once loaded */
+    private XMLObject unmarshalled;
+
+    /** The attributes of the AttributeStatement by name, once indexed */
+    private Map<String, Attribute> attributeIndex;
+
     /**
      * @param assertion A SAML assertion in XML string form
      * @throws ConfigurationException, XMLParserException
      */
     public SAMLAssertionAttributeExtractor(
             final String assertion) throws ConfigurationException, XMLParserException {
-        // Initialise the library
-        DefaultBootstrap.bootstrap(); 
-         
-        // Get parser pool manager
-        BasicParserPool ppMgr = new BasicParserPool();
-        ppMgr.setNamespaceAware(true);
-        
+        this(SAMLProcessingContext.getDefault(), assertion);
+    }
+
+    /**
+     * @param context The shared SAML processing context
+     * @param assertion A SAML assertion in XML string form
+     * @throws XMLParserException
+     */
+    public SAMLAssertionAttributeExtractor(final SAMLProcessingContext context,
+            final String assertion) throws XMLParserException {
+        this.context = context;
+
         // parse the XML document, and also set whether the assertion is empty or not
-        this.assertion = ppMgr.parse(new StringReader(assertion));
+        this.assertion = context.parse(assertion);
     }
     
+    /**
+     * @param assertion A SAML assertion as its encoded bytes, as reassembled from RADIUS attributes
+     * @throws ConfigurationException, XMLParserException
+     */
+    public SAMLAssertionAttributeExtractor(
+            final ByteBuffer assertion) throws ConfigurationException, XMLParserException {
+        this(SAMLProcessingContext.getDefault(), assertion);
+    }
+
+    /**
+     * @param context The shared SAML processing context
+     * @param assertion A SAML assertion as its encoded bytes, as reassembled from RADIUS attributes
+     * @throws XMLParserException
+     */
+    public SAMLAssertionAttributeExtractor(final SAMLProcessingContext context,
+            final ByteBuffer assertion) throws XMLParserException {
+        this.context = context;
+        this.assertion = context.parse(assertion);
+    }
+
     /**
      * @return the XML document representing the SAML assertion
      */
@@ -65,15 +99,19 @@ public class SAMLAssertionAttributeExtractor {
     }
     
     /**
+     * Unmarshalls the document on first use; later calls return the same object.
+     * 
      * @return the root element of the XML document
      * @throws UnmarshallingException 
      */
     public XMLObject unmarshall() throws UnmarshallingException {
-        Element rootElement = this.assertion.getDocumentElement();
-        UnmarshallerFactory unmarshallerFactory = Configuration.getUnmarshallerFactory();
-        Unmarshaller unmarshaller = unmarshallerFactory.getUnmarshaller(rootElement);
-        
-        return unmarshaller.unmarshall(rootElement);
+        if (this.unmarshalled == null) {
+            Element rootElement = this.assertion.getDocumentElement();
+            Unmarshaller unmarshaller = this.context.getUnmarshaller(rootElement);
+
+            this.unmarshalled = unmarshaller.unmarshall(rootElement);
+        }
+        return this.unmarshalled;
     }
     
     /**
@@ -82,31 +120,47 @@ public class SAMLAssertionAttributeExtractor {
      * @throws AttributeNotFoundException
      */
     public String getAttributeValue(final String attributeId) throws AttributeNotFoundException {
-        try {
-            AttributeStatement attributeStatement = this.getAttributeStatement(); 
-            List<Attribute> attributes = attributeStatement.getAttributes();
-            if (!attributes.isEmpty()) {
-                for (Attribute attribute : attributes) {
-                    if (attribute.getName().equals(attributeId)) {
-                        XMLObject attributeValue = attribute.getAttributeValues().get(0);
-                        if (attributeValue instanceof XSString) {
-                            return ((XSString) attributeValue).getValue();
-                        } else if (attributeValue instanceof XSAny) {
-                            return ((XSAny) attributeValue).getTextContent();
-                        }
+        final Attribute attribute = this.getAttributeIndex(attributeId).get(attributeId);
+        if (attribute == null) {
+            throw new AttributeNotFoundException(
+                    String.format("Attribute %s not found in SAML AttributeStatement", attributeId));
+        }
+        return getStringValue(attribute.getAttributeValues().get(0));
+    }
+
+    /**
+     * Looks up several attributes with a single pass over the AttributeStatement.
+     * 
+     * @param attributeIds the names of the attributes whose values you want to return
+     * @return the string values of each requested attribute that is present
+     * @throws AttributeNotFoundException if the assertion or its AttributeStatement cannot be loaded
+     */
+    public Map<String, List<String>> getAttributeValues(final Collection<String> attributeIds)
+            throws AttributeNotFoundException {
+        final Map<String, Attribute> index = this.getAttributeIndex(attributeIds.toString());
+        final Map<String, List<String>> values = new HashMap<String, List<String>>();
+        for (final String attributeId : attributeIds) {
+            final Attribute attribute = index.get(attributeId);
+            if (attribute != null) {
+                final List<String> attributeValues = new ArrayList<String>(attribute.getAttributeValues().size());
+                for (final XMLObject attributeValue : attribute.getAttributeValues()) {
+                    final String value = getStringValue(attributeValue);
+                    if (value != null) {
+                        attributeValues.add(value);
                     }
                 }
+                values.put(attributeId, attributeValues);
             }
-            throw new AttributeNotFoundException(
-                    String.format("Attribute %s not found in SAML AttributeStatement", attributeId));
-        } catch (final UnmarshallingException e) {
-            throw new AttributeNotFoundException(
-                    String.format("Unable to get attribute %s. Failed to load SAML assertion. Underlying error %s", 
-                            attributeId, e.getMessage()));
-        } catch (final IndexOutOfBoundsException e) {
-            throw new AttributeNotFoundException(
-                    String.format("Unable to get attribute %s. No AttributeStatement found in the SAML assertion.",attributeId));
         }
+        return values;
+    }
+
+    /**
+     * @return the string values of every attribute in the AttributeStatement, by name
+     * @throws AttributeNotFoundException if the assertion or its AttributeStatement cannot be loaded
+     */
+    public Map<String, List<String>> getAllAttributeValues() throws AttributeNotFoundException {
+        return getAttributeValues(this.getAttributeIndex("*").keySet());
     }
 
     /**
@@ -123,4 +177,51 @@ public class SAMLAssertionAttributeExtractor {
         Assertion assertion = (Assertion) this.unmarshall();
         return assertion.getAttributeStatements().get(0);
     }
+
+    /**
+     * Indexes the AttributeStatement by attribute name on first use. As before, the first attribute
+     * of a name with a string value wins.
+     * 
+     * @param attributeId the attribute being looked up, for error messages
+     * @return the attributes by name
+     * @throws AttributeNotFoundException if the assertion or its AttributeStatement cannot be loaded
+     */
+    private Map<String, Attribute> getAttributeIndex(final String attributeId) throws AttributeNotFoundException {
+        if (this.attributeIndex == null) {
+            final AttributeStatement attributeStatement;
+            try {
+                attributeStatement = this.getAttributeStatement();
+            } catch (final UnmarshallingException e) {
+                throw new AttributeNotFoundException(
+                        String.format("Unable to get attribute %s. Failed to load SAML assertion. Underlying error %s", 
+                                attributeId, e.getMessage()));
+            } catch (final IndexOutOfBoundsException e) {
+                throw new AttributeNotFoundException(
+                        String.format("Unable to get attribute %s. No AttributeStatement found in the SAML assertion.",attributeId));
+            }
+
+            final List<Attribute> attributes = attributeStatement.getAttributes();
+            final Map<String, Attribute> index = new HashMap<String, Attribute>(attributes.size() * 2);
+            for (final Attribute attribute : attributes) {
+                if (!index.containsKey(attribute.getName()) && !attribute.getAttributeValues().isEmpty()
+                        && getStringValue(attribute.getAttributeValues().get(0)) != null) {
+                    index.put(attribute.getName(), attribute);
+                }
+            }
+            this.attributeIndex = index;
+        }
+        return this.attributeIndex;
+    }
+
+    /**
+     * @return the value of a string or untyped attribute value, otherwise null
+     */
+    private static String getStringValue(final XMLObject attributeValue) {
+        if (attributeValue instanceof XSString) {
+            return ((XSString) attributeValue).getValue();
+        } else if (attributeValue instanceof XSAny) {
+            return ((XSAny) attributeValue).getTextContent();
+        }
+        return null;
+    }
 }
@@ -1,16 +1,22 @@
 package uk.ac.diamond.cas.abfab.radius.authentication.handler;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
 import net.jradius.exception.UnknownAttributeException;
 import net.jradius.packet.attribute.AttributeFactory;
 import net.jradius.packet.attribute.AttributeList;
 import net.jradius.packet.attribute.RadiusAttribute;
-import net.jradius.packet.attribute.value.StringValue;
 
 public class SAMLAssertionAttributeFilter {
     
     /** The SAML Assertion Attribute name in RADIUS */
     private final static String attributeName = "SAML-AAA-Assertion";
     
+    /** The type code of the SAML Assertion Attribute, once looked up; 0 until then */
+    private static volatile long attributeType;
+    
     /** The attributes used to initialise this class */
     private AttributeList attributes;
 
@@ -26,15 +32,34 @@ public class SAMLAssertionAttributeFilter {
      * @return A string representing the complete attribute
      */
     public String getAssertion() throws UnknownAttributeException {
-        StringBuilder sb = new StringBuilder();
-        final Object[] attributeArray = this.attributes.getArray(AttributeFactory.getTypeByName(attributeName));
-        for (final Object attributeObject : attributeArray) {
-            if (attributeObject instanceof RadiusAttribute) {
-                final StringValue sv = (StringValue) ((RadiusAttribute) attributeObject).getValue();
-                sb.append(sv.toString());
+        final ByteBuffer assertion = getAssertionBytes();
+        return new String(assertion.array(), 0, assertion.limit(), StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Copies the raw values of all SAML-AAA-Assertion attributes, in the order received, into a
+     * single buffer sized up front. No intermediate strings are built, and a multibyte character
+     * split between two attributes comes out whole.
+     * 
+     * @return A buffer holding the complete encoded assertion, from position 0 to its limit
+     */
+    public ByteBuffer getAssertionBytes() throws UnknownAttributeException {
+        final long type = getAttributeType();
+        final List<RadiusAttribute> attributeList = this.attributes.getAttributeList();
+        int length = 0;
+        for (final RadiusAttribute attribute : attributeList) {
+            if (attribute.getFormattedType() == type) {
+                length += attribute.getValue().getLength();
             }
         }
-        return sb.toString();
+        final ByteBuffer assertion = ByteBuffer.allocate(length);
+        for (final RadiusAttribute attribute : attributeList) {
+            if (attribute.getFormattedType() == type) {
+                attribute.getValue().getBytes(assertion);
+            }
+        }
+        assertion.flip();
+        return assertion;
     }
     
     /**
@@ -43,4 +68,16 @@ public class SAMLAssertionAttributeFilter {
     public AttributeList getAttributes() {
         return attributes;
     }
+    
+    /**
+     * @return The type code of the SAML Assertion Attribute, looked up in the dictionary only once
+     */
+    private static long getAttributeType() throws UnknownAttributeException {
+        long type = attributeType;
+        if (type == 0L) {
+            type = AttributeFactory.getTypeByName(attributeName);
+            attributeType = type;
+        }
+        return type;
+    }
 }
@@ -0,0 +1,225 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.authentication.handler;
+
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.AttributeNotFoundException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads attribute values from a SAML 2.0 assertion in a single forward StAX pass, without building
+ * a DOM or an OpenSAML object tree. Reading stops as soon as every requested attribute has been
+ * seen.
+ *
+ * Like {@link SAMLAssertionAttributeExtractor}, only the first AttributeStatement of the assertion
+ * is considered, and the first Attribute with a given name wins. Attribute values are returned as
+ * their trimmed text content whatever their xsi:type; use {@link SAMLAssertionAttributeExtractor}
+ * where the full object model is needed.
+ *
+ * @author Stefan Paetow
+ */
+public class SAMLAssertionStreamingExtractor {
+
+    /** SAML 2.0 assertion namespace. */
+    private static final String SAML2_NS = "urn:oasis:names:tc:SAML:2.0:assertion";
+
+    /** Creates the stream readers; configured once, after which it is safe to share. */
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+
+    /** The assertion that you intend to extract attributes from, in string form */
+    private final String assertion;
+
+    /** Or the same as its encoded bytes */
+    private final ByteBuffer assertionBytes;
+
+    /**
+     * @param assertion A SAML assertion in XML string form
+     */
+    public SAMLAssertionStreamingExtractor(final String assertion) {
+        this.assertion = assertion;
+        this.assertionBytes = null;
+    }
+
+    /**
+     * The bytes are read in place, so no copy of the assertion is made.
+     *
+     * @param assertion A SAML assertion as its encoded bytes, as reassembled from RADIUS attributes
+     */
+    public SAMLAssertionStreamingExtractor(final ByteBuffer assertion) {
+        this.assertion = null;
+        this.assertionBytes = assertion;
+    }
+
+    /**
+     * @param attributeId representing the attribute whose value you want to return
+     * @return the first value of the attribute
+     * @throws AttributeNotFoundException if the attribute is absent or has no value
+     * @throws XMLStreamException if the assertion is not well-formed XML
+     */
+    public String getAttributeValue(final String attributeId) throws AttributeNotFoundException, XMLStreamException {
+        final List<String> values = getAttributeValues(Collections.singleton(attributeId)).get(attributeId);
+        if (values == null || values.isEmpty()) {
+            throw new AttributeNotFoundException(
+                    String.format("Attribute %s not found in SAML AttributeStatement", attributeId));
+        }
+        return values.get(0);
+    }
+
+    /**
+     * @param attributeIds the names of the attributes whose values you want to return
+     * @return the values of each requested attribute that is present, in document order
+     * @throws XMLStreamException if the assertion is not well-formed XML
+     */
+    public Map<String, List<String>> getAttributeValues(final Collection<String> attributeIds)
+            throws XMLStreamException {
+        return readAttributes(attributeIds);
+    }
+
+    /**
+     * Reads every attribute of the AttributeStatement in the same single pass.
+     *
+     * @return the values of each attribute, by name
+     * @throws XMLStreamException if the assertion is not well-formed XML
+     */
+    public Map<String, List<String>> getAllAttributeValues() throws XMLStreamException {
+        return readAttributes(null);
+    }
+
+    /**
+     * @param attributeIds the names of the attributes to read, or null for all of them
+     */
+    private Map<String, List<String>> readAttributes(final Collection<String> attributeIds)
+            throws XMLStreamException {
+        final Map<String, List<String>> found = new HashMap<String, List<String>>();
+        final XMLStreamReader reader = this.assertionBytes != null
+                ? INPUT_FACTORY.createXMLStreamReader(SAMLProcessingContext.newInputStream(this.assertionBytes))
+                : INPUT_FACTORY.createXMLStreamReader(new StringReader(this.assertion));
+        try {
+            if (reader.nextTag() != XMLStreamConstants.START_ELEMENT || !isSAML(reader, "Assertion")) {
+                return found;
+            }
+
+            // depth 1: children of the Assertion
+            int depth = 1;
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    if (depth == 0) {
+                        break;
+                    }
+                } else if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (depth == 1 && isSAML(reader, "AttributeStatement")) {
+                        readAttributeStatement(reader, attributeIds, found);
+                        // only the first AttributeStatement counts
+                        break;
+                    }
+                    depth++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return found;
+    }
+
+    /**
+     * Collects the requested attributes (all of them if attributeIds is null), leaving the reader on
+     * the end of the AttributeStatement or on the Attribute that completed the request.
+     */
+    private static void readAttributeStatement(final XMLStreamReader reader, final Collection<String> attributeIds,
+            final Map<String, List<String>> found) throws XMLStreamException {
+        int depth = 1;
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+                if (depth == 0) {
+                    return;
+                }
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                if (depth == 1 && isSAML(reader, "Attribute")) {
+                    final String name = reader.getAttributeValue(null, "Name");
+                    if (name != null && (attributeIds == null || attributeIds.contains(name))
+                            && !found.containsKey(name)) {
+                        found.put(name, readAttributeValues(reader));
+                        if (attributeIds != null && found.size() == attributeIds.size()) {
+                            return;
+                        }
+                        // readAttributeValues consumed the end of the Attribute
+                        continue;
+                    }
+                }
+                depth++;
+            }
+        }
+    }
+
+    /**
+     * @return the text content of each AttributeValue, leaving the reader on the end of the Attribute
+     */
+    private static List<String> readAttributeValues(final XMLStreamReader reader) throws XMLStreamException {
+        final List<String> values = new ArrayList<String>(1);
+        final StringBuilder text = new StringBuilder();
+        boolean inValue = false;
+        int depth = 1;
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (depth == 1 && isSAML(reader, "AttributeValue")) {
+                    inValue = true;
+                    text.setLength(0);
+                }
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+                if (depth == 0) {
+                    break;
+                }
+                if (depth == 1 && inValue) {
+                    values.add(text.toString().trim());
+                    inValue = false;
+                }
+            } else if (inValue && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+                text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            }
+        }
+        return values;
+    }
+
+    private static boolean isSAML(final XMLStreamReader reader, final String localName) {
+        return localName.equals(reader.getLocalName()) && SAML2_NS.equals(reader.getNamespaceURI());
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.authentication.handler;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.Configuration;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xml.ConfigurationException;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallerFactory;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.opensaml.xml.util.XMLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * The state shared by all SAML assertion processing: the OpenSAML library is bootstrapped once per
+ * JVM, documents are parsed through a shared thread-safe parser pool, and unmarshallers are looked
+ * up once per element name. {@link SAMLAssertionAttributeExtractor} instances are cheap to create
+ * on top of a context.
+ *
+ * @author Stefan Paetow
+ */
+public final class SAMLProcessingContext {
+
+    /** Default maximum number of idle document builders kept by the parser pool, {@value}. */
+    public static final int DEFAULT_MAX_POOL_SIZE = 16;
+
+    /** Logger instance. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SAMLProcessingContext.class);
+
+    /** Whether the OpenSAML library has been bootstrapped; guarded by the class. */
+    private static boolean bootstrapped;
+
+    /** The context used when none is configured. */
+    private static volatile SAMLProcessingContext defaultContext;
+
+    /** Parses SAML assertions; thread-safe. */
+    private final BasicParserPool parserPool;
+
+    /** Looks up unmarshallers in the OpenSAML configuration. */
+    private final UnmarshallerFactory unmarshallerFactory;
+
+    /** Unmarshallers found so far, by element name. OpenSAML unmarshallers are stateless. */
+    private final ConcurrentMap<QName, Unmarshaller> unmarshallers = new ConcurrentHashMap<QName, Unmarshaller>();
+
+    /**
+     * Bootstraps OpenSAML if no context has done so yet, and prepares the parser pool.
+     *
+     * @param maxPoolSize The maximum number of idle document builders kept by the parser pool
+     * @throws ConfigurationException if OpenSAML cannot be bootstrapped
+     * @throws XMLParserException if the parser pool cannot be initialised
+     */
+    public SAMLProcessingContext(final int maxPoolSize) throws ConfigurationException, XMLParserException {
+        bootstrap();
+        this.unmarshallerFactory = Configuration.getUnmarshallerFactory();
+
+        this.parserPool = new BasicParserPool();
+        this.parserPool.setNamespaceAware(true);
+        this.parserPool.setMaxPoolSize(maxPoolSize);
+        // build the first document builder now rather than during a login
+        this.parserPool.returnBuilder(this.parserPool.getBuilder());
+    }
+
+    /**
+     * @return the shared context with the default parser pool size, created on first use
+     * @throws ConfigurationException if OpenSAML cannot be bootstrapped
+     * @throws XMLParserException if the parser pool cannot be initialised
+     */
+    public static SAMLProcessingContext getDefault() throws ConfigurationException, XMLParserException {
+        SAMLProcessingContext context = defaultContext;
+        if (context == null) {
+            synchronized (SAMLProcessingContext.class) {
+                context = defaultContext;
+                if (context == null) {
+                    context = new SAMLProcessingContext(DEFAULT_MAX_POOL_SIZE);
+                    defaultContext = context;
+                }
+            }
+        }
+        return context;
+    }
+
+    /**
+     * @param xml An XML document in string form
+     * @return the parsed, namespace-aware document
+     * @throws XMLParserException if the document cannot be parsed
+     */
+    public Document parse(final String xml) throws XMLParserException {
+        return this.parserPool.parse(new StringReader(xml));
+    }
+
+    /**
+     * Parses the document straight from its encoded bytes, leaving the buffer's position untouched.
+     *
+     * @param xml An XML document, encoded as its declaration says (UTF-8 by default)
+     * @return the parsed, namespace-aware document
+     * @throws XMLParserException if the document cannot be parsed
+     */
+    public Document parse(final ByteBuffer xml) throws XMLParserException {
+        return this.parserPool.parse(newInputStream(xml));
+    }
+
+    /**
+     * @return a stream over the remaining bytes of a heap buffer, reading them in place
+     */
+    static InputStream newInputStream(final ByteBuffer buffer) {
+        return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * @param element The element to unmarshall
+     * @return the unmarshaller registered for the element's type or name
+     * @throws UnmarshallingException if no unmarshaller is registered
+     */
+    public Unmarshaller getUnmarshaller(final Element element) throws UnmarshallingException {
+        // an xsi:type takes precedence over the element name, so only untyped elements are cached
+        final Unmarshaller unmarshaller;
+        if (XMLHelper.getXSIType(element) != null) {
+            unmarshaller = this.unmarshallerFactory.getUnmarshaller(element);
+        } else {
+            final QName name = XMLHelper.getNodeQName(element);
+            final Unmarshaller cached = this.unmarshallers.get(name);
+            if (cached != null) {
+                return cached;
+            }
+            unmarshaller = this.unmarshallerFactory.getUnmarshaller(element);
+            if (unmarshaller != null) {
+                this.unmarshallers.putIfAbsent(name, unmarshaller);
+            }
+        }
+
+        if (unmarshaller == null) {
+            throw new UnmarshallingException(
+                    String.format("No unmarshaller registered for element %s", XMLHelper.getNodeQName(element)));
+        }
+        return unmarshaller;
+    }
+
+    /**
+     * Loads the OpenSAML configuration, once per JVM.
+     */
+    private static synchronized void bootstrap() throws ConfigurationException {
+        if (!bootstrapped) {
+            LOGGER.debug("Bootstrapping the OpenSAML library");
+            DefaultBootstrap.bootstrap();
+            bootstrapped = true;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.authentication.handler;
+
+import java.util.Collection;
+
+import net.jradius.dictionary.Attr_SAMLAAAAssertion;
+import net.jradius.packet.attribute.AttributeList;
+
+/**
+ * Builds the synthetic Access-Accept attributes a handler warms its SAML extraction up on: an
+ * assertion with a value for every attribute the handler reads, split into SAML-AAA-Assertion
+ * attributes the way an identity provider sends it.
+ *
+ * @author Stefan Paetow
+ */
+final class WarmUpAssertion {
+
+    /** Largest value of a single RADIUS attribute. */
+    private static final int MAX_FRAGMENT_LENGTH = 253;
+
+    private WarmUpAssertion() {
+    }
+
+    /**
+     * @param attributeNames The names of the SAML attributes to give a value
+     * @return the attributes of an Access-Accept carrying the assertion
+     */
+    static AttributeList build(final Collection<String> attributeNames) {
+        final StringBuilder sb = new StringBuilder(1024);
+        sb.append("<saml:Assertion xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\"")
+            .append(" xmlns:xs=\"http://www.w3.org/2001/XMLSchema\"")
+            .append(" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"")
+            .append(" ID=\"_warm-up\" IssueInstant=\"2014-01-01T00:00:00Z\" Version=\"2.0\">")
+            .append("<saml:Issuer>urn:uk:ac:diamond:cas:abfab:warm-up</saml:Issuer>")
+            .append("<saml:AttributeStatement>");
+        for (final String attributeName : attributeNames) {
+            sb.append("<saml:Attribute Name=\"").append(attributeName).append("\">")
+                .append("<saml:AttributeValue xsi:type=\"xs:string\">warm-up</saml:AttributeValue>")
+                .append("</saml:Attribute>");
+        }
+        sb.append("</saml:AttributeStatement></saml:Assertion>");
+
+        final String assertion = sb.toString();
+        final AttributeList attributes = new AttributeList();
+        for (int i = 0; i < assertion.length(); i += MAX_FRAGMENT_LENGTH) {
+            attributes.add(new Attr_SAMLAAAAssertion(
+                    assertion.substring(i, Math.min(i + MAX_FRAGMENT_LENGTH, assertion.length()))), false);
+        }
+        return attributes;
+    }
+}
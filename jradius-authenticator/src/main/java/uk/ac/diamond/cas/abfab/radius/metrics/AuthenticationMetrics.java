@@ -0,0 +1,265 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import uk.ac.diamond.cas.abfab.radius.AuthenticationResultCache;
+
+/**
+ * Counts the outcomes of the logins through one authentication handler, the failovers between
+ * servers, the logins coalesced with identical ones, the servers skipped for being at their
+ * concurrency limit and the reasons SAML assertions could not be mapped to a principal, reports
+ * the counters of the handler's authentication result cache, and times the stages of a login: the
+ * login as a whole, reassembling the SAML assertion from the Access-Accept, and extracting the
+ * principal identifier from it.
+ *
+ * @author Stefan Paetow
+ */
+public class AuthenticationMetrics implements AuthenticationMetricsMBean {
+
+    /** JMX type of the handler MBeans. */
+    public static final String TYPE = "AuthenticationHandler";
+
+    /** The reasons a SAML assertion could not be mapped to a principal. */
+    public enum SamlFailure {
+        /** The Access-Accept carried no assertion. */
+        ASSERTION_MISSING,
+        /** OpenSAML failed to initialise. */
+        CONFIGURATION,
+        /** The assertion is not well-formed XML. */
+        PARSING,
+        /** The assertion could not be unmarshalled. */
+        UNMARSHALLING,
+        /** The assertion has no attribute statement. */
+        ATTRIBUTE_STATEMENT_MISSING,
+        /** The principal identifier attribute is absent or empty. */
+        ATTRIBUTE_MISSING,
+        /** Any other failure. */
+        OTHER
+    }
+
+    /** Time from the start of a login to its outcome. */
+    private final LatencyHistogram login = new LatencyHistogram();
+
+    /** Time taken to reassemble the SAML assertion from the Access-Accept. */
+    private final LatencyHistogram assertion = new LatencyHistogram();
+
+    /** Time taken to extract the principal identifier from the SAML assertion. */
+    private final LatencyHistogram extraction = new LatencyHistogram();
+
+    private final AtomicLong accepts = new AtomicLong();
+
+    private final AtomicLong rejects = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong failovers = new AtomicLong();
+
+    private final AtomicLong hedges = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong shed = new AtomicLong();
+
+    /** SAML failures, indexed by the ordinal of their reason. */
+    private final AtomicLongArray samlFailures = new AtomicLongArray(SamlFailure.values().length);
+
+    /** The handler's result cache; null if it has none. */
+    private volatile AuthenticationResultCache<?> resultCache;
+
+    /**
+     * Publishes the counters and histograms under the given name.
+     *
+     * @param name The value of the name key of the MBeans
+     */
+    public void register(final String name) {
+        JmxSupport.register(this, TYPE, name, null);
+        JmxSupport.register(this.login, TYPE, name, "login");
+        JmxSupport.register(this.assertion, TYPE, name, "assertion");
+        JmxSupport.register(this.extraction, TYPE, name, "extraction");
+    }
+
+    public LatencyHistogram getLogin() {
+        return this.login;
+    }
+
+    public LatencyHistogram getAssertion() {
+        return this.assertion;
+    }
+
+    public LatencyHistogram getExtraction() {
+        return this.extraction;
+    }
+
+    /**
+     * @param resultCache The handler's authentication result cache; null if it has none.
+     */
+    public void setResultCache(final AuthenticationResultCache<?> resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public void recordAccept() {
+        this.accepts.incrementAndGet();
+    }
+
+    public void recordReject() {
+        this.rejects.incrementAndGet();
+    }
+
+    public void recordError() {
+        this.errors.incrementAndGet();
+    }
+
+    public void recordFailover() {
+        this.failovers.incrementAndGet();
+    }
+
+    public void recordHedge() {
+        this.hedges.incrementAndGet();
+    }
+
+    public void recordCoalesced() {
+        this.coalesced.incrementAndGet();
+    }
+
+    public void recordShed() {
+        this.shed.incrementAndGet();
+    }
+
+    /**
+     * @param failure The reason a SAML assertion could not be mapped to a principal
+     */
+    public void recordSamlFailure(final SamlFailure failure) {
+        this.samlFailures.incrementAndGet(failure.ordinal());
+    }
+
+    /**
+     * @param failure The reason
+     * @return the number of SAML assertions not mapped for the reason
+     */
+    public long getSamlFailures(final SamlFailure failure) {
+        return this.samlFailures.get(failure.ordinal());
+    }
+
+    @Override
+    public long getAccepts() {
+        return this.accepts.get();
+    }
+
+    @Override
+    public long getRejects() {
+        return this.rejects.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return this.errors.get();
+    }
+
+    @Override
+    public long getFailovers() {
+        return this.failovers.get();
+    }
+
+    @Override
+    public long getHedges() {
+        return this.hedges.get();
+    }
+
+    @Override
+    public long getCoalesced() {
+        return this.coalesced.get();
+    }
+
+    @Override
+    public long getShed() {
+        return this.shed.get();
+    }
+
+    @Override
+    public long getSamlAssertionMissing() {
+        return getSamlFailures(SamlFailure.ASSERTION_MISSING);
+    }
+
+    @Override
+    public long getSamlConfigurationFailures() {
+        return getSamlFailures(SamlFailure.CONFIGURATION);
+    }
+
+    @Override
+    public long getSamlParseFailures() {
+        return getSamlFailures(SamlFailure.PARSING);
+    }
+
+    @Override
+    public long getSamlUnmarshallingFailures() {
+        return getSamlFailures(SamlFailure.UNMARSHALLING);
+    }
+
+    @Override
+    public long getSamlAttributeStatementMissing() {
+        return getSamlFailures(SamlFailure.ATTRIBUTE_STATEMENT_MISSING);
+    }
+
+    @Override
+    public long getSamlAttributeMissing() {
+        return getSamlFailures(SamlFailure.ATTRIBUTE_MISSING);
+    }
+
+    @Override
+    public long getSamlOtherFailures() {
+        return getSamlFailures(SamlFailure.OTHER);
+    }
+
+    @Override
+    public long getCacheHits() {
+        final AuthenticationResultCache<?> cache = this.resultCache;
+        return cache == null ? 0L : cache.getHitCount();
+    }
+
+    @Override
+    public long getCacheNegativeHits() {
+        final AuthenticationResultCache<?> cache = this.resultCache;
+        return cache == null ? 0L : cache.getNegativeHitCount();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        final AuthenticationResultCache<?> cache = this.resultCache;
+        return cache == null ? 0L : cache.getMissCount();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        final AuthenticationResultCache<?> cache = this.resultCache;
+        return cache == null ? 0L : cache.getEvictionCount();
+    }
+
+    @Override
+    public int getCacheSize() {
+        final AuthenticationResultCache<?> cache = this.resultCache;
+        return cache == null ? 0 : cache.getSize();
+    }
+
+    @Override
+    public long getCacheBytes() {
+        final AuthenticationResultCache<?> cache = this.resultCache;
+        return cache == null ? 0L : cache.getBytes();
+    }
+}
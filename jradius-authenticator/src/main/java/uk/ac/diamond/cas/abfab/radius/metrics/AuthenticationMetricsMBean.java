@@ -0,0 +1,86 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.metrics;
+
+/**
+ * JMX view of the outcomes of the logins through one authentication handler and of its
+ * authentication result cache. Latency histograms are published as separate MBeans.
+ *
+ * @author Stefan Paetow
+ */
+public interface AuthenticationMetricsMBean {
+
+    /** @return the number of logins accepted */
+    long getAccepts();
+
+    /** @return the number of logins rejected */
+    long getRejects();
+
+    /** @return the number of logins that failed for lack of a usable answer */
+    long getErrors();
+
+    /** @return the number of times a login moved on to the next server */
+    long getFailovers();
+
+    /** @return the number of hedged requests sent */
+    long getHedges();
+
+    /** @return the number of logins that shared the exchange of an identical login in flight */
+    long getCoalesced();
+
+    /** @return the number of times a server was skipped for having too many requests in flight */
+    long getShed();
+
+    /** @return the number of Access-Accepts without a SAML assertion */
+    long getSamlAssertionMissing();
+
+    /** @return the number of SAML assertions not processed because OpenSAML failed to initialise */
+    long getSamlConfigurationFailures();
+
+    /** @return the number of SAML assertions that could not be parsed */
+    long getSamlParseFailures();
+
+    /** @return the number of SAML assertions that could not be unmarshalled */
+    long getSamlUnmarshallingFailures();
+
+    /** @return the number of SAML assertions without an attribute statement */
+    long getSamlAttributeStatementMissing();
+
+    /** @return the number of SAML assertions without a value for the principal identifier */
+    long getSamlAttributeMissing();
+
+    /** @return the number of SAML assertions that failed to be processed otherwise */
+    long getSamlOtherFailures();
+
+    /** @return the number of logins answered from the result cache with an accept; 0 without a cache */
+    long getCacheHits();
+
+    /** @return the number of logins answered from the result cache with a reject; 0 without a cache */
+    long getCacheNegativeHits();
+
+    /** @return the number of logins the result cache could not answer; 0 without a cache */
+    long getCacheMisses();
+
+    /** @return the number of result cache entries dropped to make room; 0 without a cache */
+    long getCacheEvictions();
+
+    /** @return the number of result cache entries; 0 without a cache */
+    int getCacheSize();
+
+    /** @return the estimated size of the result cache entries in bytes; 0 without a cache */
+    long getCacheBytes();
+}
@@ -0,0 +1,169 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with log-linear buckets, in the manner of HdrHistogram: values
+ * are kept in microseconds with every power of two split into 16 sub-buckets, so any recorded
+ * latency, from a microsecond to days, is reported within about 6% of its true value. Recording
+ * is a handful of atomic increments and never allocates.
+ *
+ * @author Stefan Paetow
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+    /** Number of sub-buckets per power of two, as a power of two. */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Values below this are counted exactly. */
+    private static final long LINEAR_LIMIT = 2L * SUB_BUCKETS;
+
+    /** Enough buckets for any positive long. */
+    private static final int BUCKET_COUNT = bucketIndex(Long.MAX_VALUE) + 1;
+
+    /** Number of samples per bucket. */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong count = new AtomicLong();
+
+    /** Sum of all samples in microseconds. */
+    private final AtomicLong sum = new AtomicLong();
+
+    /** Largest sample in microseconds. */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param latency The latency in nanoseconds
+     */
+    public void record(final long latency) {
+        final long micros = Math.max(TimeUnit.NANOSECONDS.toMicros(latency), 0L);
+        this.counts.incrementAndGet(bucketIndex(micros));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(micros);
+
+        long largest = this.max.get();
+        while (micros > largest && !this.max.compareAndSet(largest, micros)) {
+            largest = this.max.get();
+        }
+    }
+
+    /**
+     * Records the time elapsed since the given start.
+     *
+     * @param start The System.nanoTime() at which the measured operation started
+     */
+    public void recordSince(final long start) {
+        record(System.nanoTime() - start);
+    }
+
+    @Override
+    public long getCount() {
+        return this.count.get();
+    }
+
+    @Override
+    public double getMean() {
+        final long samples = this.count.get();
+        return samples == 0L ? 0.0 : this.sum.get() / 1000.0 / samples;
+    }
+
+    @Override
+    public double getMax() {
+        return this.max.get() / 1000.0;
+    }
+
+    @Override
+    public double getMedian() {
+        return getPercentile(50.0);
+    }
+
+    @Override
+    public double get90thPercentile() {
+        return getPercentile(90.0);
+    }
+
+    @Override
+    public double get99thPercentile() {
+        return getPercentile(99.0);
+    }
+
+    @Override
+    public double get999thPercentile() {
+        return getPercentile(99.9);
+    }
+
+    /**
+     * Reports the upper end of the bucket holding the requested sample. Samples recorded while the
+     * buckets are scanned may or may not be included.
+     */
+    @Override
+    public double getPercentile(final double percentile) {
+        final long samples = this.count.get();
+        if (samples == 0L) {
+            return 0.0;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * samples));
+        long seen = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), this.max.get()) / 1000.0;
+            }
+        }
+        return this.max.get() / 1000.0;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            this.counts.set(i, 0L);
+        }
+        this.count.set(0L);
+        this.sum.set(0L);
+        this.max.set(0L);
+    }
+
+    /**
+     * @return the bucket counting the value: the value itself while it is small, and otherwise its
+     * power of two and its top bits below the leading one
+     */
+    private static int bucketIndex(final long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the largest value counted by the bucket
+     */
+    private static long bucketUpperBound(final int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        final int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        final long top = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.ac.diamond.cas.adaptors.radius.RadiusClientPool;
+
+/**
+ * Counts the outcomes of the exchanges with one RADIUS server and times their stages: waiting
+ * for a pooled client, and the exchange itself, retransmissions and every EAP round included.
+ *
+ * @author Stefan Paetow
+ */
+public class RadiusServerMetrics implements RadiusServerMetricsMBean {
+
+    /** JMX type of the server MBeans. */
+    public static final String TYPE = "RadiusServer";
+
+    /** Time spent waiting for a pooled client. */
+    private final LatencyHistogram clientWait = new LatencyHistogram();
+
+    /** Time from the first transmission to the final answer. */
+    private final LatencyHistogram exchange = new LatencyHistogram();
+
+    private final AtomicLong accepts = new AtomicLong();
+
+    private final AtomicLong rejects = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    /** The server's client pool, whose retransmission timer is reported. */
+    private final RadiusClientPool radiusClientPool;
+
+    /**
+     * @param clientPool The server's client pool
+     */
+    public RadiusServerMetrics(final RadiusClientPool clientPool) {
+        this.radiusClientPool = clientPool;
+    }
+
+    /**
+     * Publishes the counters and histograms under the given name.
+     *
+     * @param name The value of the name key of the MBeans
+     */
+    public void register(final String name) {
+        JmxSupport.register(this, TYPE, name, null);
+        JmxSupport.register(this.clientWait, TYPE, name, "clientWait");
+        JmxSupport.register(this.exchange, TYPE, name, "exchange");
+    }
+
+    public LatencyHistogram getClientWait() {
+        return this.clientWait;
+    }
+
+    public LatencyHistogram getExchange() {
+        return this.exchange;
+    }
+
+    public void recordAccept() {
+        this.accepts.incrementAndGet();
+    }
+
+    public void recordReject() {
+        this.rejects.incrementAndGet();
+    }
+
+    public void recordTimeout() {
+        this.timeouts.incrementAndGet();
+    }
+
+    public void recordError() {
+        this.errors.incrementAndGet();
+    }
+
+    @Override
+    public long getAccepts() {
+        return this.accepts.get();
+    }
+
+    @Override
+    public long getRejects() {
+        return this.rejects.get();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return this.timeouts.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return this.errors.get();
+    }
+
+    @Override
+    public long getRetransmissions() {
+        return this.radiusClientPool.getRetransmissionTimer().getRetransmissionCount();
+    }
+
+    @Override
+    public double getSmoothedRoundTripTime() {
+        return this.radiusClientPool.getRetransmissionTimer().getSmoothedRoundTripTime();
+    }
+
+    @Override
+    public long getRetransmissionTimeout() {
+        return this.radiusClientPool.getRetransmissionTimer().getRetransmissionTimeout();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.metrics;
+
+/**
+ * JMX view of the outcomes of the exchanges with one RADIUS server. Latency histograms are
+ * published as separate MBeans.
+ *
+ * @author Stefan Paetow
+ */
+public interface RadiusServerMetricsMBean {
+
+    /** @return the number of Access-Accepts received */
+    long getAccepts();
+
+    /** @return the number of other answers received, Access-Rejects and unfinished EAP included */
+    long getRejects();
+
+    /** @return the number of exchanges that had no answer after all retransmissions */
+    long getTimeouts();
+
+    /** @return the number of exchanges that failed otherwise */
+    long getErrors();
+
+    /** @return the number of requests transmitted again for lack of an answer */
+    long getRetransmissions();
+
+    /** @return the smoothed round-trip time in milliseconds, or 0 until measured */
+    double getSmoothedRoundTripTime();
+
+    /** @return the current timeout in milliseconds of a first transmission */
+    long getRetransmissionTimeout();
+}
@@ -0,0 +1,132 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.adaptors.radius;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import net.jradius.exception.RadiusException;
+import net.jradius.packet.AccountingRequest;
+import net.jradius.packet.PacketFactory;
+import net.jradius.packet.RadiusFormat;
+import net.jradius.packet.RadiusPacket;
+import net.jradius.packet.RadiusRequest;
+import net.jradius.packet.RadiusResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A JRadius client transport over a private UDP socket, like JRadius' own, whose waits for a reply
+ * are set to the millisecond. Replies that do not match the identifier of the request in
+ * progress, or whose Response Authenticator does not verify, such as late answers to an earlier
+ * exchange, are dropped rather than failing it, as {@link RadiusChannelMultiplexer} drops them.
+ *
+ * @author Stefan Paetow
+ */
+public class DatagramClientTransport extends RetransmittingClientTransport {
+
+    /** Largest RADIUS packet permitted by RFC 2865. */
+    private static final int MAX_PACKET_LENGTH = 4096;
+
+    /** Logger instance. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DatagramClientTransport.class);
+
+    /** The client's own socket. */
+    private final DatagramSocket socket;
+
+    /** Packs outgoing requests; reused, as the transport carries one exchange at a time. */
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(MAX_PACKET_LENGTH);
+
+    /** Receives replies; reused likewise. */
+    private final byte[] receiveBuffer = new byte[MAX_PACKET_LENGTH];
+
+    /**
+     * @param remoteInetAddress The RADIUS server address
+     * @param sharedSecret The shared secret
+     * @param authPort The authentication port
+     * @param acctPort The accounting port
+     * @param socketTimeout Time to wait for each reply when no timer is set, in milliseconds
+     * @throws SocketException if the socket cannot be opened
+     */
+    public DatagramClientTransport(final InetAddress remoteInetAddress, final String sharedSecret,
+            final int authPort, final int acctPort, final int socketTimeout) throws SocketException {
+        this.socket = new DatagramSocket();
+        this.remoteInetAddress = remoteInetAddress;
+        this.sharedSecret = sharedSecret;
+        this.authPort = authPort;
+        this.acctPort = acctPort;
+        this.socketTimeout = socketTimeout;
+    }
+
+    @Override
+    protected void send(final RadiusRequest request, final int attempt) throws Exception {
+        final int port = request instanceof AccountingRequest ? this.acctPort : this.authPort;
+        this.sendBuffer.clear();
+        RadiusFormat.getInstance().packPacket(request, this.sharedSecret, this.sendBuffer, true);
+        this.socket.send(new DatagramPacket(this.sendBuffer.array(), this.sendBuffer.position(),
+                this.remoteInetAddress, port));
+    }
+
+    @Override
+    protected RadiusResponse receive(final RadiusRequest request, final long timeout) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        final DatagramPacket datagram = new DatagramPacket(this.receiveBuffer, this.receiveBuffer.length);
+        while (true) {
+            // a socket timeout of 0 would wait forever
+            final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0L) {
+                return null;
+            }
+            this.socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+            datagram.setLength(this.receiveBuffer.length);
+            try {
+                this.socket.receive(datagram);
+            } catch (final SocketTimeoutException e) {
+                return null;
+            }
+
+            if (datagram.getLength() < 2 || (this.receiveBuffer[1] & 0xff) != request.getIdentifier()
+                    || !this.remoteInetAddress.equals(datagram.getAddress())) {
+                LOGGER.debug("Dropping unexpected datagram from {}", datagram.getSocketAddress());
+                continue;
+            }
+
+            final RadiusPacket response = PacketFactory.parse(datagram, request.isRecyclable());
+            if (!(response instanceof RadiusResponse)) {
+                throw new RadiusException("Received something other than a RADIUS Response to a Request");
+            }
+            // a late reply to an earlier request on this socket, or a spoofed one, must not end the exchange
+            if (!verifyAuthenticator(request, (RadiusResponse) response)) {
+                LOGGER.debug("Dropping RADIUS reply from {} with identifier {}: bad authenticator",
+                        datagram.getSocketAddress(), request.getIdentifier());
+                continue;
+            }
+            return (RadiusResponse) response;
+        }
+    }
+
+    @Override
+    public void close() {
+        this.socket.close();
+    }
+}
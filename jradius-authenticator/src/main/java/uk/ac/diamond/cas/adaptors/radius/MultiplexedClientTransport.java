@@ -0,0 +1,124 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.adaptors.radius;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import net.jradius.exception.RadiusException;
+import net.jradius.packet.AccountingRequest;
+import net.jradius.packet.PacketFactory;
+import net.jradius.packet.RadiusFormat;
+import net.jradius.packet.RadiusPacket;
+import net.jradius.packet.RadiusRequest;
+import net.jradius.packet.RadiusResponse;
+
+import uk.ac.diamond.cas.adaptors.radius.RadiusChannelMultiplexer.PendingReply;
+
+/**
+ * A JRadius client transport that sends and receives through a shared {@link RadiusChannelMultiplexer}
+ * instead of a private socket. Multi-round EAP exchanges are still driven by JRadius; each round
+ * reserves a fresh identifier from the multiplexer for its duration.
+ *
+ * Like any JRadius transport, an instance carries one exchange at a time.
+ *
+ * @author Stefan Paetow
+ */
+public class MultiplexedClientTransport extends RetransmittingClientTransport {
+
+    /** Largest RADIUS packet permitted by RFC 2865. */
+    private static final int MAX_PACKET_LENGTH = 4096;
+
+    /** Carries the datagrams. */
+    private final RadiusChannelMultiplexer multiplexer;
+
+    /** The exchange in progress, if any. */
+    private PendingReply pending;
+
+    /**
+     * @param multiplexer The shared multiplexer
+     * @param remoteInetAddress The RADIUS server address
+     * @param sharedSecret The shared secret
+     * @param authPort The authentication port
+     * @param acctPort The accounting port
+     * @param socketTimeout Time to wait for each reply, in milliseconds
+     */
+    public MultiplexedClientTransport(final RadiusChannelMultiplexer multiplexer, final InetAddress remoteInetAddress,
+            final String sharedSecret, final int authPort, final int acctPort, final int socketTimeout) {
+        this.multiplexer = multiplexer;
+        this.remoteInetAddress = remoteInetAddress;
+        this.sharedSecret = sharedSecret;
+        this.authPort = authPort;
+        this.acctPort = acctPort;
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * Reserves a fresh identifier for the round before the Message-Authenticator is computed over
+     * the request. Unlike the socket transport, an interrupt ends the wait for a reply at once, so
+     * cancelled asynchronous logins stop waiting.
+     */
+    @Override
+    protected void beginExchange(final RadiusRequest request) throws RadiusException {
+        final int port = request instanceof AccountingRequest ? this.acctPort : this.authPort;
+        this.pending = this.multiplexer.register(new InetSocketAddress(this.remoteInetAddress, port), this.sharedSecret);
+        request.setIdentifier(this.pending.getIdentifier());
+    }
+
+    /**
+     * Frees the identifier whatever the outcome of the round.
+     */
+    @Override
+    protected void endExchange() {
+        this.multiplexer.release(this.pending);
+        this.pending = null;
+    }
+
+    @Override
+    protected void send(final RadiusRequest request, final int attempt) throws Exception {
+        final ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_LENGTH);
+        RadiusFormat.getInstance().packPacket(request, this.sharedSecret, buffer, true);
+        buffer.flip();
+        this.multiplexer.send(this.pending, buffer);
+    }
+
+    /**
+     * The multiplexer has already checked the Response Authenticator of the reply.
+     */
+    @Override
+    protected RadiusResponse receive(final RadiusRequest request, final long timeout) throws Exception {
+        final byte[] reply = this.pending.await(timeout);
+        if (reply == null) {
+            return null;
+        }
+
+        final RadiusPacket response = PacketFactory.parse(new DatagramPacket(reply, reply.length), request.isRecyclable());
+        if (!(response instanceof RadiusResponse)) {
+            throw new RadiusException("Received something other than a RADIUS Response to a Request");
+        }
+        return (RadiusResponse) response;
+    }
+
+    /**
+     * The channels belong to the multiplexer, so there is nothing to close.
+     */
+    @Override
+    public void close() {
+    }
+}
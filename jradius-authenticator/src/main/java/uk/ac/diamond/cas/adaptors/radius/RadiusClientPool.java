@@ -0,0 +1,456 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.adaptors.radius;
+
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import net.jradius.client.RadiusClient;
+import net.jradius.exception.RadiusException;
+
+import org.jasig.cas.adaptors.radius.RadiusClientFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of ready-to-use RADIUS clients created by a single {@link RadiusClientFactory}.
+ * Clients are borrowed for the duration of one RADIUS exchange and then returned, so that the
+ * underlying UDP socket is reused instead of being opened and closed for every login.
+ *
+ * A client that was involved in a failed exchange must be returned as not reusable: it is closed
+ * rather than pooled, so that a late reply sitting in its socket can never be mistaken for the
+ * answer to a later request. Idle clients are evicted once they exceed the maximum idle time.
+ *
+ * If a {@link RadiusChannelMultiplexer} is set, the pooled clients own no socket at all and carry
+ * their exchanges over the multiplexer's shared channels instead.
+ *
+ * All clients of a pool share one {@link RetransmissionTimer}, which adapts the wait for each
+ * reply to the round-trip times measured to the server. The factory's socket timeout is only the
+ * wait until the first round trip has been measured.
+ *
+ * Declare the pool with destroy-method="close" so that idle sockets are released on shutdown.
+ *
+ * @author Stefan Paetow
+ */
+public class RadiusClientPool {
+
+    /** Default maximum number of clients, idle or borrowed, {@value}. */
+    public static final int DEFAULT_MAX_TOTAL = 8;
+
+    /** Default maximum number of idle clients kept in the pool, {@value}. */
+    public static final int DEFAULT_MAX_IDLE = 8;
+
+    /** Default time in milliseconds an idle client may stay in the pool, {@value}. */
+    public static final long DEFAULT_MAX_IDLE_TIME = 60000L;
+
+    /** Default time in milliseconds to wait for a client when the pool is exhausted, {@value}. */
+    public static final long DEFAULT_MAX_WAIT = 5000L;
+
+    /** Logger instance. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(RadiusClientPool.class);
+
+    /** Produces the RADIUS client instances held by this pool. */
+    @NotNull
+    private final RadiusClientFactory clientFactory;
+
+    /** Maximum number of clients, idle or borrowed. */
+    @Min(1)
+    private int maxTotal = DEFAULT_MAX_TOTAL;
+
+    /** Maximum number of idle clients kept in the pool. */
+    @Min(0)
+    private int maxIdle = DEFAULT_MAX_IDLE;
+
+    /** Time in milliseconds an idle client may stay in the pool; 0 to keep idle clients forever. */
+    @Min(0)
+    private long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+
+    /** Time in milliseconds to wait for a client when the pool is exhausted; 0 to fail immediately. */
+    @Min(0)
+    private long maxWait = DEFAULT_MAX_WAIT;
+
+    /** Carries the exchanges of multiplexed clients; null for a socket per client. */
+    private RadiusChannelMultiplexer multiplexer;
+
+    /** Whether the wait for each reply adapts to the measured round-trip times. */
+    private boolean adaptiveTimeouts = true;
+
+    /** Advises the wait for each reply; created from the factory's socket timeout unless set. */
+    private RetransmissionTimer retransmissionTimer;
+
+    /** Factory-configured client whose settings the pooled clients copy. */
+    private RadiusClient prototype;
+
+    /** Idle clients, most recently returned first. */
+    private final Deque<PooledClient> idleClients = new ArrayDeque<PooledClient>();
+
+    /** Guards the idle clients and the active count. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled whenever a client is returned or invalidated. */
+    private final Condition clientReleased = this.lock.newCondition();
+
+    /** Number of clients currently borrowed. */
+    private int numActive;
+
+    /** Set once the pool has been closed. */
+    private boolean closed;
+
+    /**
+     * @param clientFactory The factory used to create the pooled clients
+     */
+    public RadiusClientPool(final RadiusClientFactory clientFactory) {
+        this.clientFactory = clientFactory;
+    }
+
+    /**
+     * Borrows a client from the pool, creating one if no valid idle client is available and the pool
+     * is not exhausted. Waits up to maxWait milliseconds for a client to be returned otherwise.
+     *
+     * @return a RADIUS client that must be handed back through
+     * {@link #returnClient(RetransmittingRadiusClient, boolean)}
+     * @throws RadiusException if no client became available in time, the pool is closed, or a socket
+     * could not be opened
+     */
+    public RetransmittingRadiusClient borrowClient() throws RadiusException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.maxWait);
+        final Deque<RetransmittingRadiusClient> staleClients = new ArrayDeque<RetransmittingRadiusClient>();
+
+        this.lock.lock();
+        try {
+            while (true) {
+                if (this.closed) {
+                    throw new RadiusException("RADIUS client pool is closed");
+                }
+
+                final PooledClient pooled = this.idleClients.pollFirst();
+                if (pooled != null) {
+                    if (validateClient(pooled)) {
+                        this.numActive++;
+                        return pooled.client;
+                    }
+                    // expired: close it outside the lock and look again
+                    staleClients.add(pooled.client);
+                    continue;
+                }
+
+                if (this.numActive < this.maxTotal) {
+                    this.numActive++;
+                    break;
+                }
+
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0L) {
+                    throw new RadiusException(String.format(
+                            "Timed out after %d ms waiting for a RADIUS client (%d in use)", this.maxWait, this.numActive));
+                }
+                try {
+                    this.clientReleased.awaitNanos(remaining);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RadiusException("Interrupted while waiting for a RADIUS client");
+                }
+            }
+        } finally {
+            this.lock.unlock();
+            for (final RetransmittingRadiusClient staleClient : staleClients) {
+                LOGGER.debug("Evicting idle RADIUS client for {}", staleClient.getRemoteInetAddress());
+                staleClient.close();
+            }
+        }
+
+        try {
+            return createClient();
+        } catch (final RuntimeException e) {
+            releasePermit();
+            throw e;
+        } catch (final RadiusException e) {
+            releasePermit();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands a borrowed client back to the pool.
+     *
+     * @param client The client obtained from {@link #borrowClient()}
+     * @param reusable false if the exchange failed and the client must be closed instead of pooled
+     */
+    public void returnClient(final RetransmittingRadiusClient client, final boolean reusable) {
+        boolean pooled = false;
+
+        this.lock.lock();
+        try {
+            this.numActive--;
+            if (reusable && !this.closed && this.idleClients.size() < this.maxIdle) {
+                this.idleClients.offerFirst(new PooledClient(client));
+                pooled = true;
+            }
+            this.clientReleased.signal();
+        } finally {
+            this.lock.unlock();
+        }
+
+        if (!pooled) {
+            client.close();
+        }
+    }
+
+    /**
+     * Closes every idle client that has exceeded the maximum idle time. Borrowing and returning
+     * already evict lazily; this may additionally be called from a scheduler.
+     */
+    public void evictIdleClients() {
+        final Deque<PooledClient> evicted = new ArrayDeque<PooledClient>();
+
+        this.lock.lock();
+        try {
+            final Iterator<PooledClient> iterator = this.idleClients.descendingIterator();
+            while (iterator.hasNext()) {
+                final PooledClient pooled = iterator.next();
+                if (validateClient(pooled)) {
+                    // the rest were returned more recently
+                    break;
+                }
+                iterator.remove();
+                evicted.add(pooled);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        for (final PooledClient pooled : evicted) {
+            pooled.client.close();
+        }
+    }
+
+    /**
+     * Closes all idle clients and refuses further borrowing. Borrowed clients are closed as they are returned.
+     */
+    public void close() {
+        final Deque<PooledClient> evicted;
+
+        this.lock.lock();
+        try {
+            this.closed = true;
+            evicted = new ArrayDeque<PooledClient>(this.idleClients);
+            this.idleClients.clear();
+            this.clientReleased.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+
+        for (final PooledClient pooled : evicted) {
+            pooled.client.close();
+        }
+    }
+
+    /**
+     * @return the number of clients currently borrowed
+     */
+    public int getNumActive() {
+        this.lock.lock();
+        try {
+            return this.numActive;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of idle clients in the pool
+     */
+    public int getNumIdle() {
+        this.lock.lock();
+        try {
+            return this.idleClients.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the maximum number of clients, idle or borrowed.
+     *
+     * @param maxTotal Maximum number of clients.
+     */
+    public void setMaxTotal(final int maxTotal) {
+        this.maxTotal = maxTotal;
+    }
+
+    /**
+     * Sets the maximum number of idle clients kept in the pool.
+     *
+     * @param maxIdle Maximum number of idle clients.
+     */
+    public void setMaxIdle(final int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Sets the time an idle client may stay in the pool before it is closed.
+     *
+     * @param maxIdleTime Idle time in milliseconds; 0 to keep idle clients forever.
+     */
+    public void setMaxIdleTime(final long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    /**
+     * Sets the time to wait for a client when the pool is exhausted.
+     *
+     * @param maxWait Wait time in milliseconds; 0 to fail immediately.
+     */
+    public void setMaxWait(final long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Carries the exchanges of all clients created from now on over the given multiplexer.
+     *
+     * @param multiplexer The shared multiplexer; null for a socket per client.
+     */
+    public void setMultiplexer(final RadiusChannelMultiplexer multiplexer) {
+        this.multiplexer = multiplexer;
+    }
+
+    /**
+     * Sets whether the wait for each reply adapts to the measured round-trip times, or is always
+     * the factory's socket timeout.
+     *
+     * @param adaptiveTimeouts false for the fixed socket timeout; defaults to true.
+     */
+    public void setAdaptiveTimeouts(final boolean adaptiveTimeouts) {
+        this.adaptiveTimeouts = adaptiveTimeouts;
+    }
+
+    /**
+     * Sets the timer advising the wait for each reply, to tune its bounds and jitter.
+     *
+     * @param retransmissionTimer The timer; defaults to one starting from the factory's socket timeout.
+     */
+    public synchronized void setRetransmissionTimer(final RetransmissionTimer retransmissionTimer) {
+        this.retransmissionTimer = retransmissionTimer;
+    }
+
+    /**
+     * @return the timer advising the wait for each reply
+     */
+    public synchronized RetransmissionTimer getRetransmissionTimer() {
+        if (this.retransmissionTimer == null) {
+            this.retransmissionTimer = new RetransmissionTimer(getSocketTimeout(getPrototype()));
+        }
+        return this.retransmissionTimer;
+    }
+
+    /**
+     * @return a new client with the factory's settings, either with a socket of its own or bound to the multiplexer
+     * @throws RadiusException if a socket could not be opened
+     */
+    private RetransmittingRadiusClient createClient() throws RadiusException {
+        final RadiusClient template = getPrototype();
+        final RadiusChannelMultiplexer channels = this.multiplexer;
+        final RetransmittingClientTransport transport;
+        if (channels != null) {
+            transport = new MultiplexedClientTransport(channels, template.getRemoteInetAddress(),
+                    template.getSharedSecret(), template.getAuthPort(), template.getAcctPort(), getSocketTimeout(template));
+        } else {
+            try {
+                transport = new DatagramClientTransport(template.getRemoteInetAddress(),
+                        template.getSharedSecret(), template.getAuthPort(), template.getAcctPort(), getSocketTimeout(template));
+            } catch (final SocketException e) {
+                throw new RadiusException(e);
+            }
+        }
+
+        if (this.adaptiveTimeouts) {
+            transport.setRetransmissionTimer(getRetransmissionTimer());
+        }
+        return new RetransmittingRadiusClient(transport);
+    }
+
+    /**
+     * @return the client's socket timeout in milliseconds; JRadius reports it in seconds
+     */
+    private static int getSocketTimeout(final RadiusClient client) {
+        return client.getSocketTimeout() * 1000;
+    }
+
+    /**
+     * The client factory exposes its settings only through the clients it makes, so one client is
+     * created (and its socket closed straight away) to read them.
+     *
+     * @return the factory-configured client
+     */
+    private synchronized RadiusClient getPrototype() {
+        if (this.prototype == null) {
+            final RadiusClient client = this.clientFactory.newInstance();
+            client.close();
+            this.prototype = client;
+        }
+        return this.prototype;
+    }
+
+    /**
+     * Validates an idle client before it is handed out.
+     *
+     * @param pooled The idle client
+     * @return true if the client can be borrowed, false if it must be closed
+     */
+    private boolean validateClient(final PooledClient pooled) {
+        if (this.maxIdleTime > 0L
+                && System.nanoTime() - pooled.idleSince > TimeUnit.MILLISECONDS.toNanos(this.maxIdleTime)) {
+            return false;
+        }
+        return pooled.client.getRemoteInetAddress() != null;
+    }
+
+    /**
+     * Gives back the slot taken for a client that could not be created.
+     */
+    private void releasePermit() {
+        this.lock.lock();
+        try {
+            this.numActive--;
+            this.clientReleased.signal();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * An idle client and the time it was returned to the pool.
+     */
+    private static final class PooledClient {
+
+        private final RetransmittingRadiusClient client;
+
+        private final long idleSince = System.nanoTime();
+
+        private PooledClient(final RetransmittingRadiusClient client) {
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.adaptors.radius;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+
+/**
+ * Works out how long to wait for each transmission of a request to one RADIUS server, the way TCP
+ * estimates its retransmission timeout (RFC 6298). The smoothed round-trip time and its variance
+ * are tracked from replies to first transmissions only (Karn's algorithm), and the timeout is
+ * doubled for every retransmission, capped at the maximum timeout, and randomised by the jitter
+ * factor as RFC 5080 recommends for RADIUS clients. A first transmission that goes unanswered
+ * also backs off the timeout of later requests until a reply is measured again.
+ *
+ * A timer is shared by all the clients of a {@link RadiusClientPool}, and so by all exchanges
+ * with the same server.
+ *
+ * @author Stefan Paetow
+ */
+public class RetransmissionTimer {
+
+    /** Default lower bound in milliseconds for the timeout of a transmission, {@value}. */
+    public static final long DEFAULT_MIN_TIMEOUT = 200L;
+
+    /** Default upper bound in milliseconds for the timeout of a transmission, {@value}. */
+    public static final long DEFAULT_MAX_TIMEOUT = 16000L;
+
+    /** Default randomisation factor applied to every timeout, {@value}. */
+    public static final double DEFAULT_JITTER = 0.1;
+
+    /** Clock granularity added to the variance term, in nanoseconds. */
+    private static final long GRANULARITY = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    /** Largest number of doublings applied to the timeout. */
+    private static final int MAX_BACKOFF = 16;
+
+    /** Timeout in milliseconds until the first round trip has been measured. */
+    @Min(1)
+    private final long initialTimeout;
+
+    /** Lower bound in milliseconds for the timeout of a transmission. */
+    @Min(1)
+    private long minTimeout = DEFAULT_MIN_TIMEOUT;
+
+    /** Upper bound in milliseconds for the timeout of a transmission. */
+    @Min(1)
+    private long maxTimeout = DEFAULT_MAX_TIMEOUT;
+
+    /** Randomisation factor; each timeout is scaled by a random value within 1 plus or minus this. */
+    @DecimalMin("0.0")
+    @DecimalMax("0.5")
+    private double jitter = DEFAULT_JITTER;
+
+    /** Smoothed round-trip time in nanoseconds, or 0 until measured; guarded by this. */
+    private long smoothedRoundTripTime;
+
+    /** Round-trip time variance in nanoseconds; guarded by this. */
+    private long roundTripTimeVariance;
+
+    /** Doublings carried over from unanswered first transmissions; guarded by this. */
+    private int backoff;
+
+    /** Number of retransmissions made under this timer. */
+    private final AtomicLong retransmissionCount = new AtomicLong();
+
+    /**
+     * @param initialTimeout The timeout in milliseconds until the first round trip has been measured
+     */
+    public RetransmissionTimer(final long initialTimeout) {
+        this.initialTimeout = initialTimeout;
+    }
+
+    /**
+     * @param attempt The transmission, 0 for the first
+     * @return the time in milliseconds to wait for a reply to the transmission
+     */
+    public long getTimeout(final int attempt) {
+        final long timeout;
+        synchronized (this) {
+            timeout = backOff(getRetransmissionTimeout(), this.backoff + Math.max(attempt, 0));
+        }
+        final double scale = 1.0 + this.jitter * (2.0 * ThreadLocalRandom.current().nextDouble() - 1.0);
+        return Math.max(1L, Math.round(timeout * scale));
+    }
+
+    /**
+     * Records the time between a first transmission and its reply.
+     *
+     * @param roundTripTime The round-trip time in nanoseconds
+     */
+    public synchronized void recordRoundTrip(final long roundTripTime) {
+        if (this.smoothedRoundTripTime == 0L) {
+            this.smoothedRoundTripTime = Math.max(roundTripTime, 1L);
+            this.roundTripTimeVariance = roundTripTime / 2;
+        } else {
+            final long error = Math.abs(this.smoothedRoundTripTime - roundTripTime);
+            this.roundTripTimeVariance = (3 * this.roundTripTimeVariance + error) / 4;
+            this.smoothedRoundTripTime = Math.max((7 * this.smoothedRoundTripTime + roundTripTime) / 8, 1L);
+        }
+        this.backoff = 0;
+    }
+
+    /**
+     * Records that a first transmission went unanswered. Of several concurrent exchanges timing out
+     * at the same backoff, only the first backs the timeout off further.
+     *
+     * @param timeout The time in milliseconds the transmission was given, as advised by {@link #getTimeout(int)}
+     */
+    public synchronized void recordTimeout(final long timeout) {
+        final long current = backOff(getRetransmissionTimeout(), this.backoff);
+        if (this.backoff < MAX_BACKOFF && timeout >= current * (1.0 - this.jitter)) {
+            this.backoff++;
+        }
+    }
+
+    /**
+     * Records that a request was transmitted again.
+     */
+    public void recordRetransmission() {
+        this.retransmissionCount.incrementAndGet();
+    }
+
+    /**
+     * @return the number of retransmissions made under this timer
+     */
+    public long getRetransmissionCount() {
+        return this.retransmissionCount.get();
+    }
+
+    /**
+     * @return the smoothed round-trip time in milliseconds, or 0 until one has been measured
+     */
+    public synchronized double getSmoothedRoundTripTime() {
+        return this.smoothedRoundTripTime / 1e6;
+    }
+
+    /**
+     * @return the timeout in milliseconds of a first transmission, before backoff and jitter
+     */
+    public synchronized long getRetransmissionTimeout() {
+        if (this.smoothedRoundTripTime == 0L) {
+            return Math.max(this.initialTimeout, 1L);
+        }
+        final long timeout = this.smoothedRoundTripTime + Math.max(GRANULARITY, 4 * this.roundTripTimeVariance);
+        return Math.min(Math.max(TimeUnit.NANOSECONDS.toMillis(timeout), this.minTimeout), this.maxTimeout);
+    }
+
+    /**
+     * @return the timeout doubled the given number of times, up to the maximum timeout
+     */
+    private long backOff(final long timeout, final int doublings) {
+        return Math.min(timeout << Math.min(doublings, MAX_BACKOFF), this.maxTimeout);
+    }
+
+    /**
+     * Sets the lower bound for the timeout of a transmission.
+     *
+     * @param minTimeout Time in milliseconds; defaults to 200.
+     */
+    public void setMinTimeout(final long minTimeout) {
+        this.minTimeout = minTimeout;
+    }
+
+    /**
+     * Sets the upper bound for the timeout of a transmission, however often it has been backed off.
+     *
+     * @param maxTimeout Time in milliseconds; defaults to 16000.
+     */
+    public void setMaxTimeout(final long maxTimeout) {
+        this.maxTimeout = maxTimeout;
+    }
+
+    /**
+     * Sets the randomisation applied to every timeout, which keeps clients that lost replies at
+     * the same moment from retransmitting in lockstep.
+     *
+     * @param jitter The factor, between 0 and 0.5; defaults to 0.1.
+     */
+    public void setJitter(final double jitter) {
+        this.jitter = jitter;
+    }
+}
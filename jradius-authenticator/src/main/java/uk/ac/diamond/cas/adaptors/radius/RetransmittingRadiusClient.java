@@ -0,0 +1,54 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.adaptors.radius;
+
+import net.jradius.client.RadiusClient;
+
+/**
+ * A RADIUS client over a {@link RetransmittingClientTransport}, as lent out by {@link RadiusClientPool}.
+ *
+ * @author Stefan Paetow
+ */
+public class RetransmittingRadiusClient extends RadiusClient {
+
+    /** Carries the client's exchanges. */
+    private final RetransmittingClientTransport retransmittingTransport;
+
+    /**
+     * @param transport The transport carrying the client's exchanges
+     */
+    public RetransmittingRadiusClient(final RetransmittingClientTransport transport) {
+        super(transport);
+        this.retransmittingTransport = transport;
+    }
+
+    /**
+     * Bounds the exchanges that follow, including every round of a multi-round EAP exchange.
+     *
+     * @param deadline The System.nanoTime() by which the exchanges must be over; 0 for none.
+     */
+    public void setDeadline(final long deadline) {
+        this.retransmittingTransport.setDeadline(deadline);
+    }
+
+    /**
+     * @param measured false to keep the exchanges that follow off the retransmission timer; defaults to true.
+     */
+    public void setMeasured(final boolean measured) {
+        this.retransmittingTransport.setMeasured(measured);
+    }
+}
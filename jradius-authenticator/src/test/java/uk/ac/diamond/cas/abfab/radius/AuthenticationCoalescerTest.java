@@ -0,0 +1,130 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Stefan Paetow
+ */
+public class AuthenticationCoalescerTest extends TestCase {
+
+    private final AuthenticationCoalescer<String> coalescer = new AuthenticationCoalescer<String>();
+
+    public void testKeysDependOnUsernameAndPassword() {
+        assertEquals(this.coalescer.getKey("alice", "secret"), this.coalescer.getKey("alice", "secret"));
+        assertFalse(this.coalescer.getKey("alice", "secret").equals(this.coalescer.getKey("alice", "other")));
+        assertFalse(this.coalescer.getKey("ab", "c").equals(this.coalescer.getKey("a", "bc")));
+        assertFalse(this.coalescer.getKey("alice", "secret")
+                .equals(new AuthenticationCoalescer<String>().getKey("alice", "secret")));
+    }
+
+    public void testFollowerSharesTheLeadersOutcome() throws Exception {
+        final AuthenticationCoalescer.Key key = this.coalescer.getKey("alice", "secret");
+        final CompletableFuture<String> leader = new CompletableFuture<String>();
+        assertNull(this.coalescer.join(key, leader));
+
+        final CompletableFuture<String> follower = this.coalescer.join(key, new CompletableFuture<String>());
+        assertNotNull(follower);
+        assertFalse(follower.isDone());
+
+        leader.complete("alice@example.org");
+        assertEquals("alice@example.org", follower.get(10L, TimeUnit.SECONDS));
+    }
+
+    public void testFollowerSharesTheLeadersFailure() throws Exception {
+        final AuthenticationCoalescer.Key key = this.coalescer.getKey("alice", "wrong");
+        final CompletableFuture<String> leader = new CompletableFuture<String>();
+        this.coalescer.join(key, leader);
+        final CompletableFuture<String> follower = this.coalescer.join(key, new CompletableFuture<String>());
+
+        final IllegalStateException failure = new IllegalStateException("rejected");
+        leader.completeExceptionally(failure);
+        try {
+            follower.get(10L, TimeUnit.SECONDS);
+            fail("expected the leader's failure");
+        } catch (final ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    public void testCancellingAFollowerLeavesTheLeaderRunning() throws Exception {
+        final AuthenticationCoalescer.Key key = this.coalescer.getKey("alice", "secret");
+        final CompletableFuture<String> leader = new CompletableFuture<String>();
+        this.coalescer.join(key, leader);
+        final CompletableFuture<String> cancelled = this.coalescer.join(key, new CompletableFuture<String>());
+        final CompletableFuture<String> waiting = this.coalescer.join(key, new CompletableFuture<String>());
+
+        cancelled.cancel(true);
+        assertFalse(leader.isDone());
+        leader.complete("alice@example.org");
+        assertEquals("alice@example.org", waiting.get(10L, TimeUnit.SECONDS));
+    }
+
+    public void testNextLoginLeadsOnceTheExchangeCompletes() {
+        final AuthenticationCoalescer.Key key = this.coalescer.getKey("alice", "secret");
+        final CompletableFuture<String> first = new CompletableFuture<String>();
+        this.coalescer.join(key, first);
+        assertEquals(1, this.coalescer.getInFlightCount());
+
+        first.complete("alice@example.org");
+        assertEquals(0, this.coalescer.getInFlightCount());
+        assertNull(this.coalescer.join(key, new CompletableFuture<String>()));
+    }
+
+    public void testDifferentCredentialsAreNotCoalesced() {
+        assertNull(this.coalescer.join(this.coalescer.getKey("alice", "secret"), new CompletableFuture<String>()));
+        assertNull(this.coalescer.join(this.coalescer.getKey("bob", "secret"), new CompletableFuture<String>()));
+        assertEquals(2, this.coalescer.getInFlightCount());
+    }
+
+    public void testExactlyOneOfManyConcurrentLoginsLeads() throws InterruptedException {
+        final AuthenticationCoalescer.Key key = this.coalescer.getKey("alice", "secret");
+        final AtomicInteger leaders = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 32; i++) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (this.coalescer.join(key, new CompletableFuture<String>()) == null) {
+                    leaders.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, leaders.get());
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Stefan Paetow
+ */
+public class RadiusExecutorTest extends TestCase {
+
+    private static final int MAX_CONCURRENCY = 4;
+
+    private static final int TASKS = 200;
+
+    private RadiusExecutor executor;
+
+    @Override
+    protected void setUp() {
+        this.executor = new RadiusExecutor();
+    }
+
+    @Override
+    protected void tearDown() {
+        this.executor.close();
+    }
+
+    public void testMaxConcurrencyCapsRunningTasks() throws InterruptedException {
+        this.executor.setMaxConcurrency(MAX_CONCURRENCY);
+        assertCapped(runBlockingTasks());
+    }
+
+    public void testMaxConcurrencyCapsRunningTasksOnPlatformThreads() throws InterruptedException {
+        this.executor.setVirtualThreads(false);
+        this.executor.setMaxConcurrency(MAX_CONCURRENCY);
+        assertCapped(runBlockingTasks());
+        assertFalse(this.executor.isVirtual());
+    }
+
+    public void testUsesVirtualThreadsWhereAvailable() throws InterruptedException {
+        this.executor.setMaxConcurrency(MAX_CONCURRENCY);
+        runBlockingTasks();
+        boolean available;
+        try {
+            Thread.class.getMethod("ofVirtual");
+            available = true;
+        } catch (final NoSuchMethodException e) {
+            available = false;
+        }
+        assertEquals(available, this.executor.isVirtual());
+    }
+
+    public void testWithoutMaxConcurrencyTasksRunTogether() throws InterruptedException {
+        this.executor.setVirtualThreads(false);
+        assertTrue(runBlockingTasks() > MAX_CONCURRENCY);
+    }
+
+    public void testCloseRejectsNewTasks() throws InterruptedException {
+        this.executor.setMaxConcurrency(MAX_CONCURRENCY);
+        final CountDownLatch ran = new CountDownLatch(1);
+        this.executor.execute(() -> ran.countDown());
+        assertTrue(ran.await(10L, TimeUnit.SECONDS));
+
+        this.executor.close();
+        assertRejected(this.executor);
+    }
+
+    public void testCloseBeforeFirstUseRejectsNewTasks() {
+        this.executor.setVirtualThreads(false);
+        this.executor.close();
+        assertRejected(this.executor);
+    }
+
+    public void testCloseLetsSubmittedTasksFinish() throws InterruptedException {
+        this.executor.setVirtualThreads(false);
+        this.executor.setMaxConcurrency(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            this.executor.execute(() -> {
+                awaitQuietly(release);
+                finished.countDown();
+            });
+        }
+
+        this.executor.close();
+        release.countDown();
+        assertTrue(finished.await(10L, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Submits many more blocking tasks than the cap, and waits until they have all run.
+     *
+     * @return the largest number of tasks seen running at once
+     */
+    private int runBlockingTasks() throws InterruptedException {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(TASKS);
+        for (int i = 0; i < TASKS; i++) {
+            this.executor.execute(() -> {
+                final int now = running.incrementAndGet();
+                int seen;
+                while ((seen = peak.get()) < now && !peak.compareAndSet(seen, now)) {
+                    // retry
+                }
+                try {
+                    Thread.sleep(5L);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                    finished.countDown();
+                }
+            });
+        }
+        assertTrue("tasks did not finish", finished.await(60L, TimeUnit.SECONDS));
+        return peak.get();
+    }
+
+    private static void assertCapped(final int peak) {
+        assertTrue("peak of " + peak + " tasks running at once", peak <= MAX_CONCURRENCY);
+        // the tasks block, so the cap should have been reached
+        assertTrue("peak of " + peak + " tasks running at once", peak > 1);
+    }
+
+    private static void assertRejected(final RadiusExecutor executor) {
+        try {
+            executor.execute(() -> fail("task ran after close"));
+            fail("expected RejectedExecutionException");
+        } catch (final RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    private static void awaitQuietly(final CountDownLatch latch) {
+        try {
+            latch.await(10L, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
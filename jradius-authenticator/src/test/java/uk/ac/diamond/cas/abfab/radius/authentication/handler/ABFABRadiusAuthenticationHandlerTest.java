@@ -0,0 +1,165 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.authentication.handler;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jasig.cas.adaptors.radius.RadiusClientFactory;
+import org.jasig.cas.adaptors.radius.RadiusServer;
+import org.jasig.cas.authentication.principal.UsernamePasswordCredentials;
+
+import uk.ac.diamond.cas.abfab.radius.RadiusAccountant;
+
+/**
+ * @author Stefan Paetow
+ */
+public class ABFABRadiusAuthenticationHandlerTest extends TestCase {
+
+    private final ABFABRadiusAuthenticationHandler handler = new ABFABRadiusAuthenticationHandler();
+
+    public void testHedgedRequestGoesToTheNextServerWhenThePrimaryIsSlow() throws Exception {
+        final TestServer primary = new TestServer(3000L, Boolean.TRUE);
+        final TestServer secondary = new TestServer(0L, Boolean.TRUE);
+        this.handler.setServers(Arrays.<RadiusServer>asList(primary, secondary));
+        this.handler.setHedging(true);
+        this.handler.setHedgeDelay(100L);
+
+        final long start = System.nanoTime();
+        assertTrue(this.handler.authenticate(credentials("alice", "secret")));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000L);
+        assertEquals(1, primary.calls.get());
+        assertEquals(1, secondary.calls.get());
+    }
+
+    public void testNoHedgedRequestWhenThePrimaryAnswersInTime() throws Exception {
+        final TestServer primary = new TestServer(0L, Boolean.TRUE);
+        final TestServer secondary = new TestServer(0L, Boolean.TRUE);
+        this.handler.setServers(Arrays.<RadiusServer>asList(primary, secondary));
+        this.handler.setHedging(true);
+        this.handler.setHedgeDelay(500L);
+
+        assertTrue(this.handler.authenticate(credentials("alice", "secret")));
+        Thread.sleep(700L);
+        assertEquals(1, primary.calls.get());
+        assertEquals(0, secondary.calls.get());
+    }
+
+    public void testFirstHedgedAnswerWins() throws Exception {
+        // the hedged request is rejected before the slow primary would accept
+        final TestServer primary = new TestServer(1000L, Boolean.TRUE);
+        final TestServer secondary = new TestServer(0L, Boolean.FALSE);
+        this.handler.setServers(Arrays.<RadiusServer>asList(primary, secondary));
+        this.handler.setHedging(true);
+        this.handler.setHedgeDelay(100L);
+
+        assertFalse(this.handler.authenticateAsync(credentials("alice", "secret"))
+                .toCompletableFuture().get(10L, TimeUnit.SECONDS).booleanValue());
+    }
+
+    public void testFailedPrimaryWaitsForTheOutstandingHedgedRequest() throws Exception {
+        final TestServer primary = new TestServer(300L, new IllegalStateException("timed out"));
+        final TestServer secondary = new TestServer(600L, Boolean.TRUE);
+        this.handler.setServers(Arrays.<RadiusServer>asList(primary, secondary));
+        this.handler.setHedging(true);
+        this.handler.setHedgeDelay(100L);
+
+        // failoverOnException is off, yet the hedged request was already sent and may still answer
+        assertTrue(this.handler.authenticate(credentials("alice", "secret")));
+        assertEquals(1, secondary.calls.get());
+    }
+
+    public void testHedgedLoginFailsOnceNoExchangeIsOutstanding() throws Exception {
+        final TestServer primary = new TestServer(300L, new IllegalStateException("timed out"));
+        final TestServer secondary = new TestServer(400L, new IllegalStateException("timed out"));
+        this.handler.setServers(Arrays.<RadiusServer>asList(primary, secondary));
+        this.handler.setHedging(true);
+        this.handler.setHedgeDelay(100L);
+
+        assertFalse(this.handler.authenticateAsync(credentials("alice", "secret"))
+                .toCompletableFuture().get(10L, TimeUnit.SECONDS).booleanValue());
+        assertEquals(1, primary.calls.get());
+        assertEquals(1, secondary.calls.get());
+    }
+
+    public void testOnlyTheWinningHedgedAnswerIsAccounted() throws Exception {
+        final TestServer primary = new TestServer(500L, Boolean.TRUE);
+        final TestServer secondary = new TestServer(0L, Boolean.TRUE);
+        final AtomicInteger logins = new AtomicInteger();
+        this.handler.setServers(Arrays.<RadiusServer>asList(primary, secondary));
+        this.handler.setHedging(true);
+        this.handler.setHedgeDelay(100L);
+        this.handler.setRadiusAccountant(new RadiusAccountant(new RadiusClientFactory()) {
+            @Override
+            public String login(final String username) {
+                logins.incrementAndGet();
+                return username;
+            }
+        });
+
+        assertTrue(this.handler.authenticate(credentials("alice", "secret")));
+        // the primary accepts as well, but too late
+        Thread.sleep(700L);
+        assertEquals(1, primary.calls.get());
+        assertEquals(1, logins.get());
+    }
+
+    private static UsernamePasswordCredentials credentials(final String username, final String password) {
+        final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials();
+        credentials.setUsername(username);
+        credentials.setPassword(password);
+        return credentials;
+    }
+
+    /**
+     * A classic RADIUS server that answers after a delay, or fails.
+     */
+    private static final class TestServer implements RadiusServer {
+
+        private final long delay;
+
+        /** Boolean.TRUE to accept, Boolean.FALSE to reject, or the exception to throw. */
+        private volatile Object outcome;
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private TestServer(final long delay, final Object outcome) {
+            this.delay = delay;
+            this.outcome = outcome;
+        }
+
+        @Override
+        public boolean authenticate(final UsernamePasswordCredentials credentials) {
+            this.calls.incrementAndGet();
+            if (this.delay > 0L) {
+                try {
+                    Thread.sleep(this.delay);
+                } catch (final InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            final Object current = this.outcome;
+            if (current instanceof RuntimeException) {
+                throw (RuntimeException) current;
+            }
+            return ((Boolean) current).booleanValue();
+        }
+    }
+}
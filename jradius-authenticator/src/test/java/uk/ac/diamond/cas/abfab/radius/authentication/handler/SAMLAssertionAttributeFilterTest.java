@@ -0,0 +1,96 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.authentication.handler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import net.jradius.dictionary.Attr_UserName;
+import net.jradius.packet.attribute.AttributeFactory;
+import net.jradius.packet.attribute.AttributeList;
+
+import uk.ac.diamond.cas.abfab.radius.RadiusDictionaryLoader;
+
+/**
+ * @author Stefan Paetow
+ */
+public class SAMLAssertionAttributeFilterTest extends TestCase {
+
+    private static final String ASSERTION =
+            "<saml:Assertion xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"_a1\" Version=\"2.0\">"
+            + "<saml:Issuer>https://idp.example.org/idp/shibboleth</saml:Issuer>"
+            + "<saml:AttributeStatement>"
+            + "<saml:Attribute Name=\"urn:oid:2.5.4.3\">"
+            + "<saml:AttributeValue>Zoë Müller</saml:AttributeValue>"
+            + "</saml:Attribute>"
+            + "</saml:AttributeStatement>"
+            + "</saml:Assertion>";
+
+    private long type;
+
+    @Override
+    protected void setUp() throws Exception {
+        RadiusDictionaryLoader.load();
+        this.type = AttributeFactory.getTypeByName("SAML-AAA-Assertion");
+    }
+
+    public void testFragmentsAreReassembledInOrder() throws Exception {
+        final byte[] assertion = ASSERTION.getBytes(StandardCharsets.UTF_8);
+        final AttributeList attributes = new AttributeList();
+        attributes.add(new Attr_UserName("alice"));
+        addFragment(attributes, Arrays.copyOfRange(assertion, 0, 100));
+        addFragment(attributes, Arrays.copyOfRange(assertion, 100, 200));
+        // other attributes may come between the fragments
+        attributes.add(new Attr_UserName("bob"), false);
+        addFragment(attributes, Arrays.copyOfRange(assertion, 200, assertion.length));
+
+        final ByteBuffer bytes = new SAMLAssertionAttributeFilter(attributes).getAssertionBytes();
+        assertEquals(0, bytes.position());
+        assertEquals(assertion.length, bytes.limit());
+        assertEquals(assertion.length, bytes.capacity());
+        assertEquals(ASSERTION, StandardCharsets.UTF_8.decode(bytes).toString());
+    }
+
+    public void testCharacterSplitBetweenFragmentsComesOutWhole() throws Exception {
+        final byte[] assertion = ASSERTION.getBytes(StandardCharsets.UTF_8);
+        // split inside the two bytes of the first non-ASCII character
+        final int split = ASSERTION.indexOf('ë') + 1;
+        final AttributeList attributes = new AttributeList();
+        addFragment(attributes, Arrays.copyOfRange(assertion, 0, split));
+        addFragment(attributes, Arrays.copyOfRange(assertion, split, assertion.length));
+
+        assertEquals(ASSERTION, new SAMLAssertionAttributeFilter(attributes).getAssertion());
+    }
+
+    public void testEmptyAttributeListYieldsAnEmptyAssertion() throws Exception {
+        final SAMLAssertionAttributeFilter filter = new SAMLAssertionAttributeFilter(new AttributeList());
+        assertEquals(0, filter.getAssertionBytes().remaining());
+        assertEquals("", filter.getAssertion());
+    }
+
+    public void testAttributeListWithoutFragmentsYieldsAnEmptyAssertion() throws Exception {
+        final AttributeList attributes = new AttributeList();
+        attributes.add(new Attr_UserName("alice"));
+        assertEquals(0, new SAMLAssertionAttributeFilter(attributes).getAssertionBytes().remaining());
+    }
+
+    private void addFragment(final AttributeList attributes, final byte[] fragment) {
+        attributes.add(AttributeFactory.newAttribute(this.type, fragment, false), false);
+    }
+}
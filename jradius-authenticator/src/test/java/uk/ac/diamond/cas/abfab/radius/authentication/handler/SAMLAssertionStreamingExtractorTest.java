@@ -0,0 +1,108 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.authentication.handler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.AttributeNotFoundException;
+import javax.xml.stream.XMLStreamException;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Stefan Paetow
+ */
+public class SAMLAssertionStreamingExtractorTest extends TestCase {
+
+    private static final String EPPN = "urn:oid:1.3.6.1.4.1.5923.1.1.1.6";
+
+    private static final String AFFILIATION = "urn:oid:1.3.6.1.4.1.5923.1.1.1.9";
+
+    private static final String ASSERTION =
+            "<saml:Assertion xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\""
+            + " xmlns:xs=\"http://www.w3.org/2001/XMLSchema\""
+            + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" ID=\"_a1\" Version=\"2.0\">"
+            + "<saml:Issuer>https://idp.example.org/idp/shibboleth</saml:Issuer>"
+            + "<saml:Subject><saml:NameID>_b1</saml:NameID></saml:Subject>"
+            + "<saml:AttributeStatement>"
+            + "<saml:Attribute Name=\"" + AFFILIATION + "\">"
+            + "<saml:AttributeValue xsi:type=\"xs:string\">member@example.org</saml:AttributeValue>"
+            + "<saml:AttributeValue xsi:type=\"xs:string\"> staff@example.org </saml:AttributeValue>"
+            + "</saml:Attribute>"
+            + "<saml:Attribute Name=\"" + EPPN + "\">"
+            + "<saml:AttributeValue xsi:type=\"xs:string\"><![CDATA[user]]>@example.org</saml:AttributeValue>"
+            + "</saml:Attribute>"
+            + "<saml:Attribute Name=\"" + EPPN + "\">"
+            + "<saml:AttributeValue>second@example.org</saml:AttributeValue>"
+            + "</saml:Attribute>"
+            + "</saml:AttributeStatement>"
+            + "<saml:AttributeStatement>"
+            + "<saml:Attribute Name=\"urn:oid:2.5.4.42\">"
+            + "<saml:AttributeValue>Ignored</saml:AttributeValue>"
+            + "</saml:Attribute>"
+            + "</saml:AttributeStatement>"
+            + "</saml:Assertion>";
+
+    public void testGetAttributeValueReturnsFirstValueOfFirstAttribute() throws Exception {
+        assertEquals("user@example.org", new SAMLAssertionStreamingExtractor(ASSERTION).getAttributeValue(EPPN));
+    }
+
+    public void testGetAttributeValueFromBytes() throws Exception {
+        final ByteBuffer bytes = ByteBuffer.wrap(ASSERTION.getBytes(StandardCharsets.UTF_8));
+        assertEquals("user@example.org", new SAMLAssertionStreamingExtractor(bytes).getAttributeValue(EPPN));
+    }
+
+    public void testGetAttributeValuesKeepsDocumentOrderAndTrims() throws Exception {
+        final Map<String, List<String>> values = new SAMLAssertionStreamingExtractor(ASSERTION)
+                .getAttributeValues(Arrays.asList(AFFILIATION, EPPN));
+        assertEquals(2, values.size());
+        assertEquals(Arrays.asList("member@example.org", "staff@example.org"), values.get(AFFILIATION));
+        assertEquals(Arrays.asList("user@example.org"), values.get(EPPN));
+    }
+
+    public void testOnlyTheFirstAttributeStatementIsRead() throws Exception {
+        final Map<String, List<String>> values = new SAMLAssertionStreamingExtractor(ASSERTION).getAllAttributeValues();
+        assertEquals(2, values.size());
+        assertFalse(values.containsKey("urn:oid:2.5.4.42"));
+    }
+
+    public void testMissingAttributeIsReported() throws Exception {
+        try {
+            new SAMLAssertionStreamingExtractor(ASSERTION).getAttributeValue("urn:oid:2.5.4.42");
+            fail("expected AttributeNotFoundException");
+        } catch (final AttributeNotFoundException e) {
+            // expected
+        }
+    }
+
+    public void testDocumentThatIsNotAnAssertionYieldsNothing() throws Exception {
+        assertTrue(new SAMLAssertionStreamingExtractor("<Response/>").getAllAttributeValues().isEmpty());
+    }
+
+    public void testMalformedAssertionIsRejected() {
+        try {
+            new SAMLAssertionStreamingExtractor(ASSERTION.substring(0, ASSERTION.length() / 2)).getAllAttributeValues();
+            fail("expected XMLStreamException");
+        } catch (final XMLStreamException e) {
+            // expected
+        }
+    }
+}
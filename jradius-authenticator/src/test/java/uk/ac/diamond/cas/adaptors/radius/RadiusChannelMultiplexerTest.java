@@ -0,0 +1,179 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.adaptors.radius;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.jradius.exception.RadiusException;
+
+import junit.framework.TestCase;
+
+/**
+ * Exchanges raw RADIUS datagrams with a loopback socket standing in for the server.
+ *
+ * @author Stefan Paetow
+ */
+public class RadiusChannelMultiplexerTest extends TestCase {
+
+    private static final String SECRET = "testing123";
+
+    private static final int ACCESS_REQUEST = 1;
+
+    private static final int ACCESS_ACCEPT = 2;
+
+    private RadiusChannelMultiplexer multiplexer;
+
+    private DatagramSocket server;
+
+    private InetSocketAddress serverAddress;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.multiplexer = new RadiusChannelMultiplexer();
+        this.multiplexer.setLocalInetAddress("127.0.0.1");
+        this.server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        this.server.setSoTimeout(5000);
+        this.serverAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), this.server.getLocalPort());
+    }
+
+    @Override
+    protected void tearDown() {
+        this.multiplexer.close();
+        this.server.close();
+    }
+
+    public void testVerifiedReplyReachesThePendingRequest() throws Exception {
+        final RadiusChannelMultiplexer.PendingReply pending = this.multiplexer.register(this.serverAddress, SECRET);
+        this.multiplexer.send(pending, ByteBuffer.wrap(newRequest(pending.getIdentifier())));
+
+        final DatagramPacket request = receive();
+        final byte[] reply = newReply(request, SECRET);
+        this.server.send(new DatagramPacket(reply, reply.length, request.getSocketAddress()));
+
+        assertTrue(Arrays.equals(reply, pending.await(5000L)));
+        this.multiplexer.release(pending);
+    }
+
+    public void testReplyWithABadAuthenticatorIsDropped() throws Exception {
+        final RadiusChannelMultiplexer.PendingReply pending = this.multiplexer.register(this.serverAddress, SECRET);
+        this.multiplexer.send(pending, ByteBuffer.wrap(newRequest(pending.getIdentifier())));
+
+        final DatagramPacket request = receive();
+        final byte[] forged = newReply(request, "not the secret");
+        this.server.send(new DatagramPacket(forged, forged.length, request.getSocketAddress()));
+        assertNull(pending.await(200L));
+
+        // the genuine reply still gets through afterwards
+        final byte[] reply = newReply(request, SECRET);
+        this.server.send(new DatagramPacket(reply, reply.length, request.getSocketAddress()));
+        assertTrue(Arrays.equals(reply, pending.await(5000L)));
+        this.multiplexer.release(pending);
+    }
+
+    public void testReplyFromAnotherAddressIsDropped() throws Exception {
+        final RadiusChannelMultiplexer.PendingReply pending = this.multiplexer.register(this.serverAddress, SECRET);
+        this.multiplexer.send(pending, ByteBuffer.wrap(newRequest(pending.getIdentifier())));
+        final DatagramPacket request = receive();
+
+        final DatagramSocket impostor = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        try {
+            final byte[] reply = newReply(request, SECRET);
+            impostor.send(new DatagramPacket(reply, reply.length, request.getSocketAddress()));
+            assertNull(pending.await(200L));
+        } finally {
+            impostor.close();
+        }
+        this.multiplexer.release(pending);
+    }
+
+    public void testIdentifiersAreUniqueUntilReleased() throws Exception {
+        this.multiplexer.setChannelCount(1);
+        final Set<Integer> identifiers = new HashSet<Integer>();
+        RadiusChannelMultiplexer.PendingReply last = null;
+        for (int i = 0; i < 256; i++) {
+            last = this.multiplexer.register(this.serverAddress, SECRET);
+            assertTrue(identifiers.add(Integer.valueOf(last.getIdentifier())));
+        }
+
+        try {
+            this.multiplexer.register(this.serverAddress, SECRET);
+            fail("expected the identifier space to be exhausted");
+        } catch (final RadiusException e) {
+            // expected
+        }
+
+        this.multiplexer.release(last);
+        assertEquals(last.getIdentifier(), this.multiplexer.register(this.serverAddress, SECRET).getIdentifier());
+    }
+
+    public void testChannelsMultiplyTheIdentifierSpace() throws Exception {
+        this.multiplexer.setChannelCount(2);
+        for (int i = 0; i < 512; i++) {
+            this.multiplexer.register(this.serverAddress, SECRET);
+        }
+        try {
+            this.multiplexer.register(this.serverAddress, SECRET);
+            fail("expected the identifier space to be exhausted");
+        } catch (final RadiusException e) {
+            // expected
+        }
+    }
+
+    private DatagramPacket receive() throws Exception {
+        final DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
+        this.server.receive(packet);
+        return packet;
+    }
+
+    /**
+     * @return an Access-Request without attributes and with a fixed Request Authenticator
+     */
+    private static byte[] newRequest(final int identifier) {
+        final byte[] request = new byte[20];
+        request[0] = (byte) ACCESS_REQUEST;
+        request[1] = (byte) identifier;
+        request[3] = 20;
+        for (int i = 4; i < 20; i++) {
+            request[i] = (byte) i;
+        }
+        return request;
+    }
+
+    /**
+     * @return an Access-Accept answering the request, authenticated with the given secret
+     */
+    private static byte[] newReply(final DatagramPacket request, final String secret) throws Exception {
+        final byte[] reply = new byte[20];
+        reply[0] = (byte) ACCESS_ACCEPT;
+        reply[1] = request.getData()[1];
+        reply[3] = 20;
+        final MessageDigest md5 = MessageDigest.getInstance("MD5");
+        md5.update(reply, 0, 4);
+        md5.update(request.getData(), 4, 16);
+        md5.update(secret.getBytes());
+        System.arraycopy(md5.digest(), 0, reply, 4, 16);
+        return reply;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.adaptors.radius;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import net.jradius.exception.RadiusException;
+
+import org.jasig.cas.adaptors.radius.RadiusClientFactory;
+
+/**
+ * @author Stefan Paetow
+ */
+public class RadiusClientPoolTest extends TestCase {
+
+    private RadiusClientPool pool;
+
+    @Override
+    protected void setUp() {
+        final RadiusClientFactory factory = new RadiusClientFactory();
+        factory.setInetAddress("127.0.0.1");
+        factory.setSharedSecret("testing123");
+        factory.setSocketTimeout(1);
+        this.pool = new RadiusClientPool(factory);
+    }
+
+    @Override
+    protected void tearDown() {
+        this.pool.close();
+    }
+
+    public void testReturnedClientIsReused() throws RadiusException {
+        final RetransmittingRadiusClient client = this.pool.borrowClient();
+        assertEquals(1, this.pool.getNumActive());
+        this.pool.returnClient(client, true);
+        assertEquals(0, this.pool.getNumActive());
+        assertEquals(1, this.pool.getNumIdle());
+
+        assertSame(client, this.pool.borrowClient());
+        assertEquals(0, this.pool.getNumIdle());
+    }
+
+    public void testClientReturnedAsNotReusableIsNotPooled() throws RadiusException {
+        final RetransmittingRadiusClient client = this.pool.borrowClient();
+        this.pool.returnClient(client, false);
+        assertEquals(0, this.pool.getNumActive());
+        assertEquals(0, this.pool.getNumIdle());
+
+        assertNotSame(client, this.pool.borrowClient());
+    }
+
+    public void testIdleClientsBeyondMaxIdleAreClosed() throws RadiusException {
+        this.pool.setMaxIdle(1);
+        final RetransmittingRadiusClient first = this.pool.borrowClient();
+        final RetransmittingRadiusClient second = this.pool.borrowClient();
+        this.pool.returnClient(first, true);
+        this.pool.returnClient(second, true);
+        assertEquals(1, this.pool.getNumIdle());
+    }
+
+    public void testBorrowWaitsForAReturnedClient() throws Exception {
+        this.pool.setMaxTotal(1);
+        this.pool.setMaxWait(5000L);
+        final RetransmittingRadiusClient client = this.pool.borrowClient();
+
+        final long start = System.nanoTime();
+        CompletableFuture.runAsync(() -> {
+            sleep(200L);
+            this.pool.returnClient(client, true);
+        });
+        assertSame(client, this.pool.borrowClient());
+        final long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(waited >= 150L);
+        assertTrue(waited < 5000L);
+    }
+
+    public void testBorrowTimesOutWhenThePoolIsExhausted() throws RadiusException {
+        this.pool.setMaxTotal(1);
+        this.pool.setMaxWait(200L);
+        this.pool.borrowClient();
+
+        final long start = System.nanoTime();
+        try {
+            this.pool.borrowClient();
+            fail("The pool is exhausted");
+        } catch (final RadiusException e) {
+            assertTrue(e.getMessage().startsWith("Timed out"));
+        }
+        final long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(waited >= 150L);
+        assertTrue(waited < 2000L);
+        assertEquals(1, this.pool.getNumActive());
+    }
+
+    public void testIdleClientsAreEvicted() throws RadiusException {
+        this.pool.setMaxIdleTime(50L);
+        this.pool.returnClient(this.pool.borrowClient(), true);
+        assertEquals(1, this.pool.getNumIdle());
+
+        sleep(100L);
+        this.pool.evictIdleClients();
+        assertEquals(0, this.pool.getNumIdle());
+    }
+
+    public void testExpiredIdleClientsAreSkippedWhenBorrowing() throws RadiusException {
+        this.pool.setMaxIdleTime(50L);
+        final RetransmittingRadiusClient first = this.pool.borrowClient();
+        final RetransmittingRadiusClient second = this.pool.borrowClient();
+        this.pool.returnClient(first, true);
+        this.pool.returnClient(second, true);
+
+        sleep(100L);
+        final RetransmittingRadiusClient client = this.pool.borrowClient();
+        assertNotSame(first, client);
+        assertNotSame(second, client);
+        assertEquals(0, this.pool.getNumIdle());
+        assertEquals(1, this.pool.getNumActive());
+    }
+
+    public void testClosedPoolRefusesToLend() throws RadiusException {
+        final RetransmittingRadiusClient client = this.pool.borrowClient();
+        this.pool.returnClient(this.pool.borrowClient(), true);
+        this.pool.close();
+        assertEquals(0, this.pool.getNumIdle());
+
+        try {
+            this.pool.borrowClient();
+            fail("The pool is closed");
+        } catch (final RadiusException e) {
+            assertEquals("RADIUS client pool is closed", e.getMessage());
+        }
+        // a client returned after the pool closed is closed too
+        this.pool.returnClient(client, true);
+        assertEquals(0, this.pool.getNumIdle());
+        assertEquals(0, this.pool.getNumActive());
+    }
+
+    public void testCloseWakesWaitingBorrowers() throws Exception {
+        this.pool.setMaxTotal(1);
+        this.pool.setMaxWait(10000L);
+        this.pool.borrowClient();
+
+        final CompletableFuture<RetransmittingRadiusClient> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return this.pool.borrowClient();
+            } catch (final RadiusException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        });
+        sleep(100L);
+        this.pool.close();
+        try {
+            waiting.get(2L, TimeUnit.SECONDS);
+            fail("The pool is closed");
+        } catch (final ExecutionException e) {
+            assertEquals("RADIUS client pool is closed", e.getCause().getMessage());
+        }
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
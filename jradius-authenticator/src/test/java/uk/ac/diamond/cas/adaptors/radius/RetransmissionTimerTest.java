@@ -0,0 +1,111 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.adaptors.radius;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Stefan Paetow
+ */
+public class RetransmissionTimerTest extends TestCase {
+
+    private RetransmissionTimer timer;
+
+    @Override
+    protected void setUp() {
+        this.timer = new RetransmissionTimer(3000L);
+        this.timer.setJitter(0.0);
+    }
+
+    public void testInitialTimeoutUntilARoundTripIsMeasured() {
+        assertEquals(3000L, this.timer.getTimeout(0));
+        assertEquals(0.0, this.timer.getSmoothedRoundTripTime(), 0.0);
+    }
+
+    public void testTimeoutFollowsTheMeasuredRoundTrip() {
+        this.timer.recordRoundTrip(millis(100L));
+        // smoothed 100 ms plus four times the variance of 50 ms
+        assertEquals(300L, this.timer.getTimeout(0));
+        assertEquals(100.0, this.timer.getSmoothedRoundTripTime(), 0.001);
+
+        this.timer.recordRoundTrip(millis(180L));
+        assertEquals(110.0, this.timer.getSmoothedRoundTripTime(), 0.001);
+    }
+
+    public void testTimeoutIsClampedToItsBounds() {
+        this.timer.recordRoundTrip(millis(10L));
+        assertEquals(RetransmissionTimer.DEFAULT_MIN_TIMEOUT, this.timer.getTimeout(0));
+
+        final RetransmissionTimer slow = new RetransmissionTimer(3000L);
+        slow.setJitter(0.0);
+        slow.setMaxTimeout(5000L);
+        slow.recordRoundTrip(millis(4000L));
+        assertEquals(5000L, slow.getTimeout(0));
+    }
+
+    public void testRetransmissionsDoubleTheTimeoutUpToTheMaximum() {
+        this.timer.setMaxTimeout(2000L);
+        this.timer.recordRoundTrip(millis(100L));
+        assertEquals(600L, this.timer.getTimeout(1));
+        assertEquals(1200L, this.timer.getTimeout(2));
+        assertEquals(2000L, this.timer.getTimeout(3));
+        assertEquals(2000L, this.timer.getTimeout(40));
+    }
+
+    public void testUnansweredFirstTransmissionBacksOffLaterRequests() {
+        this.timer.recordRoundTrip(millis(100L));
+        this.timer.recordTimeout(this.timer.getTimeout(0));
+        assertEquals(600L, this.timer.getTimeout(0));
+
+        // a measured reply ends the backoff; the steady round trip also narrows the variance
+        this.timer.recordRoundTrip(millis(100L));
+        assertEquals(250L, this.timer.getTimeout(0));
+    }
+
+    public void testConcurrentTimeoutsBackOffOnlyOnce() {
+        this.timer.recordRoundTrip(millis(100L));
+        final long timeout = this.timer.getTimeout(0);
+        this.timer.recordTimeout(timeout);
+        this.timer.recordTimeout(timeout);
+        this.timer.recordTimeout(timeout);
+        assertEquals(600L, this.timer.getTimeout(0));
+    }
+
+    public void testJitterStaysWithinItsFactor() {
+        this.timer.setJitter(0.1);
+        this.timer.recordRoundTrip(millis(100L));
+        boolean varied = false;
+        for (int i = 0; i < 1000; i++) {
+            final long timeout = this.timer.getTimeout(0);
+            assertTrue("timeout " + timeout, timeout >= 270L && timeout <= 330L);
+            varied |= timeout != 300L;
+        }
+        assertTrue(varied);
+    }
+
+    public void testRetransmissionsAreCounted() {
+        this.timer.recordRetransmission();
+        this.timer.recordRetransmission();
+        assertEquals(2L, this.timer.getRetransmissionCount());
+    }
+
+    private static long millis(final long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
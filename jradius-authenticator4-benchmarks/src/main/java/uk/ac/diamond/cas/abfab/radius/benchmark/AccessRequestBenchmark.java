@@ -0,0 +1,92 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import net.jradius.dictionary.Attr_UserName;
+import net.jradius.dictionary.Attr_UserPassword;
+import net.jradius.packet.AccessRequest;
+import net.jradius.packet.RadiusFormat;
+import net.jradius.packet.attribute.AttributeList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.diamond.cas.abfab.radius.AcceptorIdentityProvider;
+import uk.ac.diamond.cas.abfab.radius.RadiusDictionaryLoader;
+
+/**
+ * Builds the Access-Request of a login as ABFABRadiusServerImpl.authenticateEx does, and packs it
+ * for the wire as the client transports do. The acceptor host name is configured, so that no
+ * lookup is measured.
+ *
+ * @author Stefan Paetow
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class AccessRequestBenchmark {
+
+    private static final String SHARED_SECRET = "testing123";
+
+    static {
+        RadiusDictionaryLoader.load();
+    }
+
+    private final AcceptorIdentityProvider acceptorIdentityProvider = new AcceptorIdentityProvider();
+
+    /** Reused, as a transport reuses its send buffer. */
+    private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+    @Setup
+    public void setUp() {
+        this.acceptorIdentityProvider.setHostName("cas.example.org");
+        this.acceptorIdentityProvider.setRealmName("example.org");
+    }
+
+    @Benchmark
+    public AccessRequest build() {
+        final AccessRequest request = new AccessRequest();
+        final AttributeList attributeList = request.getAttributes();
+        attributeList.add(new Attr_UserName("user@example.org"));
+        attributeList.add(new Attr_UserPassword("correct horse battery staple"));
+        this.acceptorIdentityProvider.addAttributes(attributeList);
+        return request;
+    }
+
+    @Benchmark
+    public ByteBuffer buildAndPack() throws IOException {
+        final AccessRequest request = build();
+        this.buffer.clear();
+        RadiusFormat.getInstance().packPacket(request, SHARED_SECRET, this.buffer, true);
+        return this.buffer;
+    }
+}
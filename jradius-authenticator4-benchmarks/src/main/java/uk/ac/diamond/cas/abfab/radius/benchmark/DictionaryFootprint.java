@@ -0,0 +1,73 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.benchmark;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+
+import uk.ac.diamond.cas.abfab.radius.RadiusDictionaryLoader;
+
+/**
+ * Reports what loading a JRadius dictionary costs: the time taken, the classes loaded and the
+ * metaspace they take. A dictionary can only be loaded once per JVM, so compare dictionaries by
+ * running once for each:
+ *
+ * java -cp target/benchmarks.jar uk.ac.diamond.cas.abfab.radius.benchmark.DictionaryFootprint full
+ * java -cp target/benchmarks.jar uk.ac.diamond.cas.abfab.radius.benchmark.DictionaryFootprint abfab
+ *
+ * @author Stefan Paetow
+ */
+public final class DictionaryFootprint {
+
+    private DictionaryFootprint() {
+    }
+
+    public static void main(final String[] args) throws ClassNotFoundException {
+        final String dictionary = args.length > 0 ? args[0] : "full";
+        final ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+
+        // load the loader itself and the JRadius core first, so only the dictionary is counted
+        RadiusDictionaryLoader.getLoaded();
+        Class.forName("net.jradius.packet.attribute.AttributeFactory");
+        System.gc();
+        final long classesBefore = classLoading.getTotalLoadedClassCount();
+        final long metaspaceBefore = getMetaspaceUsed();
+        final long start = System.nanoTime();
+
+        RadiusDictionaryLoader.load(dictionary);
+
+        final long elapsed = System.nanoTime() - start;
+        System.gc();
+        System.out.printf("%s: %.1f ms, %d classes, %d KiB metaspace%n", RadiusDictionaryLoader.getLoaded(),
+                elapsed / 1e6, classLoading.getTotalLoadedClassCount() - classesBefore,
+                (getMetaspaceUsed() - metaspaceBefore) / 1024);
+    }
+
+    /**
+     * @return the bytes used in metaspace
+     */
+    private static long getMetaspaceUsed() {
+        long used = 0L;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if ("Metaspace".equals(pool.getName())) {
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+}
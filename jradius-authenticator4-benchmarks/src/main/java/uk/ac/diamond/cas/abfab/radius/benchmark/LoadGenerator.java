@@ -0,0 +1,441 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.benchmark;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.security.auth.login.FailedLoginException;
+
+import org.jasig.cas.authentication.UsernamePasswordCredential;
+import org.springframework.context.support.GenericXmlApplicationContext;
+import org.springframework.core.io.FileSystemResource;
+
+import uk.ac.diamond.cas.abfab.radius.authentication.handler.ABFABRadiusAuthenticationHandler;
+import uk.ac.diamond.cas.abfab.radius.metrics.AuthenticationMetrics;
+import uk.ac.diamond.cas.abfab.radius.metrics.LatencyHistogram;
+
+/**
+ * Drives an ABFABRadiusAuthenticationHandler at a fixed, open-loop login rate and reports what it
+ * sustained. The handler and its servers are built from a Spring XML file laid out like
+ * deployerConfigContext.xml, which may also declare an EmbeddedRadiusServer for the handler to
+ * talk to, so timeout, retry and failover settings can be tried before they are rolled out.
+ *
+ * Logins are scheduled at fixed intervals whether or not earlier ones have completed, and queue
+ * for the workers when all of them are busy. Latency is measured from the time each login was
+ * due rather than the time a worker picked it up, so a stall shows in the percentiles as the
+ * users queued behind it would see it (the coordinated omission correction); the service time,
+ * measured from pick-up, is reported next to it.
+ *
+ * Run with: java -cp target/benchmarks.jar uk.ac.diamond.cas.abfab.radius.benchmark.LoadGenerator
+ * loadtest.xml [options]
+ *
+ * @author Stefan Paetow
+ */
+public final class LoadGenerator {
+
+    private static final String USAGE = "Usage: LoadGenerator <config.xml> [options]\n"
+            + "  --rate <logins/s>        offered login rate (default 100)\n"
+            + "  --duration <s>           measured time (default 60)\n"
+            + "  --warmup <s>             unmeasured time before it (default 10)\n"
+            + "  --workers <n>            concurrent workers (default 64)\n"
+            + "  --async                  use authenticateAsync instead of workers\n"
+            + "  --username <name>        username of every login (default alice)\n"
+            + "  --password <password>    password of every login (default secret)\n"
+            + "  --users <file>           username:password lines, used in turn instead\n"
+            + "  --drain <s>              time allowed for logins still in progress (default 30)";
+
+    /** Time in nanoseconds a worker waits for a login before checking whether the run is over. */
+    private static final long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100L);
+
+    private final ABFABRadiusAuthenticationHandler handler;
+
+    private final List<String[]> credentials;
+
+    private final double rate;
+
+    private final long warmup;
+
+    private final long duration;
+
+    private final long drain;
+
+    private final int workers;
+
+    private final boolean async;
+
+    /** Latency from the time each measured login was due. */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /** Latency from the time each measured login was started. */
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+
+    private final LongAdder accepted = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    /** Failed logins other than rejections, by exception. */
+    private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+
+    /** Measured logins not yet completed. */
+    private final AtomicLong outstanding = new AtomicLong();
+
+    /** Due times of the logins waiting for a worker. */
+    private final BlockingQueue<Login> queue = new LinkedBlockingQueue<Login>();
+
+    /** Start of the measured time. */
+    private long measureStart;
+
+    private volatile boolean stopped;
+
+    private LoadGenerator(final ABFABRadiusAuthenticationHandler handler, final List<String[]> credentials,
+            final Options options) {
+        this.handler = handler;
+        this.credentials = credentials;
+        this.rate = options.rate;
+        this.warmup = TimeUnit.SECONDS.toNanos(options.warmup);
+        this.duration = TimeUnit.SECONDS.toNanos(options.duration);
+        this.drain = TimeUnit.SECONDS.toNanos(options.drain);
+        this.workers = options.workers;
+        this.async = options.async;
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        final Options options;
+        try {
+            options = Options.parse(args);
+        } catch (final IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        final List<String[]> credentials = new ArrayList<String[]>();
+        if (options.users != null) {
+            for (final String line : Files.readAllLines(Paths.get(options.users), StandardCharsets.UTF_8)) {
+                final int colon = line.indexOf(':');
+                if (colon > 0) {
+                    credentials.add(new String[] {line.substring(0, colon), line.substring(colon + 1)});
+                }
+            }
+            if (credentials.isEmpty()) {
+                System.err.println("No username:password lines in " + options.users);
+                System.exit(2);
+            }
+        } else {
+            credentials.add(new String[] {options.username, options.password});
+        }
+
+        final GenericXmlApplicationContext context = new GenericXmlApplicationContext(
+                new FileSystemResource(options.config));
+        try {
+            final ABFABRadiusAuthenticationHandler handler = context.getBean(ABFABRadiusAuthenticationHandler.class);
+            new LoadGenerator(handler, credentials, options).run(System.out);
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * Offers logins for the warm-up and measured time, waits for those in progress, and reports.
+     */
+    private void run(final PrintStream out) throws InterruptedException {
+        final List<Thread> threads = new ArrayList<Thread>();
+        if (!this.async) {
+            for (int i = 0; i < this.workers; i++) {
+                final Thread thread = new Thread(this::work, "load-worker-" + i);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+        }
+
+        final AuthenticationMetrics metrics = this.handler.getMetrics();
+        final long interval = (long) (TimeUnit.SECONDS.toNanos(1L) / this.rate);
+        final long start = System.nanoTime();
+        this.measureStart = start + this.warmup;
+        final long end = this.measureStart + this.duration;
+        out.printf("Offering %.1f logins/s: %d s warm-up, %d s measured%n",
+                this.rate, TimeUnit.NANOSECONDS.toSeconds(this.warmup), TimeUnit.NANOSECONDS.toSeconds(this.duration));
+
+        long failovers = 0L;
+        long hedges = 0L;
+        boolean measuring = false;
+        long offered = 0L;
+        int maxBacklog = 0;
+        for (long i = 0L;; i++) {
+            final long due = start + i * interval;
+            if (due - end >= 0L) {
+                break;
+            }
+            if (!measuring && due - this.measureStart >= 0L) {
+                measuring = true;
+                failovers = metrics.getFailovers();
+                hedges = metrics.getHedges();
+            }
+            final long wait = due - System.nanoTime();
+            if (wait > 0L) {
+                LockSupport.parkNanos(wait);
+            }
+
+            final String[] credential = this.credentials.get((int) (i % this.credentials.size()));
+            final Login login = new Login(credential[0], credential[1], due, measuring);
+            if (measuring) {
+                offered++;
+                this.outstanding.incrementAndGet();
+            }
+            if (this.async) {
+                submit(login);
+            } else {
+                this.queue.add(login);
+                maxBacklog = Math.max(maxBacklog, this.queue.size());
+            }
+        }
+
+        final long drainEnd = System.nanoTime() + this.drain;
+        while (this.outstanding.get() > 0L && drainEnd - System.nanoTime() > 0L) {
+            Thread.sleep(10L);
+        }
+        this.stopped = true;
+        for (final Thread thread : threads) {
+            thread.interrupt();
+        }
+
+        failovers = metrics.getFailovers() - failovers;
+        hedges = metrics.getHedges() - hedges;
+        report(out, offered, failovers, hedges, maxBacklog);
+    }
+
+    /**
+     * Completes queued logins until the run is over.
+     */
+    private void work() {
+        while (!this.stopped) {
+            final Login login;
+            try {
+                login = this.queue.poll(POLL_INTERVAL, TimeUnit.NANOSECONDS);
+            } catch (final InterruptedException e) {
+                return;
+            }
+            if (login == null) {
+                continue;
+            }
+            final long started = System.nanoTime();
+            Throwable error = null;
+            try {
+                this.handler.authenticate(new UsernamePasswordCredential(login.username, login.password));
+            } catch (final Exception e) {
+                error = e;
+            }
+            complete(login, started, error);
+        }
+    }
+
+    /**
+     * Starts a login through the asynchronous pipeline.
+     */
+    private void submit(final Login login) {
+        final long started = System.nanoTime();
+        this.handler.authenticateAsync(login.username, login.password)
+                .whenComplete((principal, error) -> complete(login, started, error));
+    }
+
+    private void complete(final Login login, final long started, final Throwable error) {
+        if (!login.measured) {
+            return;
+        }
+        final long now = System.nanoTime();
+        this.latency.record(now - login.due);
+        this.serviceTime.record(now - started);
+
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause == null) {
+            this.accepted.increment();
+        } else if (cause instanceof FailedLoginException) {
+            this.rejected.increment();
+        } else {
+            this.errors.computeIfAbsent(cause.getClass().getSimpleName(), name -> new LongAdder()).increment();
+        }
+        this.outstanding.decrementAndGet();
+    }
+
+    private void report(final PrintStream out, final long offered, final long failovers, final long hedges,
+            final int maxBacklog) {
+        final double seconds = this.duration / 1e9;
+        final long completed = this.latency.getCount();
+        long errorCount = 0L;
+        final Map<String, Long> byCause = new TreeMap<String, Long>();
+        for (final Map.Entry<String, LongAdder> entry : this.errors.entrySet()) {
+            byCause.put(entry.getKey(), entry.getValue().sum());
+            errorCount += entry.getValue().sum();
+        }
+
+        out.println();
+        out.printf("Offered     %d logins (%.1f/s)%n", offered, offered / seconds);
+        out.printf("Completed   %d logins (%.1f/s), %d unfinished%n", completed, completed / seconds, offered - completed);
+        out.printf("Outcomes    %d accepted, %d rejected, %d errors%n", this.accepted.sum(), this.rejected.sum(), errorCount);
+        for (final Map.Entry<String, Long> entry : byCause.entrySet()) {
+            out.printf("              %-28s %d%n", entry.getKey(), entry.getValue());
+        }
+        out.printf("Failovers   %d, hedged requests %d%n", failovers, hedges);
+        if (!this.async) {
+            out.printf("Backlog     %d logins at most waiting for %d workers%n", maxBacklog, this.workers);
+        }
+        out.println();
+        out.printf("%-22s %9s %9s %9s %9s %9s %9s%n", "Latency (ms)", "mean", "p50", "p90", "p99", "p99.9", "max");
+        printLatency(out, "from due time", this.latency);
+        printLatency(out, "service time", this.serviceTime);
+    }
+
+    private static void printLatency(final PrintStream out, final String name, final LatencyHistogram histogram) {
+        out.printf("%-22s %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, histogram.getMean(), histogram.getMedian(),
+                histogram.get90thPercentile(), histogram.get99thPercentile(), histogram.get999thPercentile(),
+                histogram.getMax());
+    }
+
+    /**
+     * A login and the time it was due.
+     */
+    private static final class Login {
+
+        private final String username;
+
+        private final String password;
+
+        /** System.nanoTime() at which the login was due. */
+        private final long due;
+
+        /** Whether the login falls in the measured time. */
+        private final boolean measured;
+
+        private Login(final String username, final String password, final long due, final boolean measured) {
+            this.username = username;
+            this.password = password;
+            this.due = due;
+            this.measured = measured;
+        }
+    }
+
+    /**
+     * The command line.
+     */
+    private static final class Options {
+
+        private String config;
+
+        private double rate = 100.0;
+
+        private long duration = 60L;
+
+        private long warmup = 10L;
+
+        private long drain = 30L;
+
+        private int workers = 64;
+
+        private boolean async;
+
+        private String username = "alice";
+
+        private String password = "secret";
+
+        private String users;
+
+        private static Options parse(final String[] args) {
+            final Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                if ("--async".equals(arg)) {
+                    options.async = true;
+                    continue;
+                }
+                if (!arg.startsWith("--")) {
+                    if (options.config != null) {
+                        throw new IllegalArgumentException("Unexpected argument " + arg);
+                    }
+                    options.config = arg;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                final String value = args[++i];
+                try {
+                    switch (arg) {
+                        case "--rate":
+                            options.rate = Double.parseDouble(value);
+                            break;
+                        case "--duration":
+                            options.duration = Long.parseLong(value);
+                            break;
+                        case "--warmup":
+                            options.warmup = Long.parseLong(value);
+                            break;
+                        case "--drain":
+                            options.drain = Long.parseLong(value);
+                            break;
+                        case "--workers":
+                            options.workers = Integer.parseInt(value);
+                            break;
+                        case "--username":
+                            options.username = value;
+                            break;
+                        case "--password":
+                            options.password = value;
+                            break;
+                        case "--users":
+                            options.users = value;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown option " + arg);
+                    }
+                } catch (final NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value for " + arg + ": " + value);
+                }
+            }
+            if (options.config == null) {
+                throw new IllegalArgumentException("No configuration file given");
+            }
+            if (options.rate <= 0.0 || options.duration <= 0L || options.warmup < 0L || options.workers < 1) {
+                throw new IllegalArgumentException("Rate, duration and workers must be positive");
+            }
+            return options;
+        }
+    }
+}
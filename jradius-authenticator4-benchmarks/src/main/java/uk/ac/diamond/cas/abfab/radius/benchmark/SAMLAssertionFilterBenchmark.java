@@ -0,0 +1,73 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import net.jradius.exception.UnknownAttributeException;
+import net.jradius.packet.attribute.AttributeList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.diamond.cas.abfab.radius.authentication.handler.SAMLAssertionAttributeFilter;
+
+/**
+ * Reassembles a SAML assertion from the SAML-AAA-Assertion attributes of an Access-Accept: from
+ * 6 fragments for a small assertion to about 180 for a large one, both as a string and as the
+ * pre-sized byte buffer the handler parses.
+ *
+ * @author Stefan Paetow
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SAMLAssertionFilterBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    private SAMLAssertions.Size size;
+
+    private AttributeList attributes;
+
+    @Setup
+    public void setUp() {
+        this.attributes = SAMLAssertions.fragment(SAMLAssertions.build(this.size));
+    }
+
+    @Benchmark
+    public String getAssertion() throws UnknownAttributeException {
+        return new SAMLAssertionAttributeFilter(this.attributes).getAssertion();
+    }
+
+    @Benchmark
+    public ByteBuffer getAssertionBytes() throws UnknownAttributeException {
+        return new SAMLAssertionAttributeFilter(this.attributes).getAssertionBytes();
+    }
+}
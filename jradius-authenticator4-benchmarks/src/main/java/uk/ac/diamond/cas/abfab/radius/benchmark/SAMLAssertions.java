@@ -0,0 +1,102 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.benchmark;
+
+import net.jradius.dictionary.Attr_SAMLAAAAssertion;
+import net.jradius.packet.attribute.AttributeList;
+
+import uk.ac.diamond.cas.abfab.radius.RadiusDictionaryLoader;
+
+/**
+ * Builds the SAML assertions the benchmarks work on, and splits them into RADIUS attributes the
+ * way an ABFAB identity provider sends them in an Access-Accept.
+ *
+ * @author Stefan Paetow
+ */
+final class SAMLAssertions {
+
+    /** The attribute the benchmarks look up; the last one in every assertion. */
+    static final String PRINCIPAL_URN = "urn:oid:1.3.6.1.4.1.5923.1.1.1.6";
+
+    /** Largest value of a single RADIUS attribute. */
+    private static final int MAX_FRAGMENT_LENGTH = 253;
+
+    /** Sizes of assertion, by number of attributes in the attribute statement. */
+    enum Size {
+        /** About 1.5 KB: a handful of attributes, the common case. */
+        SMALL(5),
+        /** About 8 KB: an identity provider releasing a full eduPerson profile. */
+        MEDIUM(40),
+        /** About 45 KB: long entitlement and group lists. */
+        LARGE(250);
+
+        private final int attributeCount;
+
+        Size(final int attributeCount) {
+            this.attributeCount = attributeCount;
+        }
+    }
+
+    static {
+        RadiusDictionaryLoader.load();
+    }
+
+    private SAMLAssertions() {
+    }
+
+    /**
+     * @param size The size of the assertion
+     * @return a SAML 2.0 assertion whose principal identifier is its last attribute
+     */
+    static String build(final Size size) {
+        final StringBuilder sb = new StringBuilder(size.attributeCount * 140 + 1024);
+        sb.append("<saml:Assertion xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\"")
+            .append(" xmlns:xs=\"http://www.w3.org/2001/XMLSchema\"")
+            .append(" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"")
+            .append(" ID=\"_a3f2\" IssueInstant=\"2014-01-01T00:00:00Z\" Version=\"2.0\">")
+            .append("<saml:Issuer>https://idp.example.org/idp/shibboleth</saml:Issuer>")
+            .append("<saml:Subject><saml:NameID Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:transient\">")
+            .append("_b1c9</saml:NameID></saml:Subject>")
+            .append("<saml:Conditions NotBefore=\"2014-01-01T00:00:00Z\" NotOnOrAfter=\"2014-01-01T00:05:00Z\"/>")
+            .append("<saml:AttributeStatement>");
+        for (int i = 1; i < size.attributeCount; i++) {
+            sb.append("<saml:Attribute Name=\"urn:oid:1.3.6.1.4.1.5923.1.1.1.").append(100 + i).append("\">")
+                .append("<saml:AttributeValue xsi:type=\"xs:string\">urn:mace:example.org:entitlement:value-")
+                .append(i).append("</saml:AttributeValue>")
+                .append("</saml:Attribute>");
+        }
+        sb.append("<saml:Attribute Name=\"").append(PRINCIPAL_URN).append("\">")
+            .append("<saml:AttributeValue xsi:type=\"xs:string\">user@example.org</saml:AttributeValue>")
+            .append("</saml:Attribute>")
+            .append("</saml:AttributeStatement></saml:Assertion>");
+        return sb.toString();
+    }
+
+    /**
+     * @param assertion The assertion
+     * @return the attributes of an Access-Accept carrying the assertion, split into as many
+     * SAML-AAA-Assertion attributes as it takes
+     */
+    static AttributeList fragment(final String assertion) {
+        final AttributeList attributes = new AttributeList();
+        for (int i = 0; i < assertion.length(); i += MAX_FRAGMENT_LENGTH) {
+            attributes.add(new Attr_SAMLAAAAssertion(
+                    assertion.substring(i, Math.min(i + MAX_FRAGMENT_LENGTH, assertion.length()))), false);
+        }
+        return attributes;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.AttributeNotFoundException;
+import javax.xml.stream.XMLStreamException;
+
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.XMLParserException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.diamond.cas.abfab.radius.authentication.handler.SAMLAssertionAttributeExtractor;
+import uk.ac.diamond.cas.abfab.radius.authentication.handler.SAMLAssertionStreamingExtractor;
+import uk.ac.diamond.cas.abfab.radius.authentication.handler.SAMLProcessingContext;
+
+/**
+ * Reads the principal identifier from small, medium and large SAML assertions. Each benchmark
+ * adds one stage of the full OpenSAML path to the previous one, so the cost of a stage is the
+ * difference between two of them: parsing into a DOM, unmarshalling it, and looking up the
+ * attribute. The streaming extractor, which does all three in one pass, is measured alongside.
+ * The FromBytes variants read the encoded assertion, as the handler does, instead of a string.
+ *
+ * @author Stefan Paetow
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SAMLExtractionBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    private SAMLAssertions.Size size;
+
+    private String assertion;
+
+    private ByteBuffer assertionBytes;
+
+    private SAMLProcessingContext context;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.assertion = SAMLAssertions.build(this.size);
+        this.assertionBytes = ByteBuffer.wrap(this.assertion.getBytes(StandardCharsets.UTF_8));
+        this.context = SAMLProcessingContext.getDefault();
+    }
+
+    @Benchmark
+    public SAMLAssertionAttributeExtractor parse() throws XMLParserException {
+        return new SAMLAssertionAttributeExtractor(this.context, this.assertion);
+    }
+
+    @Benchmark
+    public XMLObject parseAndUnmarshall() throws XMLParserException, UnmarshallingException {
+        return new SAMLAssertionAttributeExtractor(this.context, this.assertion).unmarshall();
+    }
+
+    @Benchmark
+    public String getAttributeValue() throws XMLParserException, AttributeNotFoundException {
+        return new SAMLAssertionAttributeExtractor(this.context, this.assertion)
+                .getAttributeValue(SAMLAssertions.PRINCIPAL_URN);
+    }
+
+    @Benchmark
+    public String getAttributeValueStreaming() throws AttributeNotFoundException, XMLStreamException {
+        return new SAMLAssertionStreamingExtractor(this.assertion).getAttributeValue(SAMLAssertions.PRINCIPAL_URN);
+    }
+
+    @Benchmark
+    public String getAttributeValueFromBytes() throws XMLParserException, AttributeNotFoundException {
+        return new SAMLAssertionAttributeExtractor(this.context, this.assertionBytes)
+                .getAttributeValue(SAMLAssertions.PRINCIPAL_URN);
+    }
+
+    @Benchmark
+    public String getAttributeValueStreamingFromBytes() throws AttributeNotFoundException, XMLStreamException {
+        return new SAMLAssertionStreamingExtractor(this.assertionBytes)
+                .getAttributeValue(SAMLAssertions.PRINCIPAL_URN);
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.validation.constraints.Min;
+
+/**
+ * Remembers the outcome of recent logins, so that a user who signs in again within seconds (after
+ * a double submit, say) is answered without another RADIUS round-trip. Accepted logins are kept
+ * for the time to live, rejected ones for the much shorter negative time to live.
+ *
+ * Entries are keyed on a PBKDF2 hash of the username and password under a salt drawn afresh for
+ * every cache, so passwords are never held, and a heap dump yields nothing cheaper to attack than
+ * the hash itself. Both the number of entries and their estimated size in bytes are capped; the
+ * least recently used entries make room for a new one, and a result larger than the whole byte
+ * cap is not remembered at all.
+ *
+ * @param <T> The result of an accepted login
+ *
+ * @author Stefan Paetow
+ */
+public class AuthenticationResultCache<T> {
+
+    /** Default maximum number of entries, {@value}. */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /** Default time in milliseconds an accepted login is remembered, {@value}. */
+    public static final long DEFAULT_TIME_TO_LIVE = 60000L;
+
+    /** Default time in milliseconds a rejected login is remembered, {@value}. */
+    public static final long DEFAULT_NEGATIVE_TIME_TO_LIVE = 5000L;
+
+    /** Default maximum estimated size of all entries in bytes, {@value}. */
+    public static final long DEFAULT_MAX_BYTES = 16777216L;
+
+    /** Default number of PBKDF2 iterations per key, {@value}. */
+    public static final int DEFAULT_ITERATIONS = 4096;
+
+    /** Key derivation function. */
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+    /** Length of a key in bits. */
+    private static final int KEY_LENGTH = 256;
+
+    /** Length of the salt in bytes. */
+    private static final int SALT_LENGTH = 16;
+
+    /** Approximate bytes of an entry beyond its result: key, hash, expiry and map node. */
+    private static final long ENTRY_SIZE = 160L;
+
+    /** Approximate bytes of an object header and a few fields. */
+    private static final long OBJECT_SIZE = 16L;
+
+    /** Approximate bytes of a reference to, or map node for, an element of a container. */
+    private static final long ELEMENT_SIZE = 32L;
+
+    /** Salt of every key, unique to this cache. */
+    private final byte[] salt = new byte[SALT_LENGTH];
+
+    /** The entries, least recently used first; guarded by this. */
+    private final LinkedHashMap<Key, Entry<T>> entries = new LinkedHashMap<Key, Entry<T>>(16, 0.75f, true);
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong negativeHitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /** Estimated size of all entries in bytes; guarded by this. */
+    private long bytes;
+
+    /** Maximum number of entries. */
+    @Min(1)
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    /** Maximum estimated size of all entries in bytes. */
+    @Min(1)
+    private long maxBytes = DEFAULT_MAX_BYTES;
+
+    /** Time in milliseconds an accepted login is remembered. */
+    @Min(0)
+    private long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+    /** Time in milliseconds a rejected login is remembered; 0 to not remember rejections. */
+    @Min(0)
+    private long negativeTimeToLive = DEFAULT_NEGATIVE_TIME_TO_LIVE;
+
+    /** Number of PBKDF2 iterations per key. */
+    @Min(1)
+    private int iterations = DEFAULT_ITERATIONS;
+
+    public AuthenticationResultCache() {
+        new SecureRandom().nextBytes(this.salt);
+    }
+
+    /**
+     * Derives the key of a login. This is deliberately slow, so do it once per login.
+     *
+     * @param username The username
+     * @param password The password
+     * @return the key under which the outcome of the login is remembered
+     * @throws IllegalStateException if the key derivation function is unavailable
+     */
+    public Key getKey(final String username, final String password) {
+        // the length prefix keeps the pair unambiguous
+        final char[] secret = new StringBuilder(username.length() + password.length() + 12)
+                .append(username.length()).append(':').append(username).append(password).toString().toCharArray();
+        final PBEKeySpec spec = new PBEKeySpec(secret, this.salt, this.iterations, KEY_LENGTH);
+        try {
+            return new Key(SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded());
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to derive an authentication cache key", e);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(secret, '\0');
+        }
+    }
+
+    /**
+     * @param key The key of the login
+     * @return the remembered outcome of the login, or null if there is none
+     */
+    public Result<T> get(final Key key) {
+        final Entry<T> entry;
+        synchronized (this) {
+            final Entry<T> found = this.entries.get(key);
+            if (found != null && System.nanoTime() - found.expires >= 0L) {
+                this.entries.remove(key);
+                this.bytes -= found.size;
+                entry = null;
+            } else {
+                entry = found;
+            }
+        }
+
+        if (entry == null) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+        (entry.result.isAccepted() ? this.hitCount : this.negativeHitCount).incrementAndGet();
+        return entry.result;
+    }
+
+    /**
+     * Remembers an accepted login for the time to live, estimating the size of its result with
+     * {@link #estimateSize(Object)}.
+     *
+     * @param key The key of the login
+     * @param value The result of the login
+     */
+    public void putAccepted(final Key key, final T value) {
+        putAccepted(key, value, estimateSize(value));
+    }
+
+    /**
+     * Remembers an accepted login for the time to live.
+     *
+     * @param key The key of the login
+     * @param value The result of the login
+     * @param size The estimated size of the result in bytes
+     */
+    public void putAccepted(final Key key, final T value, final long size) {
+        put(key, new Result<T>(true, value), ENTRY_SIZE + size, this.timeToLive);
+    }
+
+    /**
+     * Remembers a rejected login for the negative time to live.
+     *
+     * @param key The key of the login
+     */
+    public void putRejected(final Key key) {
+        put(key, new Result<T>(false, null), ENTRY_SIZE, this.negativeTimeToLive);
+    }
+
+    /**
+     * Forgets every login.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.bytes = 0L;
+    }
+
+    /**
+     * @return the number of entries, expired ones included until they are looked up or evicted
+     */
+    public synchronized int getSize() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return the estimated size of all entries in bytes
+     */
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * @return the number of lookups answered with an accepted login
+     */
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /**
+     * @return the number of lookups answered with a rejected login
+     */
+    public long getNegativeHitCount() {
+        return this.negativeHitCount.get();
+    }
+
+    /**
+     * @return the number of lookups that had to go to RADIUS
+     */
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    /**
+     * @return the number of entries dropped to make room for new ones
+     */
+    public long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+
+    /**
+     * Sets the maximum number of entries.
+     *
+     * @param maxEntries Maximum number of entries; defaults to 10000.
+     */
+    public void setMaxEntries(final int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Sets the maximum estimated size of all entries, which bounds the memory taken by the
+     * attributes of cached principals.
+     *
+     * @param maxBytes Maximum size in bytes; defaults to 16777216 (16 MiB).
+     */
+    public void setMaxBytes(final long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Sets how long an accepted login is remembered. Keep it short: a password changed or an
+     * account disabled in the meantime goes unnoticed until the entry expires.
+     *
+     * @param timeToLive Time in milliseconds; defaults to 60000.
+     */
+    public void setTimeToLive(final long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Sets how long a rejected login is remembered.
+     *
+     * @param negativeTimeToLive Time in milliseconds; defaults to 5000, 0 to not remember rejections.
+     */
+    public void setNegativeTimeToLive(final long negativeTimeToLive) {
+        this.negativeTimeToLive = negativeTimeToLive;
+    }
+
+    /**
+     * Sets the number of PBKDF2 iterations used to derive each key.
+     *
+     * @param iterations Number of iterations; defaults to 4096.
+     */
+    public void setIterations(final int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * Roughly estimates the heap taken by a result. Strings, byte arrays, and maps, collections and
+     * arrays of them are sized from their contents; any other object counts as a small one.
+     *
+     * @param value The result of a login, or part of it
+     * @return the estimated size in bytes
+     */
+    public static long estimateSize(final Object value) {
+        if (value == null) {
+            return 0L;
+        } else if (value instanceof CharSequence) {
+            // the String, its array header and two bytes a char at worst
+            return 2 * OBJECT_SIZE + 2L * ((CharSequence) value).length();
+        } else if (value instanceof byte[]) {
+            return OBJECT_SIZE + ((byte[]) value).length;
+        } else if (value instanceof Map) {
+            long size = 3 * OBJECT_SIZE;
+            for (final Map.Entry<?, ?> element : ((Map<?, ?>) value).entrySet()) {
+                size += ELEMENT_SIZE + estimateSize(element.getKey()) + estimateSize(element.getValue());
+            }
+            return size;
+        } else if (value instanceof Collection) {
+            long size = 2 * OBJECT_SIZE;
+            for (final Object element : (Collection<?>) value) {
+                size += ELEMENT_SIZE + estimateSize(element);
+            }
+            return size;
+        } else if (value instanceof Object[]) {
+            long size = OBJECT_SIZE;
+            for (final Object element : (Object[]) value) {
+                size += ELEMENT_SIZE + estimateSize(element);
+            }
+            return size;
+        }
+        return OBJECT_SIZE;
+    }
+
+    private void put(final Key key, final Result<T> result, final long size, final long timeToLive) {
+        if (timeToLive <= 0L || size > this.maxBytes) {
+            return;
+        }
+        final Entry<T> entry = new Entry<T>(result, size,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeToLive));
+        synchronized (this) {
+            final Entry<T> replaced = this.entries.put(key, entry);
+            if (replaced != null) {
+                this.bytes -= replaced.size;
+            }
+            this.bytes += size;
+            final Iterator<Map.Entry<Key, Entry<T>>> eldest = this.entries.entrySet().iterator();
+            while (this.entries.size() > this.maxEntries || this.bytes > this.maxBytes) {
+                this.bytes -= eldest.next().getValue().size;
+                eldest.remove();
+                this.evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The key of a login: a hash of its username and password.
+     */
+    public static final class Key {
+
+        private final byte[] hash;
+
+        private final int hashCode;
+
+        private Key(final byte[] hash) {
+            this.hash = hash;
+            this.hashCode = Arrays.hashCode(hash);
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof Key && Arrays.equals(this.hash, ((Key) other).hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
+
+    /**
+     * The remembered outcome of a login.
+     *
+     * @param <T> The result of an accepted login
+     */
+    public static final class Result<T> {
+
+        private final boolean accepted;
+
+        private final T value;
+
+        private Result(final boolean accepted, final T value) {
+            this.accepted = accepted;
+            this.value = value;
+        }
+
+        /**
+         * @return true if the login was accepted, false if it was rejected
+         */
+        public boolean isAccepted() {
+            return this.accepted;
+        }
+
+        /**
+         * @return the result of an accepted login, or null if it was rejected
+         */
+        public T getValue() {
+            return this.value;
+        }
+    }
+
+    /**
+     * An outcome, its estimated size and when it expires.
+     */
+    private static final class Entry<T> {
+
+        private final Result<T> result;
+
+        /** Estimated size of the entry in bytes. */
+        private final long size;
+
+        /** System.nanoTime() at which the entry expires. */
+        private final long expires;
+
+        private Entry(final Result<T> result, final long size, final long expires) {
+            this.result = result;
+            this.size = size;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+import net.jradius.client.RadiusClient;
+import net.jradius.client.auth.RadiusAuthenticator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the authenticator of each login for one protocol name, such as "pap" or
+ * "eap-ttls:innerProtocol=pap". RadiusClient.getAuthProtocol looks the name up, and introspects
+ * the authenticator for any options, on every call; here that is done once, leaving a constructor
+ * call and the option setters for each login.
+ *
+ * If the name cannot be resolved up front, every login falls back to RadiusClient.getAuthProtocol.
+ *
+ * @author Stefan Paetow
+ */
+final class AuthenticatorFactory {
+
+    /** Logger instance. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AuthenticatorFactory.class);
+
+    private final String protocolName;
+
+    /** Constructor of the authenticator class; null to fall back to RadiusClient. */
+    private final Constructor<? extends RadiusAuthenticator> constructor;
+
+    /** Setters of the options in the protocol name. */
+    private final Method[] setters;
+
+    /** Values of the options, converted to the setters' types. */
+    private final Object[] values;
+
+    /**
+     * @param protocolName The protocol name, with any options, as RadiusClient.getAuthProtocol takes it
+     */
+    AuthenticatorFactory(final String protocolName) {
+        this.protocolName = protocolName;
+
+        Constructor<? extends RadiusAuthenticator> resolved = null;
+        Method[] optionSetters = new Method[0];
+        Object[] optionValues = new Object[0];
+        final RadiusAuthenticator prototype = RadiusClient.getAuthProtocol(protocolName);
+        if (prototype != null) {
+            try {
+                resolved = prototype.getClass().getConstructor();
+                final int colon = protocolName.indexOf(':');
+                if (colon > 0 && colon < protocolName.length() - 1) {
+                    final String[] options = protocolName.substring(colon + 1).split(":");
+                    optionSetters = new Method[options.length];
+                    optionValues = new Object[options.length];
+                    final PropertyDescriptor[] properties =
+                            Introspector.getBeanInfo(prototype.getClass()).getPropertyDescriptors();
+                    for (int i = 0; i < options.length; i++) {
+                        resolveOption(options[i], properties, optionSetters, optionValues, i);
+                    }
+                }
+            } catch (final NoSuchMethodException | IntrospectionException | IllegalArgumentException e) {
+                LOGGER.warn("Unable to prepare authenticators for {}, resolving it on every login: {}",
+                        protocolName, e.getMessage());
+                resolved = null;
+            }
+        }
+        this.constructor = resolved;
+        this.setters = optionSetters;
+        this.values = optionValues;
+    }
+
+    /**
+     * @return a new authenticator for one login, or null if the protocol is unknown to JRadius
+     */
+    RadiusAuthenticator newAuthenticator() {
+        if (this.constructor != null) {
+            try {
+                final RadiusAuthenticator authenticator = this.constructor.newInstance();
+                for (int i = 0; i < this.setters.length; i++) {
+                    this.setters[i].invoke(authenticator, this.values[i]);
+                }
+                return authenticator;
+            } catch (final ReflectiveOperationException e) {
+                LOGGER.debug("Unable to create an authenticator for {}", this.protocolName, e);
+            }
+        }
+        return RadiusClient.getAuthProtocol(this.protocolName);
+    }
+
+    /**
+     * Finds the setter of one "name=value" option and converts its value, as JRadius does.
+     *
+     * @throws IllegalArgumentException if the option is malformed or has no setter
+     */
+    private static void resolveOption(final String option, final PropertyDescriptor[] properties,
+            final Method[] setters, final Object[] values, final int index) {
+        final int equals = option.indexOf('=');
+        if (equals <= 0) {
+            throw new IllegalArgumentException("malformed option " + option);
+        }
+        final String name = option.substring(0, equals);
+        final String value = option.substring(equals + 1);
+        for (final PropertyDescriptor property : properties) {
+            if (name.equals(property.getName()) && property.getWriteMethod() != null) {
+                final Class<?> type = property.getPropertyType();
+                setters[index] = property.getWriteMethod();
+                if (type == Boolean.class || type == boolean.class) {
+                    values[index] = Boolean.valueOf(value);
+                } else if (type == Integer.class || type == int.class) {
+                    values[index] = Integer.valueOf(value);
+                } else {
+                    values[index] = value;
+                }
+                return;
+            }
+        }
+        throw new IllegalArgumentException("no writable option " + name);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the health of one RADIUS server. The breaker is closed while the server answers, opens
+ * once the share of failed exchanges (timeouts and errors) in a sliding window of recent
+ * exchanges reaches the failure threshold, and then refuses all exchanges for the open time.
+ * After that it is half-open: a single login is let through as a probe, and its outcome closes
+ * the breaker again or re-opens it.
+ *
+ * Any answer from the server, Access-Reject included, counts as a success.
+ *
+ * @author Stefan Paetow
+ */
+public class CircuitBreaker {
+
+    /** Default number of recent exchanges considered, {@value}. */
+    public static final int DEFAULT_WINDOW = 20;
+
+    /** Default failure percentage at which the breaker opens, {@value}. */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 50;
+
+    /** Default time in milliseconds an open breaker refuses exchanges, {@value}. */
+    public static final long DEFAULT_OPEN_TIME = 30000L;
+
+    /** The states of a circuit breaker. */
+    public enum State {
+        /** The server is healthy and all exchanges go through. */
+        CLOSED,
+        /** The server is failing and exchanges are refused. */
+        OPEN,
+        /** A single probe exchange is allowed to test the server. */
+        HALF_OPEN
+    }
+
+    /** Outcomes of the recent exchanges as a ring, true for a failure; guarded by this. */
+    private final boolean[] outcomes;
+
+    /** Failure percentage at which the breaker opens. */
+    private final int failureThreshold;
+
+    /** Time in nanoseconds an open breaker refuses exchanges; 0 if the breaker never opens. */
+    private final long openTime;
+
+    /** Guarded by this. */
+    private State state = State.CLOSED;
+
+    /** Number of valid outcomes; guarded by this. */
+    private int count;
+
+    /** Where the next outcome goes; guarded by this. */
+    private int position;
+
+    /** Number of failures among the valid outcomes; guarded by this. */
+    private int failures;
+
+    /** When the breaker last opened, or the probe was let through; guarded by this. */
+    private long since;
+
+    /** Whether the half-open probe is in flight; guarded by this. */
+    private boolean probing;
+
+    public CircuitBreaker() {
+        this(DEFAULT_WINDOW, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_TIME);
+    }
+
+    /**
+     * @param window The number of recent exchanges considered
+     * @param failureThreshold The failure percentage at which the breaker opens
+     * @param openTime The time in milliseconds an open breaker refuses exchanges; 0 to never open
+     */
+    public CircuitBreaker(final int window, final int failureThreshold, final long openTime) {
+        this.outcomes = new boolean[Math.max(window, 1)];
+        this.failureThreshold = failureThreshold;
+        this.openTime = TimeUnit.MILLISECONDS.toNanos(openTime);
+    }
+
+    /**
+     * Asks whether an exchange may be sent to the server. Every permitted exchange must be followed
+     * by {@link #recordSuccess()}, {@link #recordFailure()} or {@link #release()}.
+     *
+     * @return false if the breaker is open, or half-open with its probe in flight
+     */
+    public synchronized boolean tryAcquire() {
+        switch (this.state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - this.since < this.openTime) {
+                    return false;
+                }
+                this.state = State.HALF_OPEN;
+                break;
+            default:
+                // a probe that never reported back must not keep the server out for good
+                if (this.probing && System.nanoTime() - this.since < this.openTime) {
+                    return false;
+                }
+                break;
+        }
+        this.probing = true;
+        this.since = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Records that the server answered.
+     */
+    public synchronized void recordSuccess() {
+        if (this.state == State.HALF_OPEN) {
+            close();
+            return;
+        }
+        record(false);
+    }
+
+    /**
+     * Records that the server timed out or the exchange failed.
+     */
+    public synchronized void recordFailure() {
+        if (this.state == State.HALF_OPEN) {
+            open();
+            return;
+        }
+        record(true);
+        if (this.openTime > 0L && this.count >= (this.outcomes.length + 1) / 2
+                && this.failures * 100 >= this.failureThreshold * this.count) {
+            open();
+        }
+    }
+
+    /**
+     * Records that a permitted exchange was abandoned without an outcome, for instance because it was cancelled.
+     */
+    public synchronized void release() {
+        this.probing = false;
+    }
+
+    /**
+     * @return the current state
+     */
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    private void record(final boolean failure) {
+        if (this.count == this.outcomes.length) {
+            if (this.outcomes[this.position]) {
+                this.failures--;
+            }
+        } else {
+            this.count++;
+        }
+        this.outcomes[this.position] = failure;
+        if (failure) {
+            this.failures++;
+        }
+        this.position = (this.position + 1) % this.outcomes.length;
+    }
+
+    private void open() {
+        this.state = State.OPEN;
+        this.since = System.nanoTime();
+        this.probing = false;
+    }
+
+    private void close() {
+        this.state = State.CLOSED;
+        this.probing = false;
+        this.count = 0;
+        this.position = 0;
+        this.failures = 0;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import java.util.Arrays;
+
+/**
+ * Keeps a sliding window of the most recent RADIUS exchange latencies and answers percentile
+ * queries over it. The window is re-sorted only after every sixteenth of it has been replaced,
+ * so queries are cheap enough to make on every login.
+ *
+ * @author Stefan Paetow
+ */
+public class LatencyTracker {
+
+    /** Default number of latencies kept, {@value}. */
+    public static final int DEFAULT_WINDOW = 512;
+
+    /** Number of latencies needed before percentiles are reported, {@value}. */
+    public static final int MIN_SAMPLES = 20;
+
+    /** The most recent latencies in milliseconds, as a ring; guarded by this. */
+    private final long[] samples;
+
+    /** Number of valid samples; guarded by this. */
+    private int count;
+
+    /** Where the next sample goes; guarded by this. */
+    private int position;
+
+    /** Samples recorded since the window was last sorted; guarded by this. */
+    private int unsorted;
+
+    /** The window as last sorted; guarded by this. */
+    private long[] sorted = new long[0];
+
+    public LatencyTracker() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window The number of most recent latencies to keep
+     */
+    public LatencyTracker(final int window) {
+        this.samples = new long[window];
+    }
+
+    /**
+     * @param latency The latency of a completed exchange, in milliseconds
+     */
+    public synchronized void record(final long latency) {
+        this.samples[this.position] = latency;
+        this.position = (this.position + 1) % this.samples.length;
+        if (this.count < this.samples.length) {
+            this.count++;
+        }
+        this.unsorted++;
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100
+     * @param defaultValue The value to return while too few latencies are known
+     * @return the latency in milliseconds below which the given percentage of recent exchanges completed
+     */
+    public synchronized long getPercentile(final double percentile, final long defaultValue) {
+        if (this.count < MIN_SAMPLES) {
+            return defaultValue;
+        }
+        if (this.unsorted > 0 && (this.sorted.length < this.samples.length || this.unsorted >= this.samples.length / 16)) {
+            this.sorted = Arrays.copyOf(this.samples, this.count);
+            Arrays.sort(this.sorted);
+            this.unsorted = 0;
+        }
+
+        final int rank = (int) Math.ceil(percentile / 100.0 * this.sorted.length) - 1;
+        return this.sorted[Math.max(0, Math.min(rank, this.sorted.length - 1))];
+    }
+}
@@ -0,0 +1,756 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import net.jradius.dictionary.Attr_AcctDelayTime;
+import net.jradius.dictionary.Attr_AcctSessionId;
+import net.jradius.dictionary.Attr_AcctSessionTime;
+import net.jradius.dictionary.Attr_AcctTerminateCause;
+import net.jradius.dictionary.Attr_EventTimestamp;
+import net.jradius.dictionary.Attr_NASIdentifier;
+import net.jradius.dictionary.Attr_UserName;
+import net.jradius.exception.RadiusException;
+import net.jradius.exception.TimeoutException;
+import net.jradius.packet.AccountingRequest;
+import net.jradius.packet.attribute.AttributeList;
+
+import org.jasig.cas.adaptors.radius.RadiusClientFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.diamond.cas.adaptors.radius.RadiusClientPool;
+import uk.ac.diamond.cas.adaptors.radius.RetransmittingRadiusClient;
+
+/**
+ * Sends RADIUS Accounting-Request records (RFC 2866) for logins without holding them up. A login
+ * only adds a Start or Stop event to a bounded, lock-free queue; a background thread sends the
+ * queued events in batches to the accounting port of the client factory, one client borrowed per
+ * batch, and retransmits each as the client's retries allow. Every record goes to that one
+ * accounting server, whichever authentication server accepted the login.
+ *
+ * When the server does not answer, the unsent events of the batch are queued again and the
+ * sender pauses for the flush interval. When the queue is full, the overflow policy decides:
+ * drop the new event, drop the oldest queued one, or spill the new event to a file, which is
+ * replayed once the queue has drained. After a failed replay the file is left alone for twice
+ * as long each time, up to a minute. Each record carries an Acct-Delay-Time, so a late record
+ * still tells the server when the event happened.
+ *
+ * Declare the accountant with init-method="init" and destroy-method="close"; on close, events
+ * still queued are sent if the server answers in time, and spilled or dropped otherwise.
+ *
+ * @author Stefan Paetow
+ */
+public class RadiusAccountant {
+
+    /** Default maximum number of queued events, {@value}. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    /** Default maximum number of events sent per batch, {@value}. */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    /** Default time in milliseconds the sender waits for a batch to fill up, {@value}. */
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000L;
+
+    /** Default retry count, {@value}. */
+    public static final int DEFAULT_RETRY_COUNT = 3;
+
+    /** What to do with an event when the queue is full. */
+    public enum OverflowPolicy {
+        /** The new event is dropped. */
+        DROP_NEWEST,
+        /** The oldest queued event is dropped to make room. */
+        DROP_OLDEST,
+        /** The new event is appended to the spill file. */
+        SPILL
+    }
+
+    /** Time in milliseconds close() waits for the sender to flush the queue. */
+    private static final long CLOSE_WAIT = 5000L;
+
+    /** Suffix of the spill file while it is replayed. */
+    private static final String REPLAY_SUFFIX = ".replay";
+
+    /** Longest time in milliseconds the sender waits after a failed replay, {@value}. */
+    private static final long MAX_REPLAY_BACKOFF = 60000L;
+
+    /** Logger instance. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(RadiusAccountant.class);
+
+    /** Lends out the clients that send the records. */
+    @NotNull
+    private final RadiusClientPool radiusClientPool;
+
+    /** Number of times to retry a record when no response is received. */
+    @Min(0)
+    private int retries = DEFAULT_RETRY_COUNT;
+
+    /** Maximum number of queued events. */
+    @Min(1)
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    /** Maximum number of events sent per batch. */
+    @Min(1)
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /** Time in milliseconds the sender waits for a batch to fill up. */
+    @Min(1)
+    private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    /** What to do with an event when the queue is full. */
+    @NotNull
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+
+    /** File events are spilled to under the SPILL policy; null to drop them instead. */
+    private File spillFile;
+
+    /** Whether every login is accounted as a session of its own, a Start followed by a Stop. */
+    private boolean sessionPerLogin = true;
+
+    /** Supplies the NAS identifier and the GSS acceptor attributes of each record. */
+    @NotNull
+    private AcceptorIdentityProvider acceptorIdentityProvider = AcceptorIdentityProvider.getDefault();
+
+    /** The queued events, oldest first. */
+    private final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<Event>();
+
+    /** Number of queued events, reserved before an event is added. */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /** Prefix of the session identifiers, unique to this accountant. */
+    private final String sessionPrefix = Long.toHexString(System.currentTimeMillis()) + "-";
+
+    /** Number of the last session identifier handed out. */
+    private final AtomicLong sessionCount = new AtomicLong();
+
+    private final AtomicLong sentCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final AtomicLong spilledCount = new AtomicLong();
+
+    /** Guards the spill file and its writer. */
+    private final Object spillLock = new Object();
+
+    /** Appends to the spill file; null until the first event is spilled. */
+    private Writer spillWriter;
+
+    /** The background sender; null until started. */
+    private volatile Thread sender;
+
+    /** Cleared on close. */
+    private volatile boolean running = true;
+
+    /** Time in milliseconds to wait after the next failed replay; 0 while replays succeed. Sender only. */
+    private long replayBackoff;
+
+    /** System.nanoTime() before which the spill file is not replayed. Sender only. */
+    private long replayNotBefore;
+
+    /**
+     * @param clientFactory The factory of the clients, whose accounting port the records go to
+     */
+    public RadiusAccountant(final RadiusClientFactory clientFactory) {
+        this(new RadiusClientPool(clientFactory));
+    }
+
+    /**
+     * @param clientPool The client pool, which may be shared with an ABFABRadiusServerImpl
+     */
+    public RadiusAccountant(final RadiusClientPool clientPool) {
+        this.radiusClientPool = clientPool;
+    }
+
+    /**
+     * Starts the background sender. Called automatically by the first event if the accountant was
+     * not started explicitly.
+     */
+    public synchronized void init() {
+        if (this.sender == null && this.running) {
+            final Thread thread = new RadiusExecutors.DaemonThreadFactory("abfab-radius-accounting-")
+                    .newThread(this::run);
+            this.sender = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the background sender once it has sent what is queued, or after a few seconds at most.
+     * Events still queued then are spilled under the SPILL policy and dropped otherwise.
+     */
+    public void close() {
+        final Thread thread;
+        synchronized (this) {
+            this.running = false;
+            thread = this.sender;
+        }
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(CLOSE_WAIT);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        drain();
+        synchronized (this.spillLock) {
+            closeSpillWriter();
+        }
+    }
+
+    /**
+     * Accounts one login: a Start, and straight away a Stop if every login is a session of its own.
+     *
+     * @param username The name the user logged in with
+     * @return the Acct-Session-Id of the login, to pass to {@link #stop(String, String, long)} later
+     */
+    public String login(final String username) {
+        final String sessionId = this.sessionPrefix + this.sessionCount.incrementAndGet();
+        final long now = System.currentTimeMillis();
+        enqueue(new Event(AccountingRequest.ACCT_STATUS_START, username, sessionId, now, 0L));
+        if (this.sessionPerLogin) {
+            enqueue(new Event(AccountingRequest.ACCT_STATUS_STOP, username, sessionId, now, 0L));
+        }
+        return sessionId;
+    }
+
+    /**
+     * Accounts the end of a session, for instance from a logout listener when sessionPerLogin is off.
+     *
+     * @param username The name the user logged in with
+     * @param sessionId The Acct-Session-Id returned by {@link #login(String)}
+     * @param sessionTime The length of the session in seconds
+     */
+    public void stop(final String username, final String sessionId, final long sessionTime) {
+        enqueue(new Event(AccountingRequest.ACCT_STATUS_STOP, username, sessionId,
+                System.currentTimeMillis(), sessionTime));
+    }
+
+    /**
+     * @return the number of events queued
+     */
+    public int getQueueSize() {
+        return this.queued.get();
+    }
+
+    /**
+     * @return the number of records the server acknowledged
+     */
+    public long getSentCount() {
+        return this.sentCount.get();
+    }
+
+    /**
+     * @return the number of records the server refused or that could not be encoded
+     */
+    public long getFailedCount() {
+        return this.failedCount.get();
+    }
+
+    /**
+     * @return the number of events dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    /**
+     * @return the number of events spilled to the spill file
+     */
+    public long getSpilledCount() {
+        return this.spilledCount.get();
+    }
+
+    /**
+     * @param retries Number of times to retry a record when no response is received; defaults to 3.
+     */
+    public void setRetries(final int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * @param queueCapacity Maximum number of queued events; defaults to 10000.
+     */
+    public void setQueueCapacity(final int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @param batchSize Maximum number of events sent per batch; defaults to 64.
+     */
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the time the sender waits for a batch to fill up before sending what is queued. It is
+     * also the pause after the server failed to answer.
+     *
+     * @param flushInterval Time in milliseconds; defaults to 1000.
+     */
+    public void setFlushInterval(final long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * @param overflowPolicy What to do with an event when the queue is full; defaults to DROP_NEWEST.
+     */
+    public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @param spillFile The file events are spilled to under the SPILL policy; without one they are dropped.
+     */
+    public void setSpillFile(final File spillFile) {
+        this.spillFile = spillFile;
+    }
+
+    /**
+     * Sets whether every login is accounted as a session of its own, a Start followed straight
+     * away by a Stop. CAS does not tell the handler about logouts, so turn this off only if a
+     * logout listener calls {@link #stop(String, String, long)}.
+     *
+     * @param sessionPerLogin false to send only a Start for each login; defaults to true.
+     */
+    public void setSessionPerLogin(final boolean sessionPerLogin) {
+        this.sessionPerLogin = sessionPerLogin;
+    }
+
+    /**
+     * @param acceptorIdentityProvider The provider of the NAS identifier and GSS acceptor
+     * attributes; defaults to the shared one also used by the servers.
+     */
+    public void setAcceptorIdentityProvider(final AcceptorIdentityProvider acceptorIdentityProvider) {
+        this.acceptorIdentityProvider = acceptorIdentityProvider;
+    }
+
+    /**
+     * Queues an event, or applies the overflow policy to it. Never blocks.
+     */
+    private void enqueue(final Event event) {
+        final Thread thread = this.sender;
+        if (thread == null) {
+            init();
+        }
+        if (!this.running) {
+            overflow(event);
+            return;
+        }
+        if (!offer(event)) {
+            if (this.overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                // make room once; if other logins fill it again first, this event goes
+                final Event oldest = poll();
+                if (oldest != null) {
+                    this.droppedCount.incrementAndGet();
+                }
+                if (offer(event)) {
+                    return;
+                }
+                this.droppedCount.incrementAndGet();
+                return;
+            }
+            overflow(event);
+            return;
+        }
+        if (!this.running) {
+            // close() may have drained the queue before this event was added
+            drain();
+            return;
+        }
+        if (thread != null && this.queued.get() >= this.batchSize) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return false if the queue is full
+     */
+    private boolean offer(final Event event) {
+        int size;
+        do {
+            size = this.queued.get();
+            if (size >= this.queueCapacity) {
+                return false;
+            }
+        } while (!this.queued.compareAndSet(size, size + 1));
+        this.queue.offer(event);
+        return true;
+    }
+
+    /**
+     * @return the oldest queued event, or null if there is none
+     */
+    private Event poll() {
+        final Event event = this.queue.poll();
+        if (event != null) {
+            this.queued.decrementAndGet();
+        }
+        return event;
+    }
+
+    /**
+     * Spills or drops every queued event.
+     */
+    private void drain() {
+        Event event;
+        while ((event = poll()) != null) {
+            overflow(event);
+        }
+    }
+
+    /**
+     * Spills an event that found the queue full, or drops it.
+     */
+    private void overflow(final Event event) {
+        if (this.overflowPolicy == OverflowPolicy.SPILL && this.spillFile != null) {
+            synchronized (this.spillLock) {
+                try {
+                    if (this.spillWriter == null) {
+                        this.spillWriter = new BufferedWriter(new OutputStreamWriter(
+                                new FileOutputStream(this.spillFile, true), StandardCharsets.UTF_8));
+                    }
+                    this.spillWriter.write(event.toLine());
+                    this.spilledCount.incrementAndGet();
+                    if (!this.running) {
+                        // no sender is left to flush or close the file, so keep nothing open
+                        closeSpillWriter();
+                    }
+                    return;
+                } catch (final IOException e) {
+                    LOGGER.warn("Unable to spill RADIUS accounting to {}: {}", this.spillFile, e.getMessage());
+                    closeSpillWriter();
+                }
+            }
+        }
+        this.droppedCount.incrementAndGet();
+    }
+
+    /**
+     * The background sender: sends a batch whenever one has filled up or the flush interval has
+     * passed, and replays spilled events once the queue is empty.
+     */
+    private void run() {
+        final long interval = TimeUnit.MILLISECONDS.toNanos(this.flushInterval);
+        final List<Event> batch = new ArrayList<Event>(this.batchSize);
+        while (true) {
+            if (this.running && this.queued.get() < this.batchSize) {
+                LockSupport.parkNanos(this, interval);
+            }
+            if (!this.running && this.queued.get() == 0) {
+                break;
+            }
+
+            batch.clear();
+            Event event;
+            while (batch.size() < this.batchSize && (event = poll()) != null) {
+                batch.add(event);
+            }
+            if (batch.isEmpty()) {
+                replaySpill();
+                continue;
+            }
+
+            final List<Event> unsent = send(batch);
+            if (unsent.isEmpty()) {
+                // the server answers again, so replay the spill file as soon as the queue is empty
+                this.replayBackoff = 0L;
+            } else {
+                for (final Event retry : unsent) {
+                    if (!this.running || !offer(retry)) {
+                        overflow(retry);
+                    }
+                }
+                if (!this.running) {
+                    // close() stopped waiting or is about to drain, so nothing queued now would be sent
+                    drain();
+                    break;
+                }
+                LockSupport.parkNanos(this, interval);
+            }
+            synchronized (this.spillLock) {
+                flushSpillWriter();
+            }
+        }
+        LOGGER.debug("RADIUS accounting sender stopped");
+    }
+
+    /**
+     * Sends a batch of events over one client. The batch ends at the first record the server
+     * does not answer.
+     *
+     * @return the events not sent, to try again later
+     */
+    private List<Event> send(final List<Event> batch) {
+        RetransmittingRadiusClient client = null;
+        boolean reusable = false;
+        int next = 0;
+        try {
+            client = this.radiusClientPool.borrowClient();
+            client.setDeadline(0L);
+            for (; next < batch.size(); next++) {
+                final Event event = batch.get(next);
+                try {
+                    client.accounting(newRequest(client, event), this.retries);
+                    this.sentCount.incrementAndGet();
+                } catch (final TimeoutException e) {
+                    throw e;
+                } catch (final RadiusException e) {
+                    this.failedCount.incrementAndGet();
+                    LOGGER.warn("RADIUS accounting {} of session {} failed: {}",
+                            event.statusType == AccountingRequest.ACCT_STATUS_START ? "Start" : "Stop",
+                            event.sessionId, e.getMessage());
+                }
+            }
+            reusable = true;
+        } catch (final RadiusException e) {
+            LOGGER.warn("Unable to send RADIUS accounting, {} events kept: {}", batch.size() - next, e.getMessage());
+        } finally {
+            if (client != null) {
+                this.radiusClientPool.returnClient(client, reusable);
+            }
+        }
+        return new ArrayList<Event>(batch.subList(next, batch.size()));
+    }
+
+    /**
+     * @return the Accounting-Request of an event
+     */
+    private AccountingRequest newRequest(final RetransmittingRadiusClient client, final Event event) {
+        final AccountingRequest request = new AccountingRequest(client);
+        request.setAccountingStatusType(event.statusType);
+        final AttributeList attributeList = request.getAttributes();
+        attributeList.add(new Attr_UserName(event.username));
+        attributeList.add(new Attr_AcctSessionId(event.sessionId));
+        attributeList.add(new Attr_NASIdentifier(this.acceptorIdentityProvider.getHostName()));
+        attributeList.add(new Attr_EventTimestamp(new Date(event.timestamp)));
+        attributeList.add(new Attr_AcctDelayTime(Long.valueOf(
+                TimeUnit.MILLISECONDS.toSeconds(Math.max(System.currentTimeMillis() - event.timestamp, 0L)))));
+        if (event.statusType == AccountingRequest.ACCT_STATUS_STOP) {
+            attributeList.add(new Attr_AcctSessionTime(Long.valueOf(event.sessionTime)));
+            attributeList.add(new Attr_AcctTerminateCause(Attr_AcctTerminateCause.UserRequest));
+        }
+        this.acceptorIdentityProvider.addAttributes(attributeList);
+        return request;
+    }
+
+    /**
+     * Sends the spilled events, a batch at a time. If the server stops answering, the events not
+     * sent are spilled again and the next replay waits for the backoff.
+     */
+    private void replaySpill() {
+        if (this.replayBackoff > 0L && System.nanoTime() - this.replayNotBefore < 0L) {
+            return;
+        }
+        final File replay;
+        synchronized (this.spillLock) {
+            if (this.spillFile == null || !this.spillFile.isFile()) {
+                return;
+            }
+            closeSpillWriter();
+            replay = new File(this.spillFile.getPath() + REPLAY_SUFFIX);
+            if (!this.spillFile.renameTo(replay)) {
+                LOGGER.warn("Unable to replay RADIUS accounting spilled to {}", this.spillFile);
+                return;
+            }
+        }
+
+        final long sent = this.sentCount.get();
+        final List<Event> batch = new ArrayList<Event>(this.batchSize);
+        boolean answering = true;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(replay), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!answering || !this.running) {
+                    respill(line + "\n");
+                    continue;
+                }
+                final Event event = Event.fromLine(line);
+                if (event != null) {
+                    batch.add(event);
+                    if (batch.size() == this.batchSize) {
+                        answering = replay(batch);
+                    }
+                }
+            }
+            if (answering && this.running && !batch.isEmpty()) {
+                answering = replay(batch);
+            }
+        } catch (final IOException e) {
+            LOGGER.warn("Unable to replay RADIUS accounting from {}: {}", replay, e.getMessage());
+            answering = false;
+        }
+        if (!replay.delete()) {
+            LOGGER.warn("Unable to delete {}", replay);
+        }
+        if (!this.running) {
+            // close() may already have closed the writer that the rest of the file was spilled to
+            synchronized (this.spillLock) {
+                closeSpillWriter();
+            }
+        }
+        if (this.sentCount.get() > sent) {
+            LOGGER.info("Replayed {} spilled RADIUS accounting events", this.sentCount.get() - sent);
+        }
+        if (answering) {
+            this.replayBackoff = 0L;
+        } else {
+            this.replayBackoff = this.replayBackoff == 0L
+                    ? this.flushInterval : Math.min(this.replayBackoff * 2L, MAX_REPLAY_BACKOFF);
+            this.replayNotBefore = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.replayBackoff);
+            LOGGER.debug("Replaying spilled RADIUS accounting again in {} ms", this.replayBackoff);
+        }
+    }
+
+    /**
+     * @return false if the server stopped answering, in which case the unsent events were spilled again
+     */
+    private boolean replay(final List<Event> batch) {
+        final List<Event> unsent = send(batch);
+        for (final Event event : unsent) {
+            respill(event.toLine());
+        }
+        batch.clear();
+        return unsent.isEmpty();
+    }
+
+    private void respill(final String line) {
+        synchronized (this.spillLock) {
+            try {
+                if (this.spillWriter == null) {
+                    this.spillWriter = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(this.spillFile, true), StandardCharsets.UTF_8));
+                }
+                this.spillWriter.write(line);
+            } catch (final IOException e) {
+                LOGGER.warn("Unable to spill RADIUS accounting to {}: {}", this.spillFile, e.getMessage());
+                this.droppedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /** Called with the spill lock held. */
+    private void flushSpillWriter() {
+        if (this.spillWriter != null) {
+            try {
+                this.spillWriter.flush();
+            } catch (final IOException e) {
+                LOGGER.warn("Unable to spill RADIUS accounting to {}: {}", this.spillFile, e.getMessage());
+            }
+        }
+    }
+
+    /** Called with the spill lock held. */
+    private void closeSpillWriter() {
+        if (this.spillWriter != null) {
+            try {
+                this.spillWriter.close();
+            } catch (final IOException e) {
+                LOGGER.warn("Unable to spill RADIUS accounting to {}: {}", this.spillFile, e.getMessage());
+            }
+            this.spillWriter = null;
+        }
+    }
+
+    /**
+     * A Start or Stop of one session.
+     */
+    private static final class Event {
+
+        /** Acct-Status-Type, Start or Stop. */
+        private final int statusType;
+
+        private final String username;
+
+        private final String sessionId;
+
+        /** System.currentTimeMillis() of the event. */
+        private final long timestamp;
+
+        /** Length of the session in seconds; 0 for a Start. */
+        private final long sessionTime;
+
+        private Event(final int statusType, final String username, final String sessionId,
+                final long timestamp, final long sessionTime) {
+            this.statusType = statusType;
+            this.username = username;
+            this.sessionId = sessionId;
+            this.timestamp = timestamp;
+            this.sessionTime = sessionTime;
+        }
+
+        /**
+         * @return the event as a line of the spill file
+         */
+        private String toLine() {
+            try {
+                return this.statusType + " " + this.timestamp + " " + this.sessionTime + " "
+                        + URLEncoder.encode(this.sessionId, "UTF-8") + " " + URLEncoder.encode(this.username, "UTF-8")
+                        + "\n";
+            } catch (final UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return the event of a line of the spill file, or null if it is malformed
+         */
+        private static Event fromLine(final String line) {
+            final String[] fields = line.split(" ");
+            if (fields.length != 5) {
+                LOGGER.warn("Skipping malformed spilled RADIUS accounting event: {}", line);
+                return null;
+            }
+            try {
+                return new Event(Integer.parseInt(fields[0]), URLDecoder.decode(fields[4], "UTF-8"),
+                        URLDecoder.decode(fields[3], "UTF-8"), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+            } catch (final NumberFormatException | UnsupportedEncodingException e) {
+                LOGGER.warn("Skipping malformed spilled RADIUS accounting event: {}", line);
+                return null;
+            }
+        }
+    }
+}
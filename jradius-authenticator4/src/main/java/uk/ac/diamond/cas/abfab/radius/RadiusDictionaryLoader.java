@@ -0,0 +1,156 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import net.jradius.packet.attribute.AttributeFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the JRadius attribute dictionary, once per JVM. The full dictionary registers a class for
+ * every attribute of every vendor; the trimmed ABFAB dictionary only those this project sends or
+ * reads, which starts faster and keeps thousands of classes out of metaspace.
+ *
+ * The dictionary is loaded before any server bean is configured, so it is chosen with the system
+ * property uk.ac.diamond.cas.abfab.radius.dictionary: "full" (the default), "abfab", or the name
+ * of an AttributeDictionary class. If the trimmed dictionary is not on the classpath, the full one
+ * is loaded instead. Servers check at construction that the loaded dictionary defines the
+ * attributes their protocol creates by name.
+ *
+ * @author Stefan Paetow
+ */
+public final class RadiusDictionaryLoader {
+
+    /** System property naming the dictionary, {@value}. */
+    public static final String DICTIONARY_PROPERTY = "uk.ac.diamond.cas.abfab.radius.dictionary";
+
+    /** Every attribute of every vendor, {@value}. */
+    public static final String FULL_DICTIONARY = "net.jradius.dictionary.AttributeDictionaryImpl";
+
+    /** Only the attributes ABFAB authentication needs, {@value}. */
+    public static final String ABFAB_DICTIONARY = "net.jradius.dictionary.ABFABAttributeDictionaryImpl";
+
+    /** Logger instance. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(RadiusDictionaryLoader.class);
+
+    /** Class name of the dictionary loaded; null until loaded. */
+    private static String loaded;
+
+    private RadiusDictionaryLoader() {
+    }
+
+    /**
+     * Loads the dictionary named by the system property, unless a dictionary was loaded already.
+     */
+    public static void load() {
+        load(System.getProperty(DICTIONARY_PROPERTY, "full"));
+    }
+
+    /**
+     * Loads a dictionary, unless one was loaded already.
+     *
+     * @param dictionary "full", "abfab" or the class name of an AttributeDictionary
+     */
+    public static synchronized void load(final String dictionary) {
+        if (loaded != null) {
+            return;
+        }
+
+        String className = dictionary.trim();
+        if ("full".equalsIgnoreCase(className)) {
+            className = FULL_DICTIONARY;
+        } else if ("abfab".equalsIgnoreCase(className)) {
+            className = ABFAB_DICTIONARY;
+        }
+        if (!FULL_DICTIONARY.equals(className) && !isAvailable(className)) {
+            LOGGER.warn("RADIUS dictionary {} is not on the classpath, loading {}", className, FULL_DICTIONARY);
+            className = FULL_DICTIONARY;
+        }
+
+        final long start = System.nanoTime();
+        AttributeFactory.loadAttributeDictionary(className);
+        LOGGER.info("Loaded RADIUS dictionary {} in {} ms", className,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        loaded = className;
+    }
+
+    /**
+     * @return the class name of the dictionary loaded, or null if none was loaded yet
+     */
+    public static synchronized String getLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Checks that the loaded dictionary defines every attribute the authenticator of a protocol
+     * creates by name, so that a dictionary lacking them fails at startup rather than at login.
+     *
+     * @param protocolName The protocol name, with any options, as RadiusClient.getAuthProtocol takes it
+     * @throws IllegalStateException if the dictionary lacks an attribute the protocol needs
+     */
+    public static void checkProtocol(final String protocolName) {
+        final String[] parts = protocolName.toLowerCase(Locale.ENGLISH).split(":");
+        checkAttributes(protocolName, requiredAttributes(parts[0]));
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].startsWith("innerprotocol=")) {
+                checkAttributes(protocolName, requiredAttributes(parts[i].substring("innerprotocol=".length())));
+            }
+        }
+    }
+
+    /**
+     * @param authProtocol A protocol name without options
+     * @return the attributes its authenticator creates by name beyond those of every request
+     */
+    private static List<String> requiredAttributes(final String authProtocol) {
+        if ("mschapv1".equals(authProtocol)) {
+            return Arrays.asList("MS-CHAP-Challenge", "MS-CHAP-Response");
+        } else if ("mschapv2".equals(authProtocol) || "mschap".equals(authProtocol)) {
+            return Arrays.asList("MS-CHAP-Challenge", "MS-CHAP2-Response");
+        } else if ("chap".equals(authProtocol)) {
+            return Arrays.asList("CHAP-Challenge", "CHAP-Password");
+        }
+        return Collections.emptyList();
+    }
+
+    private static void checkAttributes(final String protocolName, final List<String> attributes) {
+        for (final String attribute : attributes) {
+            if (!AttributeFactory.getAttributeNameMap().containsKey(attribute)) {
+                throw new IllegalStateException(String.format(
+                        "RADIUS dictionary %s does not define %s, which protocol %s needs", loaded,
+                        attribute, protocolName));
+            }
+        }
+    }
+
+    private static boolean isAvailable(final String className) {
+        try {
+            // only look the class up; loading it would load every attribute class it names
+            Class.forName(className, false, RadiusDictionaryLoader.class.getClassLoader());
+            return true;
+        } catch (final ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
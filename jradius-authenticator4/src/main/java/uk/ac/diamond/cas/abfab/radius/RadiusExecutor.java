@@ -0,0 +1,171 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.validation.constraints.Min;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs asynchronous RADIUS exchanges, and the SAML processing of their answers, on virtual threads
+ * where the Java runtime offers them (Java 21 or later), so that thousands of slow logins in
+ * flight do not each hold an operating system thread. On older runtimes, or if virtual threads
+ * are turned off, it falls back to a pool of platform daemon threads.
+ *
+ * The maximum concurrency caps the tasks running at once; the rest wait their turn. Give the
+ * executor to the RadiusServer and handler beans as p:executor-ref, and declare it with
+ * destroy-method="close".
+ *
+ * @author Stefan Paetow
+ */
+public class RadiusExecutor implements Executor {
+
+    /** Time in seconds an idle platform thread is kept. */
+    private static final long KEEP_ALIVE = 60L;
+
+    /** Logger instance. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(RadiusExecutor.class);
+
+    /** Whether to use virtual threads where available. */
+    private boolean virtualThreads = true;
+
+    /** Maximum number of tasks running at once; 0 for no limit. */
+    @Min(0)
+    private int maxConcurrency;
+
+    /** Runs the tasks; created on first use. */
+    private ExecutorService delegate;
+
+    /** Caps the tasks running on virtual threads; null without a cap. */
+    private Semaphore permits;
+
+    /** Whether the tasks run on virtual threads. */
+    private boolean virtual;
+
+    /** Whether close() has been called. */
+    private boolean closed;
+
+    @Override
+    public void execute(final Runnable task) {
+        final ExecutorService executor = getDelegate();
+        final Semaphore running = this.permits;
+        if (running == null) {
+            executor.execute(task);
+            return;
+        }
+        // a virtual thread parked on the semaphore costs next to nothing
+        executor.execute(() -> {
+            running.acquireUninterruptibly();
+            try {
+                task.run();
+            } finally {
+                running.release();
+            }
+        });
+    }
+
+    /**
+     * Stops accepting tasks; new ones are rejected with a RejectedExecutionException. Tasks already
+     * submitted still run.
+     */
+    public synchronized void close() {
+        this.closed = true;
+        if (this.delegate != null) {
+            this.delegate.shutdown();
+        }
+    }
+
+    /**
+     * @return true if tasks run on virtual threads, false if on platform threads or not started yet
+     */
+    public synchronized boolean isVirtual() {
+        return this.virtual;
+    }
+
+    /**
+     * Sets whether tasks run on virtual threads where the runtime offers them.
+     *
+     * @param virtualThreads false to always use platform threads; defaults to true.
+     */
+    public void setVirtualThreads(final boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Sets the maximum number of tasks running at once. With platform threads, this is also the
+     * size of the pool.
+     *
+     * @param maxConcurrency Maximum number of tasks; defaults to 0, no limit.
+     */
+    public void setMaxConcurrency(final int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * @return the executor running the tasks, created with the current settings on first use
+     */
+    private synchronized ExecutorService getDelegate() {
+        if (this.closed && this.delegate == null) {
+            throw new RejectedExecutionException("RADIUS executor is closed");
+        }
+        if (this.delegate == null) {
+            final ExecutorService executor = this.virtualThreads ? newVirtualThreadExecutor() : null;
+            if (executor != null) {
+                this.delegate = executor;
+                this.virtual = true;
+                if (this.maxConcurrency > 0) {
+                    this.permits = new Semaphore(this.maxConcurrency);
+                }
+            } else if (this.maxConcurrency > 0) {
+                final ThreadPoolExecutor pool = new ThreadPoolExecutor(this.maxConcurrency, this.maxConcurrency,
+                        KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                        new RadiusExecutors.DaemonThreadFactory("abfab-radius-"));
+                pool.allowCoreThreadTimeOut(true);
+                this.delegate = pool;
+            } else {
+                this.delegate = Executors.newCachedThreadPool(new RadiusExecutors.DaemonThreadFactory("abfab-radius-"));
+            }
+            LOGGER.info("Running RADIUS exchanges on {} threads{}", this.virtual ? "virtual" : "platform",
+                    this.maxConcurrency > 0 ? ", at most " + this.maxConcurrency + " at once" : "");
+        }
+        return this.delegate;
+    }
+
+    /**
+     * The code is compiled for Java 8, so the Java 21 factory is looked up at runtime.
+     *
+     * @return an executor starting a virtual thread per task, or null if the runtime has none
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            LOGGER.debug("Virtual threads are not available", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs blocking RADIUS exchanges asynchronously, with a time limit and cancellation. Cancelling
+ * the returned future, or letting it time out, interrupts the thread running the exchange.
+ *
+ * @author Stefan Paetow
+ */
+public final class RadiusExecutors {
+
+    /** Shared pool for asynchronous exchanges when none is configured. */
+    private static final ExecutorService DEFAULT_EXECUTOR =
+            Executors.newCachedThreadPool(new DaemonThreadFactory("abfab-radius-"));
+
+    /** Fires the time limits of asynchronous exchanges. */
+    private static final ScheduledExecutorService SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("abfab-radius-timer-"));
+
+    private RadiusExecutors() {
+    }
+
+    /**
+     * @return the shared executor used when none is configured
+     */
+    public static Executor getDefaultExecutor() {
+        return DEFAULT_EXECUTOR;
+    }
+
+    /**
+     * @return the shared scheduler for time limits and delayed work
+     */
+    public static ScheduledExecutorService getScheduler() {
+        return SCHEDULER;
+    }
+
+    /**
+     * Runs a task on the given executor.
+     *
+     * @param executor The executor to run the task on
+     * @param task The blocking task
+     * @param timeout Time limit in milliseconds; 0 for none
+     * @return a future completed with the task's result, its exception, or a TimeoutException
+     */
+    public static <T> CompletableFuture<T> submit(final Executor executor, final Callable<T> task, final long timeout) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        final Worker<T> worker = new Worker<T>(task, result);
+
+        if (timeout > 0L) {
+            final ScheduledFuture<?> timer = SCHEDULER.schedule(() -> result.completeExceptionally(
+                    new TimeoutException("RADIUS exchange did not complete within " + timeout + " ms")),
+                    timeout, TimeUnit.MILLISECONDS);
+            result.whenComplete((value, error) -> timer.cancel(false));
+        }
+        result.whenComplete((value, error) -> worker.interruptIfRunning());
+
+        try {
+            executor.execute(worker);
+        } catch (final RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Runs the task unless the future is already complete, and interrupts it if the future
+     * completes first.
+     */
+    private static final class Worker<T> implements Runnable {
+
+        private final Callable<T> task;
+
+        private final CompletableFuture<T> result;
+
+        /** The thread running the task; guarded by this. */
+        private Thread thread;
+
+        private Worker(final Callable<T> task, final CompletableFuture<T> result) {
+            this.task = task;
+            this.result = result;
+        }
+
+        public void run() {
+            synchronized (this) {
+                if (this.result.isDone()) {
+                    return;
+                }
+                this.thread = Thread.currentThread();
+            }
+            try {
+                this.result.complete(this.task.call());
+            } catch (final Throwable e) {
+                this.result.completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    this.thread = null;
+                    // don't leak an interrupt aimed at this task into the next one
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        private synchronized void interruptIfRunning() {
+            if (this.thread != null && this.thread != Thread.currentThread()) {
+                this.thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Creates named daemon threads, so asynchronous exchanges never hold up shutdown.
+     */
+    static final class DaemonThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, this.prefix + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
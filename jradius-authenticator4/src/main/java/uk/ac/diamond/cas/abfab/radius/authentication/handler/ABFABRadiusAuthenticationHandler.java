@@ -17,13 +17,36 @@
 
 package uk.ac.diamond.cas.abfab.radius.authentication.handler;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.security.GeneralSecurityException;
 
 import javax.management.AttributeNotFoundException;
 import javax.security.auth.login.FailedLoginException;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
+import javax.xml.stream.XMLStreamException;
 
 import net.jradius.exception.UnknownAttributeException;
 import net.jradius.packet.AccessAccept;
@@ -42,6 +65,16 @@ import org.opensaml.xml.io.UnmarshallingException;
 import org.opensaml.xml.parse.XMLParserException;
 
 import uk.ac.diamond.cas.abfab.radius.ABFABRadiusServerImpl;
+import uk.ac.diamond.cas.abfab.radius.AuthenticationCoalescer;
+import uk.ac.diamond.cas.abfab.radius.AuthenticationResultCache;
+import uk.ac.diamond.cas.abfab.radius.Bulkhead;
+import uk.ac.diamond.cas.abfab.radius.CircuitBreaker;
+import uk.ac.diamond.cas.abfab.radius.LatencyTracker;
+import uk.ac.diamond.cas.abfab.radius.RadiusAccountant;
+import uk.ac.diamond.cas.abfab.radius.RadiusDictionaryLoader;
+import uk.ac.diamond.cas.abfab.radius.RadiusExecutors;
+import uk.ac.diamond.cas.abfab.radius.metrics.AuthenticationMetrics;
+import uk.ac.diamond.cas.abfab.radius.metrics.AuthenticationMetrics.SamlFailure;
 
 /**
  * ABFAB Authentication Handler to authenticate a user against a Moonshot (ABFAB) RADIUS server.
@@ -54,6 +87,15 @@ import uk.ac.diamond.cas.abfab.radius.ABFABRadiusServerImpl;
  */
 public class ABFABRadiusAuthenticationHandler extends AbstractUsernamePasswordAuthenticationHandler {
 
+    /** Default percentile of recent latencies after which a hedged request is sent, {@value}. */
+    public static final double DEFAULT_HEDGE_PERCENTILE = 95.0;
+
+    /** Default hedge delay in milliseconds until enough latencies are known, {@value}. */
+    public static final long DEFAULT_HEDGE_DELAY = 1000L;
+
+    /** Default number of times the warm-up runs the SAML extraction, {@value}. */
+    public static final int DEFAULT_WARM_UP_ITERATIONS = 500;
+
     /** Array of RADIUS servers to authenticate against. */
     @NotNull
     @Size(min=1)
@@ -77,90 +119,800 @@ public class ABFABRadiusAuthenticationHandler extends AbstractUsernamePasswordAu
      */
     private String principalIdentifierURN;
 
+    /** Runs exchanges with servers that only offer blocking authentication, in asynchronous mode. */
+    @NotNull
+    private Executor executor = RadiusExecutors.getDefaultExecutor();
+
+    /** Parses SAML assertions; null to use the shared default context. */
+    private SAMLProcessingContext samlProcessingContext;
+
+    /** Whether to read the principal identifier in a single StAX pass rather than through OpenSAML. */
+    private boolean streamingExtraction = true;
+
+    /** Names of the principal attributes to release SAML attributes as, by SAML attribute name. */
+    private Map<String, String> attributeMapping = Collections.emptyMap();
+
+    /** Whether to release the SAML attributes missing from the mapping under their own names. */
+    private boolean releaseAllAttributes;
+
+    /** Whether to send the request to the next server when the outstanding ones are slow to answer. */
+    private boolean hedging;
+
+    /** Percentile of recent exchange latencies after which a hedged request is sent. */
+    @DecimalMin("0")
+    @DecimalMax("100")
+    private double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+
+    /** Hedge delay in milliseconds while too few latencies are known to take a percentile. */
+    @Min(0)
+    private long hedgeDelay = DEFAULT_HEDGE_DELAY;
+
+    /** Recent exchange latencies, across all servers. */
+    private final LatencyTracker latencyTracker = new LatencyTracker();
+
+    /** Number of recent exchanges each server's circuit breaker considers. */
+    @Min(1)
+    private int circuitBreakerWindow = CircuitBreaker.DEFAULT_WINDOW;
+
+    /** Failure percentage at which a server's circuit breaker opens. */
+    @Min(1)
+    @Max(100)
+    private int circuitBreakerFailureThreshold = CircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+
+    /** Time in milliseconds a server is skipped once its circuit breaker opens; 0 to never skip. */
+    @Min(0)
+    private long circuitBreakerOpenTime = CircuitBreaker.DEFAULT_OPEN_TIME;
+
+    /** The health of each server, created on first use. */
+    private final ConcurrentMap<RadiusServer, CircuitBreaker> circuitBreakers =
+            new ConcurrentHashMap<RadiusServer, CircuitBreaker>();
+
+    /** Maximum number of exchanges in flight to each server; 0 for no limit. */
+    @Min(0)
+    private int bulkheadLimit;
+
+    /** Maximum number of logins waiting for an exchange with a server at its limit to finish. */
+    @Min(0)
+    private int bulkheadQueueLength = Bulkhead.DEFAULT_MAX_QUEUE_LENGTH;
+
+    /** Time in milliseconds a login waits for an exchange with a server at its limit to finish. */
+    @Min(0)
+    private long bulkheadQueueWait = Bulkhead.DEFAULT_MAX_QUEUE_WAIT;
+
+    /** How each server's limit adapts to the server. */
+    @NotNull
+    private Bulkhead.Adaptation bulkheadAdaptation = Bulkhead.Adaptation.NONE;
+
+    /** The exchanges in flight to each server, created on first use. */
+    private final ConcurrentMap<RadiusServer, Bulkhead> bulkheads = new ConcurrentHashMap<RadiusServer, Bulkhead>();
+
+    /** Remembers the outcome of recent logins; null to always ask the servers. */
+    private AuthenticationResultCache<Principal> authenticationResultCache;
+
+    /** Shares exchanges between identical logins in flight; null to give every login its own. */
+    private AuthenticationCoalescer<Principal> authenticationCoalescer;
+
+    /** Outcomes and latencies of the logins through this handler. */
+    private final AuthenticationMetrics metrics = new AuthenticationMetrics();
+
+    /** Sends Accounting-Requests for accepted logins; null to send none. */
+    private RadiusAccountant radiusAccountant;
+
+    /** Whether init() warms the handler and its servers up. */
+    private boolean warmUp;
+
+    /** Whether the warm-up sends each server a Status-Server probe. */
+    private boolean warmUpProbes;
+
+    /** Number of times the warm-up runs the SAML extraction. */
+    @Min(0)
+    private int warmUpIterations = DEFAULT_WARM_UP_ITERATIONS;
+
     @Override
     protected final Principal authenticateUsernamePasswordInternal(final String username, final String password)
             throws GeneralSecurityException, PreventedException {
 
+        final long start = System.nanoTime();
+        try {
+            final Principal principal = authenticateWithCache(username, password);
+            this.metrics.recordAccept();
+            return principal;
+        } catch (final FailedLoginException e) {
+            this.metrics.recordReject();
+            throw e;
+        } catch (final GeneralSecurityException | PreventedException | RuntimeException e) {
+            this.metrics.recordError();
+            throw e;
+        } finally {
+            this.metrics.getLogin().recordSince(start);
+        }
+    }
+
+    /**
+     * Answers the login from the authentication result cache if possible, and otherwise authenticates
+     * the user at the configured servers.
+     */
+    private Principal authenticateWithCache(final String username, final String password)
+            throws GeneralSecurityException, PreventedException {
+
+        final AuthenticationResultCache<Principal> cache = this.authenticationResultCache;
+        if (cache == null) {
+            return authenticateCoalesced(username, password);
+        }
+
+        final AuthenticationResultCache.Key key = cache.getKey(username, password);
+        final AuthenticationResultCache.Result<Principal> cached = cache.get(key);
+        if (cached != null) {
+            logger.debug("Answering {} from the authentication result cache", username);
+            if (cached.isAccepted()) {
+                return cached.getValue();
+            }
+            throw new FailedLoginException();
+        }
+
+        try {
+            final Principal principal = authenticateCoalesced(username, password);
+            cache.putAccepted(key, principal, estimateSize(principal));
+            return principal;
+        } catch (final FailedLoginException e) {
+            cache.putRejected(key);
+            throw e;
+        }
+    }
+
+    /**
+     * Authenticates the user at the configured servers, sharing the exchange of an identical login
+     * already in flight if coalescing is enabled.
+     */
+    private Principal authenticateCoalesced(final String username, final String password)
+            throws GeneralSecurityException, PreventedException {
+
+        final AuthenticationCoalescer<Principal> coalescer = this.authenticationCoalescer;
+        if (coalescer == null) {
+            return authenticateAtServers(username, password);
+        }
+
+        final CompletableFuture<Principal> outcome = new CompletableFuture<Principal>();
+        final CompletableFuture<Principal> shared = coalescer.join(coalescer.getKey(username, password), outcome);
+        if (shared != null) {
+            logger.debug("Attaching {} to an identical login in flight", username);
+            this.metrics.recordCoalesced();
+            return await(shared);
+        }
+
+        try {
+            final Principal principal = authenticateAtServers(username, password);
+            outcome.complete(principal);
+            return principal;
+        } catch (final Throwable e) {
+            outcome.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Authenticates the user against the configured servers in turn, or with hedged requests.
+     */
+    private Principal authenticateAtServers(final String username, final String password)
+            throws GeneralSecurityException, PreventedException {
+
+        if (this.hedging) {
+            // exchanges overlap, so let the asynchronous pipeline run them
+            return await(authenticateAtServersAsync(username, password));
+        }
+
+        boolean attempted = false;
         for (final RadiusServer radiusServer : this.servers) {
+            final CircuitBreaker circuitBreaker = getCircuitBreaker(radiusServer);
+            if (!circuitBreaker.tryAcquire()) {
+                logger.debug("Skipping {} -- its circuit breaker is open", radiusServer);
+                continue;
+            }
+            final Bulkhead.Permit permit;
+            try {
+                permit = getBulkhead(radiusServer).acquire();
+            } catch (final InterruptedException e) {
+                circuitBreaker.release();
+                Thread.currentThread().interrupt();
+                throw new PreventedException(e);
+            }
+            if (permit == null) {
+                circuitBreaker.release();
+                this.metrics.recordShed();
+                logger.debug("Skipping {} -- too many requests in flight", radiusServer);
+                continue;
+            }
+            attempted = true;
+
             logger.debug("Attempting to authenticate {} at {}", username, radiusServer);
+            boolean answered = false;
             try {
                 if (radiusServer instanceof ABFABRadiusServerImpl) {
                     RadiusPacket radiusResponse = ((ABFABRadiusServerImpl) radiusServer).authenticateEx(username, password);
+                    answered = true;
+                    circuitBreaker.recordSuccess();
+                    permit.recordSuccess();
                     
                     // We had a successful authentication, and we have our extended server implementor
                     if (radiusResponse instanceof AccessAccept) {
-    
-                        // get the list of attributes, then feed it into the SAMLAssertionFilter
-                        final SAMLAssertionAttributeFilter samlAssertionFilter = 
-                                new SAMLAssertionAttributeFilter(radiusResponse.getAttributes());
-                        try {
-                            final String samlAssertion = samlAssertionFilter.getAssertion();
-                            logger.debug("Successfully extracted SAML assertion from RADIUS response: {}", samlAssertion);
-                            
-                            // try to load the assertion into a document
-                            final SAMLAssertionAttributeExtractor samlExtractor = new SAMLAssertionAttributeExtractor(samlAssertion);
-                            if (!samlExtractor.isEmpty()) {
-                                logger.debug("Successfully parsed SAML assertion into XML document");
-                            }
-                            try {
-                                if (samlExtractor.getAttributeStatement().hasChildren()) {
-                                    logger.debug("Found attribute statement in SAML2 assertion.");
-                                }
-                                
-                                final String newCredential = samlExtractor.getAttributeValue(principalIdentifierURN);
-                                if (!newCredential.isEmpty()) {
-                                    logger.info("Authentication was successful. Credential {} mapped to {}", username, newCredential);
-                                    // if we retrieved a credential from the assertion, return it here
-                                    return new SimplePrincipal(newCredential);
-                                } else {
-                                    logger.info("Authentication was successful. Credential mapping for {} failed. Continuing with existing credentials", 
-                                            username);
-                                }
-                            } catch (final UnmarshallingException e) {
-                                logger.error("Authentication was successful, unable to load the SAML assertion for information retrieval!");
-                            } catch (final IndexOutOfBoundsException e) {
-                                logger.error("Authentication was successful, no attribute statement found in the SAML assertion!");
-                            } catch (final AttributeNotFoundException e) {
-                                logger.error("Authentication was successful, unable to retrieve attribute {} from SAML assertion!", 
-                                        principalIdentifierURN);
-                            }
-
-                        } catch (final UnknownAttributeException e) {
-                            logger.error("Authentication was successful, but SAML assertion was not present in RADIUS response!");
-                        } catch (final ConfigurationException e) {
-                            logger.error("Authentication was successful, but SAML library initialisation failed!");
-                        } catch (final XMLParserException e) {
-                            logger.error("Authentication was successful, but parsing the included SAML assertion failed!");
-                        } catch (final Exception e) {
-                            logger.error("Authentication was successful, but another error occurred: " + e.toString());
-                        }
-
-                        // by this time we still only have the username that was entered, so return a principal here
-                        return new SimplePrincipal(username);
-
+                        account(username);
+                        return resolvePrincipal(username, radiusResponse);
                     } else if (!this.failoverOnAuthenticationFailure) {
                         throw new FailedLoginException();
                     }
+                    this.metrics.recordFailover();
                     logger.debug("failoverOnAuthenticationFailure enabled -- trying next server");
                 } else {
                     // do what the classic JRadiusServerImpl does
-                    if (radiusServer.authenticate(username, password)) {
+                    final boolean accepted = radiusServer.authenticate(username, password);
+                    answered = true;
+                    circuitBreaker.recordSuccess();
+                    permit.recordSuccess();
+                    if (accepted) {
+                        account(username);
                         return new SimplePrincipal(username);
                     } else if (!this.failoverOnAuthenticationFailure) {
                         throw new FailedLoginException();
                     }
+                    this.metrics.recordFailover();
                     logger.debug("failoverOnAuthenticationFailure enabled -- trying next server");
                 }
             } catch (final PreventedException e) {
+                circuitBreaker.recordFailure();
+                permit.recordFailure();
                 if (!this.failoverOnException) {
                     throw e;
                 }
+                this.metrics.recordFailover();
                 logger.warn("failoverOnException enabled -- trying next server.", e);
+            } catch (final RuntimeException e) {
+                if (!answered) {
+                    // otherwise a half-open circuit breaker would keep its probe slot until it reopens
+                    circuitBreaker.recordFailure();
+                    permit.recordFailure();
+                }
+                throw e;
+            } finally {
+                permit.release();
             }
         }
+        if (!attempted) {
+            throw new PreventedException(
+                    "No RADIUS server available -- every server is at its limit or has its circuit breaker open", null);
+        }
         throw new FailedLoginException();
     }
 
+    /**
+     * Waits for the outcome of an asynchronous login, cancelling it if the thread is interrupted.
+     */
+    private static Principal await(final CompletableFuture<Principal> result)
+            throws GeneralSecurityException, PreventedException {
+        try {
+            return result.get();
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            } else if (e.getCause() instanceof PreventedException) {
+                throw (PreventedException) e.getCause();
+            }
+            throw new PreventedException(e.getCause());
+        } catch (final InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new PreventedException(e);
+        }
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #authenticateUsernamePasswordInternal(String, String)}: the RADIUS
+     * exchanges, SAML extraction and failover run as a pipeline, and the calling thread does not wait.
+     * Cancelling the returned stage cancels the exchanges in progress.
+     *
+     * With hedging enabled, the request is also sent to the next server whenever the outstanding
+     * ones have not answered within the hedge delay; the first definitive answer wins.
+     *
+     * @param username The username to authenticate
+     * @param password The password to authenticate
+     * @return A stage completed with the principal, or exceptionally with a FailedLoginException,
+     * PreventedException or TimeoutException
+     */
+    public CompletionStage<Principal> authenticateAsync(final String username, final String password) {
+        final long start = System.nanoTime();
+        final CompletableFuture<Principal> result = authenticateWithCacheAsync(username, password);
+        result.whenComplete((principal, error) -> {
+            this.metrics.getLogin().recordSince(start);
+            if (principal != null) {
+                this.metrics.recordAccept();
+            } else if (error instanceof FailedLoginException) {
+                this.metrics.recordReject();
+            } else {
+                this.metrics.recordError();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #authenticateWithCache(String, String)}.
+     */
+    private CompletableFuture<Principal> authenticateWithCacheAsync(final String username, final String password) {
+        final AuthenticationResultCache<Principal> cache = this.authenticationResultCache;
+        if (cache == null) {
+            return authenticateCoalescedAsync(username, password);
+        }
+
+        final AuthenticationResultCache.Key key = cache.getKey(username, password);
+        final AuthenticationResultCache.Result<Principal> cached = cache.get(key);
+        if (cached != null) {
+            logger.debug("Answering {} from the authentication result cache", username);
+            final CompletableFuture<Principal> result = new CompletableFuture<Principal>();
+            if (cached.isAccepted()) {
+                result.complete(cached.getValue());
+            } else {
+                result.completeExceptionally(new FailedLoginException());
+            }
+            return result;
+        }
+
+        final CompletableFuture<Principal> result = authenticateCoalescedAsync(username, password);
+        result.whenComplete((principal, error) -> {
+            if (principal != null) {
+                cache.putAccepted(key, principal, estimateSize(principal));
+            } else if (error instanceof FailedLoginException) {
+                cache.putRejected(key);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #authenticateCoalesced(String, String)}.
+     */
+    private CompletableFuture<Principal> authenticateCoalescedAsync(final String username, final String password) {
+        final AuthenticationCoalescer<Principal> coalescer = this.authenticationCoalescer;
+        if (coalescer == null) {
+            return authenticateAtServersAsync(username, password);
+        }
+
+        final CompletableFuture<Principal> outcome = new CompletableFuture<Principal>();
+        final CompletableFuture<Principal> shared = coalescer.join(coalescer.getKey(username, password), outcome);
+        if (shared != null) {
+            logger.debug("Attaching {} to an identical login in flight", username);
+            this.metrics.recordCoalesced();
+            return shared;
+        }
+
+        final CompletableFuture<Principal> result = authenticateAtServersAsync(username, password);
+        result.whenComplete((principal, error) -> {
+            if (error != null) {
+                outcome.completeExceptionally(error);
+            } else {
+                outcome.complete(principal);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return the future outcome of a new asynchronous login at the configured servers
+     */
+    private CompletableFuture<Principal> authenticateAtServersAsync(final String username, final String password) {
+        final Authentication authentication = new Authentication(username, password);
+        authentication.start();
+        return authentication.result;
+    }
+
+    /**
+     * @param radiusServer A configured server
+     * @return the circuit breaker tracking the server's health
+     */
+    private CircuitBreaker getCircuitBreaker(final RadiusServer radiusServer) {
+        return this.circuitBreakers.computeIfAbsent(radiusServer, server -> new CircuitBreaker(
+                this.circuitBreakerWindow, this.circuitBreakerFailureThreshold, this.circuitBreakerOpenTime));
+    }
+
+    /**
+     * @param radiusServer A configured server
+     * @return the bulkhead limiting the exchanges in flight to the server
+     */
+    private Bulkhead getBulkhead(final RadiusServer radiusServer) {
+        return this.bulkheads.computeIfAbsent(radiusServer, server -> new Bulkhead(
+                this.bulkheadLimit, this.bulkheadQueueLength, this.bulkheadQueueWait, this.bulkheadAdaptation));
+    }
+
+    /**
+     * Feeds the outcome of an exchange to the server's circuit breaker and bulkhead. Cancelled
+     * exchanges say nothing about the server's health.
+     */
+    private static void recordOutcome(final CircuitBreaker circuitBreaker, final Bulkhead.Permit permit,
+            final Throwable error) {
+        if (error == null) {
+            circuitBreaker.recordSuccess();
+            permit.recordSuccess();
+        } else if (error instanceof CancellationException || error.getCause() instanceof CancellationException) {
+            circuitBreaker.release();
+            permit.release();
+        } else {
+            circuitBreaker.recordFailure();
+            permit.recordFailure();
+        }
+    }
+
+    /**
+     * @return the time in milliseconds after which a hedged request goes to the next server
+     */
+    private long getHedgeDelay() {
+        return this.latencyTracker.getPercentile(this.hedgePercentile, this.hedgeDelay);
+    }
+
+    /**
+     * The state of one asynchronous login: which server to try next and how many exchanges are
+     * still outstanding. Guarded by itself, as hedge timers and answers arrive on different threads.
+     */
+    private final class Authentication {
+
+        private final String username;
+
+        private final String password;
+
+        private final CompletableFuture<Principal> result = new CompletableFuture<Principal>();
+
+        /** Index of the next server to try. */
+        private int nextServer;
+
+        /** Number of exchanges started but not yet answered. */
+        private int outstanding;
+
+        /** Bulkhead permit for the server last returned by {@link #nextAvailableServer()}. */
+        private Bulkhead.Permit permit;
+
+        private Authentication(final String username, final String password) {
+            this.username = username;
+            this.password = password;
+        }
+
+        /**
+         * Sends the request to the first available server.
+         */
+        private synchronized void start() {
+            if (!tryNextServer()) {
+                this.result.completeExceptionally(new PreventedException(
+                        "No RADIUS server available -- every server is at its limit or has its circuit breaker open", null));
+            }
+        }
+
+        /**
+         * Sends the request to the next server whose circuit breaker lets it through, if any is left.
+         *
+         * @return false if every server has been tried or skipped
+         */
+        private synchronized boolean tryNextServer() {
+            final RadiusServer radiusServer = nextAvailableServer();
+            if (radiusServer == null) {
+                return false;
+            }
+            final CircuitBreaker circuitBreaker = getCircuitBreaker(radiusServer);
+            final Bulkhead.Permit permit = this.permit;
+
+            logger.debug("Attempting to authenticate {} at {}", this.username, radiusServer);
+            this.outstanding++;
+            final long start = System.nanoTime();
+
+            final CompletableFuture<?> exchange;
+            final CompletableFuture<Principal> outcome;
+            if (radiusServer instanceof ABFABRadiusServerImpl) {
+                final CompletableFuture<RadiusPacket> radiusResponse = ((ABFABRadiusServerImpl) radiusServer)
+                        .authenticateAsync(this.username, this.password).toCompletableFuture();
+                exchange = radiusResponse;
+                outcome = radiusResponse.thenApply(response -> {
+                    latencyTracker.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    return response instanceof AccessAccept ? resolvePrincipal(this.username, response) : null;
+                });
+            } else {
+                // the classic JRadiusServerImpl blocks, so give it a thread of its own
+                outcome = RadiusExecutors.submit(executor, () -> {
+                    final boolean accepted = radiusServer.authenticate(this.username, this.password);
+                    latencyTracker.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    return accepted ? new SimplePrincipal(this.username) : null;
+                }, 0L);
+                exchange = outcome;
+            }
+            exchange.whenComplete((response, error) -> recordOutcome(circuitBreaker, permit, error));
+            this.result.whenComplete((principal, error) -> exchange.cancel(true));
+
+            if (hedging) {
+                final ScheduledFuture<?> hedge = RadiusExecutors.getScheduler().schedule(() -> {
+                    if (!outcome.isDone() && tryNextServer()) {
+                        metrics.recordHedge();
+                        logger.debug("No answer from {} within the hedge delay -- trying next server", radiusServer);
+                    }
+                }, getHedgeDelay(), TimeUnit.MILLISECONDS);
+                outcome.whenComplete((principal, error) -> hedge.cancel(false));
+            }
+
+            outcome.whenComplete((principal, error) -> onOutcome(principal, error));
+            return true;
+        }
+
+        /**
+         * Finds the next server whose circuit breaker and bulkhead let the request through, leaving
+         * the bulkhead's permit in {@link #permit}. Asynchronous logins never wait for a bulkhead.
+         *
+         * @return the server, or null if none is left
+         */
+        private RadiusServer nextAvailableServer() {
+            while (this.nextServer < servers.size() && !this.result.isDone()) {
+                final RadiusServer radiusServer = servers.get(this.nextServer++);
+                final CircuitBreaker circuitBreaker = getCircuitBreaker(radiusServer);
+                if (!circuitBreaker.tryAcquire()) {
+                    logger.debug("Skipping {} -- its circuit breaker is open", radiusServer);
+                    continue;
+                }
+                this.permit = getBulkhead(radiusServer).tryAcquire();
+                if (this.permit != null) {
+                    return radiusServer;
+                }
+                circuitBreaker.release();
+                metrics.recordShed();
+                logger.debug("Skipping {} -- too many requests in flight", radiusServer);
+            }
+            return null;
+        }
+
+        /**
+         * Completes the login on a definitive answer, and otherwise fails over to the next server.
+         */
+        private synchronized void onOutcome(final Principal principal, final Throwable error) {
+            this.outstanding--;
+            if (error == null) {
+                if (principal != null) {
+                    // only the winning answer of hedged exchanges is accounted
+                    if (this.result.complete(principal)) {
+                        account(this.username);
+                    }
+                    return;
+                } else if (!failoverOnAuthenticationFailure) {
+                    this.result.completeExceptionally(new FailedLoginException());
+                    return;
+                }
+                metrics.recordFailover();
+                logger.debug("failoverOnAuthenticationFailure enabled -- trying next server");
+            } else {
+                final Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                if (!failoverOnException
+                        || !(cause instanceof PreventedException || cause instanceof TimeoutException)) {
+                    if (this.outstanding > 0) {
+                        // a hedged exchange may still answer, so the login fails only if that one fails too
+                        logger.debug("Exchange failed, waiting for the hedged request: {}", cause.toString());
+                        return;
+                    }
+                    this.result.completeExceptionally(cause);
+                    return;
+                }
+                metrics.recordFailover();
+                logger.warn("failoverOnException enabled -- trying next server.", cause);
+            }
+
+            // a hedged exchange may still answer, in which case the login waits for it
+            if (!tryNextServer() && this.outstanding == 0) {
+                this.result.completeExceptionally(new FailedLoginException());
+            }
+        }
+    }
+
+    /**
+     * Consumes the SAML assertion in an Access-Accept and maps the user to the principal it identifies.
+     *
+     * @param username The username that was authenticated
+     * @param radiusResponse The Access-Accept packet
+     * @return the principal named in the assertion, or the username if it could not be mapped
+     */
+    private Principal resolvePrincipal(final String username, final RadiusPacket radiusResponse) {
+        // get the list of attributes, then feed it into the SAMLAssertionFilter
+        final SAMLAssertionAttributeFilter samlAssertionFilter = 
+                new SAMLAssertionAttributeFilter(radiusResponse.getAttributes());
+        Map<String, Object> attributes = Collections.emptyMap();
+        try {
+            final long start = System.nanoTime();
+            final ByteBuffer samlAssertion = samlAssertionFilter.getAssertionBytes();
+            this.metrics.getAssertion().recordSince(start);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Successfully extracted SAML assertion from RADIUS response: {}",
+                        StandardCharsets.UTF_8.decode(samlAssertion.duplicate()));
+            }
+            
+            try {
+                final long extraction = System.nanoTime();
+                final Map<String, List<String>> values = extractAttributeValues(samlAssertion);
+                this.metrics.getExtraction().recordSince(extraction);
+                attributes = releaseAttributes(values);
+                final List<String> identifier = values.get(principalIdentifierURN);
+                if (identifier == null || identifier.isEmpty()) {
+                    throw new AttributeNotFoundException(
+                            String.format("Attribute %s not found in SAML AttributeStatement", principalIdentifierURN));
+                }
+                final String newCredential = identifier.get(0);
+                if (!newCredential.isEmpty()) {
+                    logger.info("Authentication was successful. Credential {} mapped to {}", username, newCredential);
+                    // if we retrieved a credential from the assertion, return it here
+                    return new SimplePrincipal(newCredential, attributes);
+                } else {
+                    this.metrics.recordSamlFailure(SamlFailure.ATTRIBUTE_MISSING);
+                    logger.info("Authentication was successful. Credential mapping for {} failed. Continuing with existing credentials", 
+                            username);
+                }
+            } catch (final UnmarshallingException e) {
+                this.metrics.recordSamlFailure(SamlFailure.UNMARSHALLING);
+                logger.error("Authentication was successful, unable to load the SAML assertion for information retrieval!");
+            } catch (final IndexOutOfBoundsException e) {
+                this.metrics.recordSamlFailure(SamlFailure.ATTRIBUTE_STATEMENT_MISSING);
+                logger.error("Authentication was successful, no attribute statement found in the SAML assertion!");
+            } catch (final AttributeNotFoundException e) {
+                this.metrics.recordSamlFailure(SamlFailure.ATTRIBUTE_MISSING);
+                logger.error("Authentication was successful, unable to retrieve attribute {} from SAML assertion!", 
+                        principalIdentifierURN);
+            }
+
+        } catch (final UnknownAttributeException e) {
+            this.metrics.recordSamlFailure(SamlFailure.ASSERTION_MISSING);
+            logger.error("Authentication was successful, but SAML assertion was not present in RADIUS response!");
+        } catch (final ConfigurationException e) {
+            this.metrics.recordSamlFailure(SamlFailure.CONFIGURATION);
+            logger.error("Authentication was successful, but SAML library initialisation failed!");
+        } catch (final XMLParserException e) {
+            this.metrics.recordSamlFailure(SamlFailure.PARSING);
+            logger.error("Authentication was successful, but parsing the included SAML assertion failed!");
+        } catch (final Exception e) {
+            this.metrics.recordSamlFailure(SamlFailure.OTHER);
+            logger.error("Authentication was successful, but another error occurred: " + e.toString());
+        }
+
+        // by this time we still only have the username that was entered, so return a principal here
+        return new SimplePrincipal(username, attributes);
+    }
+
+    /**
+     * Reads the principal identifier and the attributes to release from the SAML assertion: in a
+     * single streaming pass unless streaming extraction is disabled, and otherwise (or if that pass
+     * fails) through the full OpenSAML object model.
+     *
+     * @param samlAssertion the SAML assertion as its encoded bytes
+     * @return the values of the attributes read, by SAML attribute name
+     */
+    private Map<String, List<String>> extractAttributeValues(final ByteBuffer samlAssertion)
+            throws ConfigurationException, XMLParserException, UnmarshallingException, AttributeNotFoundException {
+        final Collection<String> attributeIds = getRequestedAttributes();
+        if (this.streamingExtraction) {
+            try {
+                final SAMLAssertionStreamingExtractor samlExtractor = new SAMLAssertionStreamingExtractor(samlAssertion);
+                return attributeIds != null
+                        ? samlExtractor.getAttributeValues(attributeIds) : samlExtractor.getAllAttributeValues();
+            } catch (final XMLStreamException e) {
+                logger.debug("Streaming SAML extraction failed, falling back to the full parser: {}", e.getMessage());
+            }
+        }
+
+        // try to load the assertion into a document
+        final SAMLAssertionAttributeExtractor samlExtractor = this.samlProcessingContext != null
+                ? new SAMLAssertionAttributeExtractor(this.samlProcessingContext, samlAssertion)
+                : new SAMLAssertionAttributeExtractor(samlAssertion);
+        if (!samlExtractor.isEmpty()) {
+            logger.debug("Successfully parsed SAML assertion into XML document");
+        }
+
+        if (samlExtractor.getAttributeStatement().hasChildren()) {
+            logger.debug("Found attribute statement in SAML2 assertion.");
+        }
+        return attributeIds != null
+                ? samlExtractor.getAttributeValues(attributeIds) : samlExtractor.getAllAttributeValues();
+    }
+
+    /**
+     * @return the SAML attributes to read: the principal identifier and the mapped attributes, or
+     * null for all of them
+     */
+    private Collection<String> getRequestedAttributes() {
+        if (this.releaseAllAttributes) {
+            return null;
+        }
+        if (this.attributeMapping.isEmpty()) {
+            return Collections.singleton(principalIdentifierURN);
+        }
+        final Collection<String> attributeIds = new HashSet<String>(this.attributeMapping.keySet());
+        attributeIds.add(principalIdentifierURN);
+        return attributeIds;
+    }
+
+    /**
+     * Renames the SAML attributes to release to their principal attribute names. An attribute with
+     * a single value is released as a String, one with several as a List of them.
+     *
+     * @param values the values of the attributes read, by SAML attribute name
+     * @return the principal attributes
+     */
+    private Map<String, Object> releaseAttributes(final Map<String, List<String>> values) {
+        if (this.attributeMapping.isEmpty() && !this.releaseAllAttributes) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Object> attributes = new HashMap<String, Object>(values.size() * 2);
+        for (final Map.Entry<String, List<String>> value : values.entrySet()) {
+            String name = this.attributeMapping.get(value.getKey());
+            if (name == null) {
+                if (!this.releaseAllAttributes) {
+                    continue;
+                }
+                name = value.getKey();
+            }
+            final List<String> attributeValues = value.getValue();
+            if (!attributeValues.isEmpty()) {
+                attributes.put(name, attributeValues.size() == 1 ? attributeValues.get(0) : attributeValues);
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * @return the estimated size in bytes of a principal and its released attributes
+     */
+    private static long estimateSize(final Principal principal) {
+        return AuthenticationResultCache.estimateSize(principal.getId())
+                + AuthenticationResultCache.estimateSize(principal.getAttributes());
+    }
+
+    /**
+     * Queues the accounting of a login a server has just accepted; the login does not wait for it
+     * to be sent.
+     */
+    private void account(final String username) {
+        if (this.radiusAccountant != null) {
+            this.radiusAccountant.login(username);
+        }
+    }
+
+    /**
+     * Warms the handler up, if enabled, so that the first logins do not pay for loading the RADIUS
+     * dictionary and the SAML libraries, resolving names, or running the extraction path cold.
+     * Declare the handler with init-method="init"; it is ready for load once this returns.
+     */
+    public void init() {
+        if (!this.warmUp) {
+            return;
+        }
+        final long start = System.nanoTime();
+        RadiusDictionaryLoader.load();
+
+        int warmed = 0;
+        int ready = 0;
+        for (final RadiusServer radiusServer : this.servers) {
+            if (radiusServer instanceof ABFABRadiusServerImpl) {
+                warmed++;
+                if (((ABFABRadiusServerImpl) radiusServer).warmUp(this.warmUpProbes)) {
+                    ready++;
+                }
+            }
+        }
+
+        try {
+            if (this.samlProcessingContext == null) {
+                SAMLProcessingContext.getDefault();
+            }
+            final Collection<String> attributeIds = new HashSet<String>(this.attributeMapping.keySet());
+            if (principalIdentifierURN != null) {
+                attributeIds.add(principalIdentifierURN);
+            }
+            final AttributeList attributes = WarmUpAssertion.build(attributeIds);
+            for (int i = 0; i < this.warmUpIterations; i++) {
+                extractAttributeValues(new SAMLAssertionAttributeFilter(attributes).getAssertionBytes());
+            }
+        } catch (final Exception e) {
+            logger.warn("Warm-up of the SAML extraction failed: " + e.toString());
+        }
+        logger.info("Warmed up in {} ms; {} of {} RADIUS servers ready",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), ready, warmed);
+    }
+
     /**
      * Determines whether to fail over to the next configured RadiusServer if
      * there was an authentication failure.
@@ -193,6 +945,226 @@ public class ABFABRadiusAuthenticationHandler extends AbstractUsernamePasswordAu
         this.principalIdentifierURN = principalIdentifierURN;
     }
 
+    /**
+     * Sets the executor that runs exchanges with servers that only offer blocking authentication,
+     * when authenticating asynchronously.
+     * 
+     * @param executor The executor; defaults to a shared pool of daemon threads.
+     */
+    public void setExecutor(final Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the context that parses the SAML assertions, for instance to size its parser pool.
+     * 
+     * @param samlProcessingContext The context; defaults to a shared one.
+     */
+    public void setSamlProcessingContext(final SAMLProcessingContext samlProcessingContext) {
+        this.samlProcessingContext = samlProcessingContext;
+    }
+
+    /**
+     * Determines how the principal identifier is read from the SAML assertion.
+     * 
+     * @param streamingExtraction true (the default) for a single streaming pass over the assertion,
+     * false to always unmarshall the complete assertion with OpenSAML.
+     */
+    public void setStreamingExtraction(final boolean streamingExtraction) {
+        this.streamingExtraction = streamingExtraction;
+    }
+
+    /**
+     * Releases SAML attributes of the assertion as principal attributes, so that no attribute
+     * repository has to be asked for them. They are read in the same pass as the principal
+     * identifier.
+     * 
+     * @param attributeMapping The name to release each SAML attribute under, by SAML attribute name
+     * (for instance urn:oid:0.9.2342.19200300.100.1.3 to mail); defaults to none.
+     */
+    public void setAttributeMapping(final Map<String, String> attributeMapping) {
+        this.attributeMapping = attributeMapping != null
+                ? new HashMap<String, String>(attributeMapping) : Collections.<String, String>emptyMap();
+    }
+
+    /**
+     * Determines whether SAML attributes missing from the attribute mapping are released too.
+     * 
+     * @param releaseAllAttributes true to release them under their SAML attribute names, false
+     * (the default) to release only the mapped ones.
+     */
+    public void setReleaseAllAttributes(final boolean releaseAllAttributes) {
+        this.releaseAllAttributes = releaseAllAttributes;
+    }
+
+    /**
+     * Enables hedged requests: if no configured server has answered within the hedge delay, the
+     * request is also sent to the next server, and the first definitive answer wins. Outstanding
+     * requests are then cancelled.
+     * 
+     * @param hedging true to hedge, false (the default) to try servers strictly one after the other.
+     */
+    public void setHedging(final boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * Sets the percentile of recent exchange latencies used as the hedge delay.
+     * 
+     * @param hedgePercentile The percentile, between 0 and 100; defaults to 95.
+     */
+    public void setHedgePercentile(final double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Sets the hedge delay used until enough exchange latencies are known.
+     * 
+     * @param hedgeDelay Delay in milliseconds; defaults to 1000.
+     */
+    public void setHedgeDelay(final long hedgeDelay) {
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    /**
+     * Sets the number of recent exchanges each server's circuit breaker considers.
+     * 
+     * @param circuitBreakerWindow The window size; defaults to 20.
+     */
+    public void setCircuitBreakerWindow(final int circuitBreakerWindow) {
+        this.circuitBreakerWindow = circuitBreakerWindow;
+    }
+
+    /**
+     * Sets the share of failed exchanges (timeouts and errors) in the window at which a server's
+     * circuit breaker opens.
+     * 
+     * @param circuitBreakerFailureThreshold The failure percentage; defaults to 50.
+     */
+    public void setCircuitBreakerFailureThreshold(final int circuitBreakerFailureThreshold) {
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+    }
+
+    /**
+     * Sets how long a failing server is skipped before a single login is let through to probe it.
+     * 
+     * @param circuitBreakerOpenTime Time in milliseconds; defaults to 30000, 0 disables the circuit breakers.
+     */
+    public void setCircuitBreakerOpenTime(final long circuitBreakerOpenTime) {
+        this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+    }
+
+    /**
+     * Sets the maximum number of exchanges in flight to each server. Logins beyond it wait for an
+     * exchange to finish or, if the wait queue is full or the wait runs out, skip the server.
+     *
+     * @param bulkheadLimit Maximum number of exchanges; defaults to 0, no limit.
+     */
+    public void setBulkheadLimit(final int bulkheadLimit) {
+        this.bulkheadLimit = bulkheadLimit;
+    }
+
+    /**
+     * @param bulkheadQueueLength Maximum number of logins waiting for each server; defaults to 16.
+     */
+    public void setBulkheadQueueLength(final int bulkheadQueueLength) {
+        this.bulkheadQueueLength = bulkheadQueueLength;
+    }
+
+    /**
+     * @param bulkheadQueueWait Time in milliseconds a login waits for a server; defaults to 1000.
+     */
+    public void setBulkheadQueueWait(final long bulkheadQueueWait) {
+        this.bulkheadQueueWait = bulkheadQueueWait;
+    }
+
+    /**
+     * Sets how the limit on exchanges in flight adapts to each server, below the configured limit.
+     *
+     * @param bulkheadAdaptation NONE, AIMD or VEGAS; defaults to NONE.
+     */
+    public void setBulkheadAdaptation(final Bulkhead.Adaptation bulkheadAdaptation) {
+        this.bulkheadAdaptation = bulkheadAdaptation;
+    }
+
+    /**
+     * Sets the cache that answers repeated logins without a RADIUS round-trip.
+     * 
+     * @param authenticationResultCache The cache; defaults to none.
+     */
+    public void setAuthenticationResultCache(final AuthenticationResultCache<Principal> authenticationResultCache) {
+        this.authenticationResultCache = authenticationResultCache;
+        this.metrics.setResultCache(authenticationResultCache);
+    }
+
+    /**
+     * Sets whether concurrent logins with identical credentials share one RADIUS exchange. A login
+     * that arrives while an identical one is in flight waits for that login's outcome instead of
+     * sending its own request; cancelling the leading login fails the ones attached to it.
+     *
+     * @param coalescing true to share exchanges; defaults to false.
+     */
+    public void setCoalescing(final boolean coalescing) {
+        this.authenticationCoalescer = coalescing ? new AuthenticationCoalescer<Principal>() : null;
+    }
+
+    /**
+     * Sets the accountant that sends an Accounting-Request for every login accepted in an exchange
+     * with a server. Logins answered from the authentication result cache, or by sharing an identical
+     * login in flight, are not accounted again. The requests go to the accountant's own client
+     * factory or pool, whichever server accepted the login.
+     *
+     * @param radiusAccountant The accountant; defaults to none.
+     */
+    public void setRadiusAccountant(final RadiusAccountant radiusAccountant) {
+        this.radiusAccountant = radiusAccountant;
+    }
+
+    /**
+     * Sets whether init() warms the handler and its servers up: it loads the RADIUS dictionary and
+     * the SAML libraries, prepares a client and a request for each server, and runs the SAML
+     * extraction on a synthetic assertion.
+     *
+     * @param warmUp true to warm up; defaults to false.
+     */
+    public void setWarmUp(final boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    /**
+     * Sets whether the warm-up sends each server a Status-Server probe. A server that does not
+     * answer is only logged.
+     *
+     * @param warmUpProbes true to probe the servers; defaults to false.
+     */
+    public void setWarmUpProbes(final boolean warmUpProbes) {
+        this.warmUpProbes = warmUpProbes;
+    }
+
+    /**
+     * @param warmUpIterations Number of times the warm-up runs the SAML extraction; defaults to 500.
+     */
+    public void setWarmUpIterations(final int warmUpIterations) {
+        this.warmUpIterations = warmUpIterations;
+    }
+
+    /**
+     * Publishes this handler's metrics as JMX MBeans, under the domain uk.ac.diamond.cas.abfab with
+     * type AuthenticationHandler and the given name.
+     * 
+     * @param metricsName The name of the MBeans; metrics are kept but not published without one.
+     */
+    public void setMetricsName(final String metricsName) {
+        this.metrics.register(metricsName);
+    }
+
+    /**
+     * @return the outcomes and latencies of the logins through this handler
+     */
+    public AuthenticationMetrics getMetrics() {
+        return this.metrics;
+    }
+
     public void setServers(final List<RadiusServer> servers) {
         this.servers = servers;
     }
@@ -1,10 +1,12 @@
 package uk.ac.diamond.cas.abfab.radius.authentication.handler;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
 import net.jradius.exception.UnknownAttributeException;
-import net.jradius.packet.attribute.AttributeFactory;
 import net.jradius.packet.attribute.AttributeList;
 import net.jradius.packet.attribute.RadiusAttribute;
-import net.jradius.packet.attribute.value.StringValue;
 import uk.ac.diamond.cas.adaptors.radius.RADIUSAttributeFilter;
 
 public class SAMLAssertionAttributeFilter extends RADIUSAttributeFilter {
@@ -24,14 +26,33 @@ public class SAMLAssertionAttributeFilter extends RADIUSAttributeFilter {
      * @return A string representing the complete attribute concatenated from all SAML-AAA-Assertion attributes
      */
     public String getAssertion() throws UnknownAttributeException {
-        StringBuilder sb = new StringBuilder();
-        final Object[] attributeArray = this.getAttribute(attributeName);
-        for (final Object attributeObject : attributeArray) {
-            if (attributeObject instanceof RadiusAttribute) {
-                final StringValue sv = (StringValue) ((RadiusAttribute) attributeObject).getValue();
-                sb.append(sv.toString());
+        final ByteBuffer assertion = getAssertionBytes();
+        return new String(assertion.array(), 0, assertion.limit(), StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Copies the raw values of all SAML-AAA-Assertion attributes, in the order received, into a
+     * single buffer sized up front. No intermediate strings are built, and a multibyte character
+     * split between two attributes comes out whole.
+     * 
+     * @return A buffer holding the complete encoded assertion, from position 0 to its limit
+     */
+    public ByteBuffer getAssertionBytes() throws UnknownAttributeException {
+        final long type = getType(attributeName);
+        final List<RadiusAttribute> attributeList = this.getAttributes().getAttributeList();
+        int length = 0;
+        for (final RadiusAttribute attribute : attributeList) {
+            if (attribute.getFormattedType() == type) {
+                length += attribute.getValue().getLength();
+            }
+        }
+        final ByteBuffer assertion = ByteBuffer.allocate(length);
+        for (final RadiusAttribute attribute : attributeList) {
+            if (attribute.getFormattedType() == type) {
+                attribute.getValue().getBytes(assertion);
             }
         }
-        return sb.toString();
+        assertion.flip();
+        return assertion;
     }
 }
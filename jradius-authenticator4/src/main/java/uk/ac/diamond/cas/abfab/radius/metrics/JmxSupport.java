@@ -0,0 +1,69 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes metrics MBeans on the platform MBean server, under the domain {@value #DOMAIN}.
+ *
+ * @author Stefan Paetow
+ */
+final class JmxSupport {
+
+    /** JMX domain of all metrics MBeans. */
+    static final String DOMAIN = "uk.ac.diamond.cas.abfab";
+
+    /** Logger instance. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(JmxSupport.class);
+
+    private JmxSupport() {
+    }
+
+    /**
+     * Registers the MBean, replacing any registered under the same name. Failures are logged, as
+     * metrics must never stand in the way of a login.
+     *
+     * @param mbean The MBean
+     * @param type The value of the type key
+     * @param name The value of the name key
+     * @param stage The value of the stage key, or null for none
+     */
+    static void register(final Object mbean, final String type, final String name, final String stage) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name)
+                    + (stage != null ? ",stage=" + stage : ""));
+            try {
+                server.registerMBean(mbean, objectName);
+            } catch (final InstanceAlreadyExistsException e) {
+                server.unregisterMBean(objectName);
+                server.registerMBean(mbean, objectName);
+            }
+        } catch (final JMException e) {
+            LOGGER.warn("Unable to register metrics MBean {} for {}: {}", type, name, e.getMessage());
+        }
+    }
+}
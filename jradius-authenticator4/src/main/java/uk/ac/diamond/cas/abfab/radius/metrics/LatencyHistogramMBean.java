@@ -0,0 +1,50 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.metrics;
+
+/**
+ * JMX view of a {@link LatencyHistogram}. Latencies are in milliseconds.
+ *
+ * @author Stefan Paetow
+ */
+public interface LatencyHistogramMBean {
+
+    long getCount();
+
+    double getMean();
+
+    double getMax();
+
+    double getMedian();
+
+    double get90thPercentile();
+
+    double get99thPercentile();
+
+    double get999thPercentile();
+
+    /**
+     * @param percentile The percentile, between 0 and 100
+     * @return the latency below which the given percentage of samples fall
+     */
+    double getPercentile(double percentile);
+
+    /**
+     * Discards all samples recorded so far.
+     */
+    void reset();
+}
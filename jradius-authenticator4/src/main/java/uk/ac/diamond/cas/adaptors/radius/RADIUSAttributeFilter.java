@@ -1,5 +1,8 @@
 package uk.ac.diamond.cas.adaptors.radius;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import net.jradius.exception.UnknownAttributeException;
 import net.jradius.packet.attribute.AttributeFactory;
 import net.jradius.packet.attribute.AttributeList;
@@ -8,6 +11,9 @@ import net.jradius.packet.attribute.value.StringValue;
 
 public class RADIUSAttributeFilter {
     
+    /** Dictionary type codes already looked up, by attribute name */
+    private static final ConcurrentMap<String, Long> TYPE_CODES = new ConcurrentHashMap<String, Long>();
+    
     /** The attributes used to initialise this class */
     private AttributeList attributes;
 
@@ -24,8 +30,29 @@ public class RADIUSAttributeFilter {
      * @return Object array representing the attribute
      */
     public Object[] getAttribute(final String attributeName) throws UnknownAttributeException {
-        final Object[] attributeArray = this.attributes.getArray(AttributeFactory.getTypeByName(attributeName));
-        return attributeArray;
+        return getAttribute(getType(attributeName));
+    }
+    
+    /**
+     * @param type The dictionary type code of the attribute, as returned by {@link #getType(String)}
+     * @return Object array representing the attribute
+     */
+    public Object[] getAttribute(final long type) {
+        return this.attributes.getArray(type);
+    }
+    
+    /**
+     * @param attributeName A string representing the name of the attribute
+     * @return The dictionary type code of the attribute, looked up in the dictionary only once
+     */
+    public static long getType(final String attributeName) throws UnknownAttributeException {
+        final Long cached = TYPE_CODES.get(attributeName);
+        if (cached != null) {
+            return cached.longValue();
+        }
+        final long type = AttributeFactory.getTypeByName(attributeName);
+        TYPE_CODES.putIfAbsent(attributeName, Long.valueOf(type));
+        return type;
     }
     
     /**
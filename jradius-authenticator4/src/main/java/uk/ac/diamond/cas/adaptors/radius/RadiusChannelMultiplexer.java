@@ -0,0 +1,409 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.adaptors.radius;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.validation.constraints.Min;
+
+import net.jradius.exception.RadiusException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Carries RADIUS exchanges for any number of clients over a small set of shared, non-blocking
+ * {@link DatagramChannel}s. A single selector thread reads every reply and hands it to the pending
+ * request with the same identifier on the same source port, provided it came from the server the
+ * request was sent to and its Response Authenticator verifies against the request.
+ *
+ * Each channel has its own 256-entry identifier space, so spreading the load over several channels
+ * (and so source ports) raises the number of requests that can be in flight at once.
+ *
+ * Declare the multiplexer with destroy-method="close" so that the channels are released on shutdown.
+ *
+ * @author Stefan Paetow
+ */
+public class RadiusChannelMultiplexer {
+
+    /** Default number of channels (source ports), {@value}. */
+    public static final int DEFAULT_CHANNEL_COUNT = 4;
+
+    /** Size of the RADIUS identifier space per channel. */
+    private static final int IDENTIFIER_SPACE = 256;
+
+    /** Length of the RADIUS header up to and including the authenticator. */
+    private static final int HEADER_LENGTH = 20;
+
+    /** Largest RADIUS packet permitted by RFC 2865. */
+    private static final int MAX_PACKET_LENGTH = 4096;
+
+    /** Logger instance. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(RadiusChannelMultiplexer.class);
+
+    /** Number of channels (source ports) to spread requests over. */
+    @Min(1)
+    private int channelCount = DEFAULT_CHANNEL_COUNT;
+
+    /** Local address to bind the channels to; null for the wildcard address. */
+    private InetAddress localInetAddress;
+
+    /** The open channels, or null until started. */
+    private volatile MultiplexedChannel[] channels;
+
+    /** Selects readable channels. */
+    private Selector selector;
+
+    /** Reads and dispatches replies. */
+    private Thread selectorThread;
+
+    /** Spreads new requests over the channels. */
+    private final AtomicInteger nextChannel = new AtomicInteger();
+
+    /**
+     * Opens the channels and starts the selector thread. Called on first use if not called explicitly.
+     *
+     * @throws IOException if a channel could not be opened
+     */
+    public synchronized void start() throws IOException {
+        if (this.channels != null) {
+            return;
+        }
+
+        this.selector = Selector.open();
+        final MultiplexedChannel[] opened = new MultiplexedChannel[this.channelCount];
+        try {
+            for (int i = 0; i < opened.length; i++) {
+                final DatagramChannel channel = DatagramChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().bind(new InetSocketAddress(this.localInetAddress, 0));
+                opened[i] = new MultiplexedChannel(channel);
+                channel.register(this.selector, SelectionKey.OP_READ, opened[i]);
+            }
+        } catch (final IOException e) {
+            for (final MultiplexedChannel channel : opened) {
+                if (channel != null) {
+                    channel.channel.close();
+                }
+            }
+            this.selector.close();
+            throw e;
+        }
+
+        this.selectorThread = new Thread(new Runnable() {
+            public void run() {
+                dispatchReplies();
+            }
+        }, "radius-multiplexer");
+        this.selectorThread.setDaemon(true);
+        this.selectorThread.start();
+        this.channels = opened;
+
+        LOGGER.debug("Started RADIUS multiplexer with {} channels", opened.length);
+    }
+
+    /**
+     * Stops the selector thread and closes the channels. Pending requests time out.
+     */
+    public synchronized void close() {
+        if (this.channels == null) {
+            return;
+        }
+
+        try {
+            this.selector.close();
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to close RADIUS multiplexer selector", e);
+        }
+        for (final MultiplexedChannel channel : this.channels) {
+            try {
+                channel.channel.close();
+            } catch (final IOException e) {
+                LOGGER.warn("Failed to close RADIUS multiplexer channel", e);
+            }
+        }
+        this.channels = null;
+    }
+
+    /**
+     * Reserves an identifier for a new request to the given server, on the first channel that has
+     * one free, starting from the next channel in turn.
+     *
+     * @param destination The RADIUS server address and port
+     * @param sharedSecret The shared secret used to verify the reply
+     * @return the pending request, which must be given back through {@link #release(PendingReply)}
+     * @throws RadiusException if the identifier space of every channel is exhausted
+     */
+    public PendingReply register(final InetSocketAddress destination, final String sharedSecret) throws RadiusException {
+        MultiplexedChannel[] open = this.channels;
+        if (open == null) {
+            try {
+                start();
+            } catch (final IOException e) {
+                throw new RadiusException("Unable to open RADIUS multiplexer channels", e);
+            }
+            open = this.channels;
+        }
+
+        final int first = (this.nextChannel.getAndIncrement() & Integer.MAX_VALUE) % open.length;
+        for (int i = 0; i < open.length; i++) {
+            final PendingReply pending = open[(first + i) % open.length].reserve(destination, sharedSecret);
+            if (pending != null) {
+                return pending;
+            }
+        }
+        throw new RadiusException(String.format(
+                "RADIUS identifier space exhausted on all %d multiplexer channels", open.length));
+    }
+
+    /**
+     * Sends an encoded request on the channel the pending request was registered on.
+     *
+     * @param pending The pending request
+     * @param packet The encoded request, positioned for reading
+     * @throws IOException if the datagram could not be sent
+     */
+    public void send(final PendingReply pending, final ByteBuffer packet) throws IOException {
+        if (packet.remaining() < HEADER_LENGTH) {
+            throw new IOException("RADIUS packet too short");
+        }
+        final byte[] requestAuthenticator = new byte[HEADER_LENGTH - 4];
+        for (int i = 0; i < requestAuthenticator.length; i++) {
+            requestAuthenticator[i] = packet.get(packet.position() + 4 + i);
+        }
+        pending.requestAuthenticator = requestAuthenticator;
+
+        if (pending.channel.channel.send(packet, pending.destination) == 0) {
+            throw new IOException("No room in the socket send buffer for the RADIUS request");
+        }
+    }
+
+    /**
+     * Frees the identifier held by a pending request. Late replies to it are discarded.
+     *
+     * @param pending The pending request
+     */
+    public void release(final PendingReply pending) {
+        pending.channel.pending.compareAndSet(pending.identifier, pending, null);
+    }
+
+    /**
+     * Sets the number of channels, and so source ports, to spread requests over.
+     *
+     * @param channelCount Number of channels.
+     */
+    public void setChannelCount(final int channelCount) {
+        this.channelCount = channelCount;
+    }
+
+    /**
+     * Sets the local address the channels are bound to.
+     *
+     * @param address Network address as a string.
+     */
+    public void setLocalInetAddress(final String address) {
+        try {
+            this.localInetAddress = InetAddress.getByName(address);
+        } catch (final UnknownHostException e) {
+            throw new RuntimeException("Invalid address " + address);
+        }
+    }
+
+    /**
+     * Selector loop: reads every available datagram and completes the matching pending request.
+     */
+    private void dispatchReplies() {
+        final ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_LENGTH);
+        final MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException e) {
+            LOGGER.error("MD5 is not available, RADIUS multiplexer cannot verify replies", e);
+            return;
+        }
+
+        try {
+            while (this.selector.isOpen()) {
+                this.selector.select();
+                final Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final MultiplexedChannel channel = (MultiplexedChannel) key.attachment();
+                    try {
+                        SocketAddress source;
+                        buffer.clear();
+                        while ((source = channel.channel.receive(buffer)) != null) {
+                            buffer.flip();
+                            channel.dispatch(source, buffer, md5);
+                            buffer.clear();
+                        }
+                    } catch (final IOException e) {
+                        LOGGER.warn("Failed to read from RADIUS multiplexer channel", e);
+                    }
+                }
+            }
+        } catch (final ClosedSelectorException e) {
+            // closed: fall through
+        } catch (final IOException e) {
+            LOGGER.error("RADIUS multiplexer selector failed", e);
+        }
+        LOGGER.debug("RADIUS multiplexer selector thread stopped");
+    }
+
+    /**
+     * A channel and the requests pending on it, indexed by identifier.
+     */
+    private static final class MultiplexedChannel {
+
+        private final DatagramChannel channel;
+
+        private final AtomicReferenceArray<PendingReply> pending = new AtomicReferenceArray<PendingReply>(IDENTIFIER_SPACE);
+
+        private final AtomicInteger nextIdentifier = new AtomicInteger();
+
+        private MultiplexedChannel(final DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * @return a pending request holding a free identifier, or null if all are in use
+         */
+        private PendingReply reserve(final InetSocketAddress destination, final String sharedSecret) {
+            final int first = this.nextIdentifier.getAndIncrement();
+            for (int i = 0; i < IDENTIFIER_SPACE; i++) {
+                final int identifier = (first + i) & (IDENTIFIER_SPACE - 1);
+                if (this.pending.get(identifier) == null) {
+                    final PendingReply candidate = new PendingReply(this, identifier, destination, sharedSecret);
+                    if (this.pending.compareAndSet(identifier, null, candidate)) {
+                        return candidate;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Hands a received datagram to the request it answers, or drops it.
+         */
+        private void dispatch(final SocketAddress source, final ByteBuffer datagram, final MessageDigest md5) {
+            final int received = datagram.remaining();
+            final int length = received < HEADER_LENGTH ? 0
+                    : ((datagram.get(2) & 0xff) << 8) | (datagram.get(3) & 0xff);
+            if (length < HEADER_LENGTH || length > received) {
+                LOGGER.debug("Dropping malformed datagram from {}", source);
+                return;
+            }
+
+            final int identifier = datagram.get(1) & 0xff;
+            final PendingReply pending = this.pending.get(identifier);
+            if (pending == null || !pending.destination.equals(source)) {
+                LOGGER.debug("Dropping unexpected RADIUS reply from {} with identifier {}", source, identifier);
+                return;
+            }
+
+            final byte[] reply = new byte[length];
+            datagram.get(reply);
+            if (!pending.verify(reply, md5)) {
+                LOGGER.debug("Dropping RADIUS reply from {} with identifier {}: bad authenticator", source, identifier);
+                return;
+            }
+            pending.replies.offer(reply);
+        }
+    }
+
+    /**
+     * A request awaiting its reply. Holds its identifier until released.
+     */
+    public static final class PendingReply {
+
+        private final MultiplexedChannel channel;
+
+        private final int identifier;
+
+        private final InetSocketAddress destination;
+
+        private final byte[] sharedSecret;
+
+        /** The authenticator of the most recent transmission. */
+        private volatile byte[] requestAuthenticator;
+
+        /** Holds at most one verified reply; duplicates are discarded. */
+        private final BlockingQueue<byte[]> replies = new ArrayBlockingQueue<byte[]>(1);
+
+        private PendingReply(final MultiplexedChannel channel, final int identifier,
+                final InetSocketAddress destination, final String sharedSecret) {
+            this.channel = channel;
+            this.identifier = identifier;
+            this.destination = destination;
+            this.sharedSecret = sharedSecret.getBytes();
+        }
+
+        /**
+         * @return the RADIUS identifier reserved for this request
+         */
+        public int getIdentifier() {
+            return this.identifier;
+        }
+
+        /**
+         * Waits for the verified reply.
+         *
+         * @param timeout Time to wait in milliseconds
+         * @return the raw reply datagram, or null on timeout
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public byte[] await(final long timeout) throws InterruptedException {
+            return this.replies.poll(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Checks the Response Authenticator, MD5(Code + Identifier + Length + Request Authenticator
+         * + Attributes + Secret), against the request this reply claims to answer.
+         */
+        private boolean verify(final byte[] reply, final MessageDigest md5) {
+            final byte[] authenticator = this.requestAuthenticator;
+            if (authenticator == null) {
+                return false;
+            }
+            md5.reset();
+            md5.update(reply, 0, 4);
+            md5.update(authenticator);
+            md5.update(reply, HEADER_LENGTH, reply.length - HEADER_LENGTH);
+            md5.update(this.sharedSecret);
+            return Arrays.equals(md5.digest(), Arrays.copyOfRange(reply, 4, HEADER_LENGTH));
+        }
+    }
+}
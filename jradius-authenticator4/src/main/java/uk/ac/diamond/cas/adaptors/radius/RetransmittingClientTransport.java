@@ -0,0 +1,214 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.adaptors.radius;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import net.jradius.client.RadiusClientTransport;
+import net.jradius.dictionary.Attr_MessageAuthenticator;
+import net.jradius.exception.RadiusException;
+import net.jradius.exception.RadiusSecurityException;
+import net.jradius.exception.TimeoutException;
+import net.jradius.packet.AccessRequest;
+import net.jradius.packet.RadiusRequest;
+import net.jradius.packet.RadiusResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A JRadius client transport that waits for each transmission of a request as long as its
+ * {@link RetransmissionTimer} advises, to the millisecond, rather than a fixed number of seconds.
+ * Without a timer every transmission waits the socket timeout, as JRadius does. An exchange may
+ * also be given a deadline, after which no further transmission is made and the remaining wait is
+ * cut short.
+ *
+ * Like any JRadius transport, an instance carries one exchange at a time.
+ *
+ * @author Stefan Paetow
+ */
+public abstract class RetransmittingClientTransport extends RadiusClientTransport {
+
+    /** Logger instance. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetransmittingClientTransport.class);
+
+    /** Advises the timeout of each transmission; null for the fixed socket timeout. */
+    private RetransmissionTimer retransmissionTimer;
+
+    /** System.nanoTime() by which the exchange must be over; 0 for none. */
+    private long deadline;
+
+    /** Whether round trips and timeouts are recorded on the timer. */
+    private boolean measured = true;
+
+    /**
+     * Runs one round of an exchange: transmits until a verified reply arrives, the retries run out
+     * or the deadline passes. An interrupt ends the exchange between transmissions.
+     */
+    @Override
+    public RadiusResponse sendReceive(final RadiusRequest request, final int retries) throws RadiusException {
+        // the wait given to an unanswered first transmission, reported once the round is over so
+        // that it does not back off this round's own retransmissions twice
+        long unansweredTimeout = 0L;
+        beginExchange(request);
+        try {
+            if (request instanceof AccessRequest) {
+                try {
+                    generateMessageAuthenticator(request);
+                } catch (final Exception e) {
+                    throw new RadiusException(e);
+                }
+            }
+
+            final int attempts = Math.max(retries, 0) + 1;
+            for (int attempt = 0; attempt < attempts; attempt++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new RadiusException("Interrupted while waiting for a RADIUS reply");
+                }
+                final long advised = this.retransmissionTimer != null
+                        ? this.retransmissionTimer.getTimeout(attempt) : this.socketTimeout;
+                final long timeout = limitToDeadline(advised);
+                if (timeout <= 0L) {
+                    throw new TimeoutException("Timeout: RADIUS exchange deadline has passed");
+                }
+
+                try {
+                    send(request, attempt);
+                } catch (final IOException e) {
+                    LOGGER.warn("Unable to send RADIUS request to {}: {}", this.remoteInetAddress, e.getMessage());
+                    continue;
+                } catch (final Exception e) {
+                    throw new RadiusException(e);
+                }
+                final long sent = System.nanoTime();
+                if (attempt > 0 && this.retransmissionTimer != null && this.measured) {
+                    this.retransmissionTimer.recordRetransmission();
+                }
+
+                final RadiusResponse response;
+                try {
+                    response = receive(request, timeout);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RadiusException("Interrupted while waiting for a RADIUS reply");
+                } catch (final RadiusException e) {
+                    throw e;
+                } catch (final Exception e) {
+                    throw new RadiusException(e);
+                }
+
+                if (response == null) {
+                    LOGGER.debug("No reply from {} within {} ms (attempt {} of {})",
+                            this.remoteInetAddress, timeout, attempt + 1, attempts);
+                    // a wait cut short by the deadline says nothing about the server
+                    if (attempt == 0 && timeout == advised) {
+                        unansweredTimeout = timeout;
+                    }
+                    continue;
+                }
+
+                // a reply to a retransmission cannot be matched to the transmission it answers
+                if (attempt == 0 && this.retransmissionTimer != null && this.measured) {
+                    this.retransmissionTimer.recordRoundTrip(System.nanoTime() - sent);
+                }
+                if (!verifyMessageAuthenticator(request, response,
+                        response.findAttribute(Attr_MessageAuthenticator.TYPE) != null)) {
+                    throw new RadiusSecurityException("Invalid RADIUS Message-Authenticator");
+                }
+                return response;
+            }
+            throw new TimeoutException("Timeout: No Response from RADIUS Server");
+        } finally {
+            endExchange();
+            if (unansweredTimeout > 0L && this.retransmissionTimer != null && this.measured) {
+                this.retransmissionTimer.recordTimeout(unansweredTimeout);
+            }
+        }
+    }
+
+    @Override
+    protected RadiusResponse receive(final RadiusRequest request) throws Exception {
+        final RadiusResponse response = receive(request, this.socketTimeout);
+        if (response == null) {
+            throw new SocketTimeoutException("No RADIUS reply within " + this.socketTimeout + " ms");
+        }
+        return response;
+    }
+
+    /**
+     * Waits for the reply to the request, which must have passed its Response Authenticator check.
+     *
+     * @param request The request that was sent
+     * @param timeout Time to wait in milliseconds
+     * @return the reply, or null if none arrived in time
+     * @throws Exception if the reply is invalid or cannot be received
+     */
+    protected abstract RadiusResponse receive(RadiusRequest request, long timeout) throws Exception;
+
+    /**
+     * Called before each round of an exchange, ahead of the Message-Authenticator computation.
+     *
+     * @param request The request about to be sent
+     * @throws RadiusException if the round cannot start
+     */
+    protected void beginExchange(final RadiusRequest request) throws RadiusException {
+    }
+
+    /**
+     * Called after each round of an exchange, whatever its outcome.
+     */
+    protected void endExchange() {
+    }
+
+    /**
+     * @param retransmissionTimer The timer advising the timeout of each transmission; null for the
+     * fixed socket timeout.
+     */
+    public void setRetransmissionTimer(final RetransmissionTimer retransmissionTimer) {
+        this.retransmissionTimer = retransmissionTimer;
+    }
+
+    /**
+     * @param deadline The System.nanoTime() by which the following exchanges must be over; 0 for none.
+     */
+    public void setDeadline(final long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Sets whether the following exchanges are recorded on the retransmission timer. Exchanges that
+     * are not logins, such as a Status-Server probe, would otherwise skew the timeouts of logins.
+     *
+     * @param measured false to only take the timer's advice; defaults to true.
+     */
+    public void setMeasured(final boolean measured) {
+        this.measured = measured;
+    }
+
+    /**
+     * @return the given time in milliseconds, or less if the deadline comes first; 0 if it has passed
+     */
+    private long limitToDeadline(final long timeout) {
+        if (this.deadline == 0L) {
+            return timeout;
+        }
+        final long remaining = TimeUnit.NANOSECONDS.toMillis(this.deadline - System.nanoTime());
+        return Math.max(Math.min(timeout, remaining), 0L);
+    }
+}
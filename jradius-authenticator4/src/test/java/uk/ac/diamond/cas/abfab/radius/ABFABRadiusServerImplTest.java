@@ -0,0 +1,167 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import net.jradius.packet.AccessAccept;
+import net.jradius.packet.AccessReject;
+import net.jradius.packet.RadiusPacket;
+
+import org.jasig.cas.adaptors.radius.RadiusClientFactory;
+import org.jasig.cas.adaptors.radius.RadiusProtocol;
+import org.jasig.cas.authentication.PreventedException;
+
+import uk.ac.diamond.cas.abfab.radius.authentication.handler.SAMLAssertionAttributeFilter;
+import uk.ac.diamond.cas.adaptors.radius.EmbeddedRadiusServer;
+import uk.ac.diamond.cas.adaptors.radius.RadiusClientPool;
+import uk.ac.diamond.cas.adaptors.radius.RetransmissionTimer;
+
+/**
+ * @author Stefan Paetow
+ */
+public class ABFABRadiusServerImplTest extends TestCase {
+
+    private static final String SHARED_SECRET = "testing123";
+
+    private static final String ASSERTION =
+            "<saml:Assertion xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"_a1\" Version=\"2.0\">"
+            + "<saml:Issuer>https://idp.example.org/idp/shibboleth</saml:Issuer>"
+            + "<saml:AttributeStatement>"
+            + "<saml:Attribute Name=\"urn:oid:1.3.6.1.4.1.5923.1.1.1.6\">"
+            + "<saml:AttributeValue>alice@example.org</saml:AttributeValue>"
+            + "</saml:Attribute>"
+            + "</saml:AttributeStatement>"
+            + "</saml:Assertion>";
+
+    private EmbeddedRadiusServer server;
+
+    private RadiusClientPool pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.server = new EmbeddedRadiusServer(SHARED_SECRET);
+        this.server.start();
+        this.server.addUser("alice", "secret", ASSERTION);
+        this.pool = new RadiusClientPool(newClientFactory(this.server));
+    }
+
+    @Override
+    protected void tearDown() {
+        this.pool.close();
+        this.server.close();
+    }
+
+    public void testAcceptCarriesTheFragmentedAssertion() throws Exception {
+        this.server.setFragmentLength(50);
+
+        final RadiusPacket response = newRadiusServer().authenticateEx("alice", "secret");
+        assertTrue(response instanceof AccessAccept);
+        assertEquals(ASSERTION, StandardCharsets.UTF_8.decode(
+                new SAMLAssertionAttributeFilter(response.getAttributes()).getAssertionBytes()).toString());
+        assertEquals(1L, this.server.getAcceptCount());
+    }
+
+    public void testWrongPasswordIsRejected() throws Exception {
+        final ABFABRadiusServerImpl radiusServer = newRadiusServer();
+
+        assertTrue(radiusServer.authenticateEx("alice", "wrong") instanceof AccessReject);
+        assertFalse(radiusServer.authenticate("alice", "wrong"));
+        assertEquals(2L, this.server.getRejectCount());
+    }
+
+    public void testLostRequestIsRetransmitted() throws Exception {
+        final RetransmissionTimer timer = new RetransmissionTimer(200L);
+        this.pool.setRetransmissionTimer(timer);
+        this.server.dropNext(1);
+
+        assertTrue(newRadiusServer().authenticate("alice", "secret"));
+        assertEquals(2L, this.server.getRequestCount());
+        assertEquals(1L, this.server.getDropCount());
+        assertEquals(1L, timer.getRetransmissionCount());
+    }
+
+    public void testDuplicateReplyIsIgnored() throws Exception {
+        this.pool.setMaxTotal(1);
+        this.server.setDuplicateRate(1.0);
+        final ABFABRadiusServerImpl radiusServer = newRadiusServer();
+
+        assertTrue(radiusServer.authenticate("alice", "secret"));
+        // the second Access-Accept is waiting on the pooled client's socket by now
+        Thread.sleep(100L);
+        assertFalse(radiusServer.authenticate("alice", "wrong"));
+        assertEquals(1L, this.server.getAcceptCount());
+        assertEquals(1L, this.server.getRejectCount());
+    }
+
+    public void testSilentServerTimesOut() throws Exception {
+        this.pool.setRetransmissionTimer(new RetransmissionTimer(100L));
+        this.server.setSilent(true);
+        final ABFABRadiusServerImpl radiusServer = newRadiusServer();
+        radiusServer.setLoginTimeout(500L);
+
+        final long start = System.nanoTime();
+        try {
+            radiusServer.authenticate("alice", "secret");
+            fail("The server never answers");
+        } catch (final PreventedException e) {
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000L);
+        }
+        assertTrue(this.server.getDropCount() >= 1L);
+        assertEquals(0L, this.server.getAcceptCount());
+    }
+
+    public void testWarmUpProbeIsNotRecordedOnTheRetransmissionTimer() throws Exception {
+        final RetransmissionTimer timer = new RetransmissionTimer(1000L);
+        this.pool.setRetransmissionTimer(timer);
+        final ABFABRadiusServerImpl radiusServer = newRadiusServer();
+
+        assertTrue(radiusServer.warmUp(true));
+        assertEquals(0.0, timer.getSmoothedRoundTripTime());
+        assertEquals(1000L, timer.getRetransmissionTimeout());
+
+        // the pooled client measures logins again
+        assertTrue(radiusServer.authenticate("alice", "secret"));
+        assertTrue(timer.getSmoothedRoundTripTime() > 0.0);
+    }
+
+    public void testUnansweredWarmUpProbeDoesNotBackOffTheRetransmissionTimer() throws Exception {
+        final RetransmissionTimer timer = new RetransmissionTimer(200L);
+        this.pool.setRetransmissionTimer(timer);
+        this.server.setSilent(true);
+
+        assertFalse(newRadiusServer().warmUp(true));
+        // 200 ms give or take the jitter, where a backoff would have doubled it
+        assertTrue(timer.getTimeout(0) < 300L);
+    }
+
+    private ABFABRadiusServerImpl newRadiusServer() {
+        return new ABFABRadiusServerImpl(RadiusProtocol.PAP, this.pool);
+    }
+
+    private static RadiusClientFactory newClientFactory(final EmbeddedRadiusServer server) {
+        final RadiusClientFactory factory = new RadiusClientFactory();
+        factory.setInetAddress(server.getAddress().getHostAddress());
+        factory.setAuthenticationPort(server.getPort());
+        factory.setAccountingPort(server.getPort());
+        factory.setSharedSecret(SHARED_SECRET);
+        factory.setSocketTimeout(1);
+        return factory;
+    }
+}
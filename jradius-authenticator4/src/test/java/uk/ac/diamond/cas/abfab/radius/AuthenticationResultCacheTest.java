@@ -0,0 +1,179 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import uk.ac.diamond.cas.abfab.radius.metrics.AuthenticationMetrics;
+
+/**
+ * @author Stefan Paetow
+ */
+public class AuthenticationResultCacheTest extends TestCase {
+
+    private AuthenticationResultCache<String> cache;
+
+    @Override
+    protected void setUp() {
+        this.cache = new AuthenticationResultCache<String>();
+        // the key derivation is deliberately slow; the tests only need it to be deterministic
+        this.cache.setIterations(1);
+    }
+
+    public void testKeysDependOnUsernameAndPassword() {
+        assertEquals(this.cache.getKey("alice", "secret"), this.cache.getKey("alice", "secret"));
+        assertFalse(this.cache.getKey("alice", "secret").equals(this.cache.getKey("alice", "Secret")));
+        // the length prefix keeps the pair unambiguous
+        assertFalse(this.cache.getKey("ab", "c").equals(this.cache.getKey("a", "bc")));
+    }
+
+    public void testKeysDifferBetweenCaches() {
+        final AuthenticationResultCache<String> other = new AuthenticationResultCache<String>();
+        other.setIterations(1);
+        assertFalse(this.cache.getKey("alice", "secret").equals(other.getKey("alice", "secret")));
+    }
+
+    public void testHitsNegativeHitsAndMissesAreCounted() {
+        final AuthenticationResultCache.Key accepted = this.cache.getKey("alice", "secret");
+        final AuthenticationResultCache.Key rejected = this.cache.getKey("alice", "wrong");
+
+        assertNull(this.cache.get(accepted));
+        this.cache.putAccepted(accepted, "alice@example.org");
+        this.cache.putRejected(rejected);
+
+        final AuthenticationResultCache.Result<String> hit = this.cache.get(accepted);
+        assertTrue(hit.isAccepted());
+        assertEquals("alice@example.org", hit.getValue());
+        final AuthenticationResultCache.Result<String> negativeHit = this.cache.get(rejected);
+        assertFalse(negativeHit.isAccepted());
+        assertNull(negativeHit.getValue());
+
+        assertEquals(1L, this.cache.getHitCount());
+        assertEquals(1L, this.cache.getNegativeHitCount());
+        assertEquals(1L, this.cache.getMissCount());
+    }
+
+    public void testCountersArePublishedWithTheHandlerMetrics() {
+        final AuthenticationMetrics metrics = new AuthenticationMetrics();
+        assertEquals(0L, metrics.getCacheMisses());
+        metrics.setResultCache(this.cache);
+
+        final AuthenticationResultCache.Key key = this.cache.getKey("alice", "secret");
+        this.cache.get(key);
+        this.cache.putAccepted(key, "alice@example.org");
+        this.cache.get(key);
+
+        assertEquals(1L, metrics.getCacheHits());
+        assertEquals(0L, metrics.getCacheNegativeHits());
+        assertEquals(1L, metrics.getCacheMisses());
+        assertEquals(1, metrics.getCacheSize());
+        assertEquals(this.cache.getBytes(), metrics.getCacheBytes());
+    }
+
+    public void testExpiredEntriesAreMisses() throws InterruptedException {
+        this.cache.setTimeToLive(1L);
+        final AuthenticationResultCache.Key key = this.cache.getKey("alice", "secret");
+        this.cache.putAccepted(key, "alice@example.org");
+        Thread.sleep(20L);
+
+        assertNull(this.cache.get(key));
+        assertEquals(0, this.cache.getSize());
+        assertEquals(0L, this.cache.getBytes());
+        assertEquals(1L, this.cache.getMissCount());
+    }
+
+    public void testRejectionsAreNotRememberedWithoutNegativeTimeToLive() {
+        this.cache.setNegativeTimeToLive(0L);
+        final AuthenticationResultCache.Key key = this.cache.getKey("alice", "wrong");
+        this.cache.putRejected(key);
+
+        assertNull(this.cache.get(key));
+        assertEquals(0, this.cache.getSize());
+    }
+
+    public void testLeastRecentlyUsedEntryIsEvictedAtMaxEntries() {
+        this.cache.setMaxEntries(2);
+        final AuthenticationResultCache.Key first = this.cache.getKey("first", "secret");
+        final AuthenticationResultCache.Key second = this.cache.getKey("second", "secret");
+        final AuthenticationResultCache.Key third = this.cache.getKey("third", "secret");
+        this.cache.putAccepted(first, "first");
+        this.cache.putAccepted(second, "second");
+        // using the first entry leaves the second as the least recently used
+        assertNotNull(this.cache.get(first));
+        this.cache.putAccepted(third, "third");
+
+        assertEquals(2, this.cache.getSize());
+        assertEquals(1L, this.cache.getEvictionCount());
+        assertNotNull(this.cache.get(first));
+        assertNull(this.cache.get(second));
+        assertNotNull(this.cache.get(third));
+    }
+
+    public void testEntriesAreEvictedAtMaxBytes() {
+        final AuthenticationResultCache.Key first = this.cache.getKey("first", "secret");
+        final AuthenticationResultCache.Key second = this.cache.getKey("second", "secret");
+        this.cache.putAccepted(first, "a", 1000L);
+        final long entryBytes = this.cache.getBytes();
+        assertTrue(entryBytes >= 1000L);
+
+        this.cache.setMaxBytes(entryBytes + entryBytes / 2);
+        this.cache.putAccepted(second, "b", 1000L);
+
+        assertEquals(1, this.cache.getSize());
+        assertEquals(entryBytes, this.cache.getBytes());
+        assertEquals(1L, this.cache.getEvictionCount());
+        assertNull(this.cache.get(first));
+        assertNotNull(this.cache.get(second));
+    }
+
+    public void testResultLargerThanMaxBytesIsNotRemembered() {
+        this.cache.setMaxBytes(4096L);
+        final AuthenticationResultCache.Key key = this.cache.getKey("alice", "secret");
+        this.cache.putAccepted(key, "alice", 8192L);
+
+        assertNull(this.cache.get(key));
+        assertEquals(0L, this.cache.getBytes());
+        assertEquals(0L, this.cache.getEvictionCount());
+    }
+
+    public void testReplacingAnEntryDoesNotCountItTwice() {
+        final AuthenticationResultCache.Key key = this.cache.getKey("alice", "secret");
+        this.cache.putAccepted(key, "alice", 100L);
+        final long bytes = this.cache.getBytes();
+        this.cache.putAccepted(key, "alice", 100L);
+
+        assertEquals(1, this.cache.getSize());
+        assertEquals(bytes, this.cache.getBytes());
+        this.cache.clear();
+        assertEquals(0L, this.cache.getBytes());
+    }
+
+    public void testEstimateSizeGrowsWithContent() {
+        final long small = AuthenticationResultCache.estimateSize(
+                Collections.singletonMap("mail", Arrays.asList("alice@example.org")));
+        final long large = AuthenticationResultCache.estimateSize(
+                Collections.singletonMap("mail", Arrays.asList("alice@example.org", "a.smith@example.org")));
+
+        assertTrue(small > 2L * "alice@example.org".length());
+        assertTrue(large > small);
+        assertEquals(0L, AuthenticationResultCache.estimateSize(null));
+        assertTrue(AuthenticationResultCache.estimateSize(new byte[1024]) >= 1024L);
+    }
+}
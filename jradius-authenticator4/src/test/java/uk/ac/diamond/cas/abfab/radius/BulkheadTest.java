@@ -0,0 +1,192 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Stefan Paetow
+ */
+public class BulkheadTest extends TestCase {
+
+    public void testWithoutLimitEveryExchangeIsAdmitted() {
+        final Bulkhead bulkhead = new Bulkhead(0, 0, 0L, Bulkhead.Adaptation.NONE);
+        for (int i = 0; i < 1000; i++) {
+            assertNotNull(bulkhead.tryAcquire());
+        }
+        assertEquals(0, bulkhead.getLimit());
+    }
+
+    public void testTryAcquireStopsAtTheLimit() {
+        final Bulkhead bulkhead = new Bulkhead(2, 0, 0L, Bulkhead.Adaptation.NONE);
+        final Bulkhead.Permit first = bulkhead.tryAcquire();
+        assertNotNull(first);
+        assertNotNull(bulkhead.tryAcquire());
+        assertNull(bulkhead.tryAcquire());
+        assertEquals(2, bulkhead.getInFlight());
+
+        first.recordSuccess();
+        assertEquals(1, bulkhead.getInFlight());
+        assertNotNull(bulkhead.tryAcquire());
+    }
+
+    public void testOnlyTheFirstEndOfAPermitCounts() {
+        final Bulkhead bulkhead = new Bulkhead(2, 0, 0L, Bulkhead.Adaptation.NONE);
+        final Bulkhead.Permit first = bulkhead.tryAcquire();
+        bulkhead.tryAcquire();
+        first.recordSuccess();
+        first.release();
+        first.recordFailure();
+        assertEquals(1, bulkhead.getInFlight());
+    }
+
+    public void testAcquireWaitsForAnExchangeToFinish() throws InterruptedException {
+        final Bulkhead bulkhead = new Bulkhead(1, 1, 10000L, Bulkhead.Adaptation.NONE);
+        final Bulkhead.Permit held = bulkhead.tryAcquire();
+        final Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(50L);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            held.release();
+        });
+        releaser.start();
+
+        assertNotNull(bulkhead.acquire());
+        releaser.join();
+    }
+
+    public void testAcquireGivesUpAfterTheQueueWait() throws InterruptedException {
+        final Bulkhead bulkhead = new Bulkhead(1, 1, 50L, Bulkhead.Adaptation.NONE);
+        bulkhead.tryAcquire();
+        final long start = System.nanoTime();
+
+        assertNull(bulkhead.acquire());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40L));
+        assertEquals(0, bulkhead.getQueued());
+    }
+
+    public void testAcquireShedsAtOnceWhenTheQueueIsFull() throws InterruptedException {
+        final Bulkhead bulkhead = new Bulkhead(1, 0, 10000L, Bulkhead.Adaptation.NONE);
+        bulkhead.tryAcquire();
+        final long start = System.nanoTime();
+
+        assertNull(bulkhead.acquire());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5L));
+    }
+
+    public void testConcurrentExchangesNeverExceedTheLimit() throws InterruptedException {
+        final int limit = 3;
+        final Bulkhead bulkhead = new Bulkhead(limit, 64, 10000L, Bulkhead.Adaptation.NONE);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final AtomicInteger shed = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 16; i++) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < 10; j++) {
+                        final Bulkhead.Permit permit = bulkhead.acquire();
+                        if (permit == null) {
+                            shed.incrementAndGet();
+                            continue;
+                        }
+                        final int now = running.incrementAndGet();
+                        peak.accumulateAndGet(now, Math::max);
+                        Thread.sleep(1L);
+                        running.decrementAndGet();
+                        permit.recordSuccess();
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue("peak of " + peak.get(), peak.get() <= limit);
+        assertEquals(0, shed.get());
+        assertEquals(0, bulkhead.getInFlight());
+    }
+
+    public void testAimdBacksOffOnFailureAndRecovers() {
+        final Bulkhead bulkhead = new Bulkhead(10, 0, 0L, Bulkhead.Adaptation.AIMD);
+        bulkhead.tryAcquire().recordFailure();
+        assertEquals(9, bulkhead.getLimit());
+
+        for (int i = 0; i < 100; i++) {
+            bulkhead.tryAcquire().recordFailure();
+        }
+        assertEquals(1, bulkhead.getLimit());
+
+        // growth needs the limit to be in use, so keep it full
+        for (int i = 0; i < 1000; i++) {
+            final List<Bulkhead.Permit> permits = acquireAll(bulkhead);
+            for (final Bulkhead.Permit permit : permits) {
+                permit.recordSuccess();
+            }
+        }
+        assertEquals(10, bulkhead.getLimit());
+    }
+
+    public void testVegasStaysWithinBounds() {
+        final Bulkhead bulkhead = new Bulkhead(10, 0, 0L, Bulkhead.Adaptation.VEGAS);
+        for (int i = 0; i < 50; i++) {
+            bulkhead.tryAcquire().recordFailure();
+        }
+        assertEquals(1, bulkhead.getLimit());
+
+        for (int i = 0; i < 1000; i++) {
+            for (final Bulkhead.Permit permit : acquireAll(bulkhead)) {
+                permit.recordSuccess();
+            }
+        }
+        assertTrue(bulkhead.getLimit() >= 1);
+        assertTrue(bulkhead.getLimit() <= 10);
+    }
+
+    public void testAbandonedExchangesDoNotAdaptTheLimit() {
+        final Bulkhead bulkhead = new Bulkhead(10, 0, 0L, Bulkhead.Adaptation.AIMD);
+        for (int i = 0; i < 10; i++) {
+            bulkhead.tryAcquire().release();
+        }
+        assertEquals(10, bulkhead.getLimit());
+    }
+
+    private static List<Bulkhead.Permit> acquireAll(final Bulkhead bulkhead) {
+        final List<Bulkhead.Permit> permits = new ArrayList<Bulkhead.Permit>();
+        Bulkhead.Permit permit;
+        while ((permit = bulkhead.tryAcquire()) != null) {
+            permits.add(permit);
+        }
+        return permits;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Stefan Paetow
+ */
+public class CircuitBreakerTest extends TestCase {
+
+    private static final long OPEN_TIME = 50L;
+
+    public void testStaysClosedWhileTheServerAnswers() {
+        final CircuitBreaker breaker = new CircuitBreaker(10, 50, OPEN_TIME);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.recordSuccess();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    public void testOpensAtTheFailureThreshold() {
+        final CircuitBreaker breaker = new CircuitBreaker(10, 50, OPEN_TIME);
+        for (int i = 0; i < 5; i++) {
+            breaker.recordSuccess();
+        }
+        for (int i = 0; i < 4; i++) {
+            breaker.recordFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    public void testNeedsHalfAWindowOfOutcomesBeforeOpening() {
+        final CircuitBreaker breaker = new CircuitBreaker(10, 50, OPEN_TIME);
+        for (int i = 0; i < 4; i++) {
+            breaker.recordFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    public void testOldOutcomesLeaveTheWindow() {
+        final CircuitBreaker breaker = new CircuitBreaker(10, 50, OPEN_TIME);
+        for (int i = 0; i < 4; i++) {
+            breaker.recordFailure();
+        }
+        // ten successes push the four failures out of the window
+        for (int i = 0; i < 10; i++) {
+            breaker.recordSuccess();
+        }
+        for (int i = 0; i < 4; i++) {
+            breaker.recordFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    public void testHalfOpenProbeClosesTheBreakerOnSuccess() throws InterruptedException {
+        final CircuitBreaker breaker = openBreaker();
+        Thread.sleep(OPEN_TIME * 2);
+
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // only one probe at a time
+        assertFalse(breaker.tryAcquire());
+
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    public void testHalfOpenProbeReopensTheBreakerOnFailure() throws InterruptedException {
+        final CircuitBreaker breaker = openBreaker();
+        Thread.sleep(OPEN_TIME * 2);
+
+        assertTrue(breaker.tryAcquire());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    public void testReleasedProbeLetsAnotherThrough() throws InterruptedException {
+        final CircuitBreaker breaker = openBreaker();
+        Thread.sleep(OPEN_TIME * 2);
+
+        assertTrue(breaker.tryAcquire());
+        breaker.release();
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    public void testNeverOpensWithoutOpenTime() {
+        final CircuitBreaker breaker = new CircuitBreaker(10, 50, 0L);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.recordFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    private static CircuitBreaker openBreaker() {
+        final CircuitBreaker breaker = new CircuitBreaker(10, 50, OPEN_TIME);
+        for (int i = 0; i < 10; i++) {
+            breaker.recordFailure();
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+}
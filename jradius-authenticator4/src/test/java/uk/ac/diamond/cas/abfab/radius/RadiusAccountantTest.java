@@ -0,0 +1,282 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import net.jradius.exception.RadiusException;
+
+import org.jasig.cas.adaptors.radius.RadiusClientFactory;
+
+import uk.ac.diamond.cas.adaptors.radius.EmbeddedRadiusServer;
+import uk.ac.diamond.cas.adaptors.radius.RadiusClientPool;
+import uk.ac.diamond.cas.adaptors.radius.RetransmittingRadiusClient;
+
+/**
+ * @author Stefan Paetow
+ */
+public class RadiusAccountantTest extends TestCase {
+
+    private static final String SHARED_SECRET = "testing123";
+
+    /** Long enough that the sender only sends what is queued when closed. */
+    private static final long NEVER = 60000L;
+
+    private EmbeddedRadiusServer server;
+
+    private RadiusClientFactory factory;
+
+    private RadiusAccountant accountant;
+
+    private File spillFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.server = new EmbeddedRadiusServer(SHARED_SECRET);
+        this.server.start();
+
+        this.factory = new RadiusClientFactory();
+        this.factory.setInetAddress(this.server.getAddress().getHostAddress());
+        this.factory.setAuthenticationPort(this.server.getPort());
+        this.factory.setAccountingPort(this.server.getPort());
+        this.factory.setSharedSecret(SHARED_SECRET);
+        this.factory.setSocketTimeout(1);
+
+        this.accountant = newAccountant(new RadiusClientPool(this.factory));
+
+        this.spillFile = File.createTempFile("radius-accounting", ".spill");
+        this.spillFile.delete();
+    }
+
+    @Override
+    protected void tearDown() {
+        this.accountant.close();
+        this.server.close();
+        this.spillFile.delete();
+        new File(this.spillFile.getPath() + ".replay").delete();
+    }
+
+    public void testLoginIsSentAsStartAndStop() throws InterruptedException {
+        this.accountant.setFlushInterval(50L);
+
+        final String sessionId = this.accountant.login("alice");
+        assertNotNull(sessionId);
+        assertFalse(sessionId.equals(this.accountant.login("bob")));
+
+        waitForSent(4L);
+        assertEquals(4L, this.server.getAccountingCount());
+        assertEquals(0, this.accountant.getQueueSize());
+        assertEquals(0L, this.accountant.getFailedCount());
+        assertEquals(0L, this.accountant.getDroppedCount());
+    }
+
+    public void testSessionIsStoppedSeparatelyWhenNotOnePerLogin() throws InterruptedException {
+        this.accountant.setFlushInterval(50L);
+        this.accountant.setSessionPerLogin(false);
+
+        final String sessionId = this.accountant.login("alice");
+        waitForSent(1L);
+        assertEquals(1L, this.server.getAccountingCount());
+
+        this.accountant.stop("alice", sessionId, 30L);
+        waitForSent(2L);
+        assertEquals(2L, this.server.getAccountingCount());
+    }
+
+    public void testQueuedEventsAreSentOnClose() {
+        this.accountant.setFlushInterval(NEVER);
+
+        this.accountant.login("alice");
+        assertEquals(2, this.accountant.getQueueSize());
+        assertEquals(0L, this.server.getAccountingCount());
+
+        this.accountant.close();
+        assertEquals(2L, this.accountant.getSentCount());
+        assertEquals(2L, this.server.getAccountingCount());
+    }
+
+    public void testNewestEventsAreDroppedWhenTheQueueIsFull() {
+        this.accountant.setFlushInterval(NEVER);
+        this.accountant.setQueueCapacity(3);
+        this.accountant.setOverflowPolicy(RadiusAccountant.OverflowPolicy.DROP_NEWEST);
+
+        for (int i = 0; i < 3; i++) {
+            this.accountant.login("user" + i);
+        }
+        assertEquals(3, this.accountant.getQueueSize());
+        assertEquals(3L, this.accountant.getDroppedCount());
+
+        this.accountant.close();
+        assertEquals(3L, this.accountant.getSentCount());
+    }
+
+    public void testOldestEventsAreDroppedWhenTheQueueIsFull() {
+        this.accountant.setFlushInterval(NEVER);
+        this.accountant.setQueueCapacity(3);
+        this.accountant.setOverflowPolicy(RadiusAccountant.OverflowPolicy.DROP_OLDEST);
+
+        for (int i = 0; i < 3; i++) {
+            this.accountant.login("user" + i);
+        }
+        assertEquals(3, this.accountant.getQueueSize());
+        assertEquals(3L, this.accountant.getDroppedCount());
+
+        this.accountant.close();
+        assertEquals(3L, this.accountant.getSentCount());
+    }
+
+    public void testSpilledEventsAreReplayed() throws InterruptedException {
+        this.accountant.setFlushInterval(200L);
+        this.accountant.setQueueCapacity(2);
+        this.accountant.setOverflowPolicy(RadiusAccountant.OverflowPolicy.SPILL);
+        this.accountant.setSpillFile(this.spillFile);
+
+        this.accountant.login("alice");
+        this.accountant.login("bob");
+        assertEquals(2L, this.accountant.getSpilledCount());
+        assertTrue(this.spillFile.isFile());
+
+        waitForSent(4L);
+        assertEquals(4L, this.server.getAccountingCount());
+        assertEquals(0L, this.accountant.getDroppedCount());
+        assertFalse(this.spillFile.exists());
+    }
+
+    public void testEventsAfterCloseAreSpilledToAClosedFile() throws IOException {
+        this.accountant.setOverflowPolicy(RadiusAccountant.OverflowPolicy.SPILL);
+        this.accountant.setSpillFile(this.spillFile);
+        this.accountant.init();
+        this.accountant.close();
+
+        this.accountant.login("alice");
+        assertEquals(2L, this.accountant.getSpilledCount());
+        assertEquals(0L, this.accountant.getSentCount());
+
+        // the writer was closed, so both lines reached the file
+        final List<String> lines = Files.readAllLines(this.spillFile.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).endsWith(" alice"));
+    }
+
+    public void testEventsAfterCloseAreDroppedWithoutASpillFile() {
+        this.accountant.init();
+        this.accountant.close();
+
+        this.accountant.login("alice");
+        assertEquals(2L, this.accountant.getDroppedCount());
+        assertEquals(0, this.accountant.getQueueSize());
+        assertEquals(0L, this.server.getAccountingCount());
+    }
+
+    public void testFailedReplaysBackOff() throws IOException, InterruptedException {
+        final FailingPool pool = new FailingPool(this.factory, null);
+        this.accountant = newAccountant(pool);
+        this.accountant.setFlushInterval(20L);
+        this.accountant.setOverflowPolicy(RadiusAccountant.OverflowPolicy.SPILL);
+        this.accountant.setSpillFile(this.spillFile);
+        final long now = System.currentTimeMillis();
+        Files.write(this.spillFile.toPath(), Arrays.asList("1 " + now + " 0 s1 alice", "2 " + now + " 0 s1 alice"),
+                StandardCharsets.UTF_8);
+
+        this.accountant.init();
+        Thread.sleep(1000L);
+        this.accountant.close();
+
+        // every 20 ms would be some 50 attempts; doubling the pause each time leaves about 6
+        assertTrue(pool.borrows.get() >= 2);
+        assertTrue(pool.borrows.get() <= 8);
+        assertEquals(2, Files.readAllLines(this.spillFile.toPath(), StandardCharsets.UTF_8).size());
+        assertEquals(0L, this.accountant.getDroppedCount());
+    }
+
+    public void testUnsentEventsAreSpilledWhenCloseStopsWaiting() throws IOException, InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final FailingPool pool = new FailingPool(this.factory, release);
+        this.accountant = newAccountant(pool);
+        this.accountant.setFlushInterval(20L);
+        this.accountant.setOverflowPolicy(RadiusAccountant.OverflowPolicy.SPILL);
+        this.accountant.setSpillFile(this.spillFile);
+
+        this.accountant.login("alice");
+        while (pool.borrows.get() == 0) {
+            Thread.sleep(10L);
+        }
+        // close() gives up on the sender, which is still waiting for a client
+        this.accountant.close();
+        release.countDown();
+
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (this.accountant.getSpilledCount() < 2L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(2L, this.accountant.getSpilledCount());
+        assertEquals(0, this.accountant.getQueueSize());
+        assertEquals(2, Files.readAllLines(this.spillFile.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    private static RadiusAccountant newAccountant(final RadiusClientPool pool) {
+        final RadiusAccountant accountant = new RadiusAccountant(pool);
+        accountant.setRetries(0);
+        accountant.setBatchSize(100);
+        return accountant;
+    }
+
+    private void waitForSent(final long count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while (this.accountant.getSentCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(count, this.accountant.getSentCount());
+    }
+
+    /**
+     * A pool whose server never answers, optionally after holding up the sender.
+     */
+    private static final class FailingPool extends RadiusClientPool {
+
+        private final CountDownLatch release;
+
+        private final AtomicInteger borrows = new AtomicInteger();
+
+        private FailingPool(final RadiusClientFactory clientFactory, final CountDownLatch release) {
+            super(clientFactory);
+            this.release = release;
+        }
+
+        @Override
+        public RetransmittingRadiusClient borrowClient() throws RadiusException {
+            this.borrows.incrementAndGet();
+            if (this.release != null) {
+                try {
+                    this.release.await(10L, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            throw new RadiusException("No answer");
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.abfab.radius.authentication.handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.login.FailedLoginException;
+
+import junit.framework.TestCase;
+
+import org.jasig.cas.adaptors.radius.RadiusClientFactory;
+import org.jasig.cas.adaptors.radius.RadiusProtocol;
+import org.jasig.cas.adaptors.radius.RadiusServer;
+import org.jasig.cas.authentication.PreventedException;
+import org.jasig.cas.authentication.UsernamePasswordCredential;
+import org.jasig.cas.authentication.principal.Principal;
+
+import uk.ac.diamond.cas.abfab.radius.ABFABRadiusServerImpl;
+import uk.ac.diamond.cas.abfab.radius.RadiusAccountant;
+import uk.ac.diamond.cas.adaptors.radius.EmbeddedRadiusServer;
+import uk.ac.diamond.cas.adaptors.radius.RadiusClientPool;
+import uk.ac.diamond.cas.adaptors.radius.RetransmissionTimer;
+
+/**
+ * @author Stefan Paetow
+ */
+public class ABFABRadiusAuthenticationHandlerTest extends TestCase {
+
+    private static final String SHARED_SECRET = "testing123";
+
+    private static final String EPPN = "urn:oid:1.3.6.1.4.1.5923.1.1.1.6";
+
+    private static final String ASSERTION =
+            "<saml:Assertion xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"_a1\" Version=\"2.0\">"
+            + "<saml:Issuer>https://idp.example.org/idp/shibboleth</saml:Issuer>"
+            + "<saml:AttributeStatement>"
+            + "<saml:Attribute Name=\"" + EPPN + "\">"
+            + "<saml:AttributeValue>alice@example.org</saml:AttributeValue>"
+            + "</saml:Attribute>"
+            + "</saml:AttributeStatement>"
+            + "</saml:Assertion>";
+
+    private static final String AFFILIATION = "urn:oid:1.3.6.1.4.1.5923.1.1.1.9";
+
+    private static final String GIVEN_NAME = "urn:oid:2.5.4.42";
+
+    private static final String ATTRIBUTE_ASSERTION =
+            "<saml:Assertion xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"_a2\" Version=\"2.0\">"
+            + "<saml:Issuer>https://idp.example.org/idp/shibboleth</saml:Issuer>"
+            + "<saml:AttributeStatement>"
+            + "<saml:Attribute Name=\"" + EPPN + "\">"
+            + "<saml:AttributeValue>alice@example.org</saml:AttributeValue>"
+            + "</saml:Attribute>"
+            + "<saml:Attribute Name=\"" + AFFILIATION + "\">"
+            + "<saml:AttributeValue>member@example.org</saml:AttributeValue>"
+            + "<saml:AttributeValue>staff@example.org</saml:AttributeValue>"
+            + "</saml:Attribute>"
+            + "<saml:Attribute Name=\"" + GIVEN_NAME + "\">"
+            + "<saml:AttributeValue>Alice</saml:AttributeValue>"
+            + "</saml:Attribute>"
+            + "</saml:AttributeStatement>"
+            + "</saml:Assertion>";
+
+    private final ABFABRadiusAuthenticationHandler handler = new ABFABRadiusAuthenticationHandler();
+
+    private final List<EmbeddedRadiusServer> embeddedServers = new ArrayList<EmbeddedRadiusServer>();
+
+    private final List<RadiusClientPool> pools = new ArrayList<RadiusClientPool>();
+
+    @Override
+    protected void tearDown() {
+        for (final RadiusClientPool pool : this.pools) {
+            pool.close();
+        }
+        for (final EmbeddedRadiusServer server : this.embeddedServers) {
+            server.close();
+        }
+    }
+
+    public void testAcceptWithFragmentedAssertionResolvesThePrincipal() throws Exception {
+        final EmbeddedRadiusServer server = startEmbeddedServer();
+        server.setFragmentLength(50);
+        this.handler.setServers(Arrays.<RadiusServer>asList(newRadiusServer(server)));
+        this.handler.setPrincipalIdentifierURN(EPPN);
+
+        assertEquals("alice@example.org", authenticate("alice", "secret").getId());
+        assertEquals(1L, server.getAcceptCount());
+    }
+
+    public void testRejectFailsTheLogin() throws Exception {
+        final EmbeddedRadiusServer server = startEmbeddedServer();
+        this.handler.setServers(Arrays.<RadiusServer>asList(newRadiusServer(server)));
+        this.handler.setPrincipalIdentifierURN(EPPN);
+
+        try {
+            authenticate("alice", "wrong");
+            fail("The server rejected the password");
+        } catch (final FailedLoginException e) {
+            assertEquals(1L, server.getRejectCount());
+        }
+    }
+
+    public void testLostRequestIsRetransmitted() throws Exception {
+        final EmbeddedRadiusServer server = startEmbeddedServer();
+        server.dropNext(1);
+        this.handler.setServers(Arrays.<RadiusServer>asList(newRadiusServer(server)));
+        this.handler.setPrincipalIdentifierURN(EPPN);
+
+        assertEquals("alice@example.org", authenticate("alice", "secret").getId());
+        assertEquals(1L, server.getDropCount());
+        assertEquals(2L, server.getRequestCount());
+    }
+
+    public void testDuplicateReplyIsIgnored() throws Exception {
+        final EmbeddedRadiusServer server = startEmbeddedServer();
+        server.setDuplicateRate(1.0);
+        final ABFABRadiusServerImpl radiusServer = newRadiusServer(server);
+        this.pools.get(0).setMaxTotal(1);
+        this.handler.setServers(Arrays.<RadiusServer>asList(radiusServer));
+        this.handler.setPrincipalIdentifierURN(EPPN);
+
+        assertEquals("alice@example.org", authenticate("alice", "secret").getId());
+        // the duplicate Access-Accept is waiting on the pooled client's socket by now
+        Thread.sleep(100L);
+        try {
+            authenticate("alice", "wrong");
+            fail("The duplicate Access-Accept answered the wrong password");
+        } catch (final FailedLoginException e) {
+            assertEquals(1L, server.getRejectCount());
+        }
+    }
+
+    public void testSilentServerTimesOutAndFailsOver() throws Exception {
+        final EmbeddedRadiusServer silent = startEmbeddedServer();
+        silent.setSilent(true);
+        final EmbeddedRadiusServer server = startEmbeddedServer();
+        this.handler.setServers(Arrays.<RadiusServer>asList(newRadiusServer(silent), newRadiusServer(server)));
+        this.handler.setPrincipalIdentifierURN(EPPN);
+        this.handler.setFailoverOnException(true);
+
+        assertEquals("alice@example.org", authenticate("alice", "secret").getId());
+        assertTrue(silent.getDropCount() >= 1L);
+        assertEquals(1L, server.getAcceptCount());
+    }
+
+    public void testHedgedRequestGoesToTheNextServerWhenThePrimaryIsSlow() throws Exception {
+        final TestServer primary = new TestServer(3000L, Boolean.TRUE);
+        final TestServer secondary = new TestServer(0L, Boolean.TRUE);
+        this.handler.setServers(Arrays.<RadiusServer>asList(primary, secondary));
+        this.handler.setHedging(true);
+        this.handler.setHedgeDelay(100L);
+
+        final long start = System.nanoTime();
+        assertEquals("alice", authenticate("alice", "secret").getId());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000L);
+        assertEquals(1, primary.calls.get());
+        assertEquals(1, secondary.calls.get());
+    }
+
+    public void testNoHedgedRequestWhenThePrimaryAnswersInTime() throws Exception {
+        final TestServer primary = new TestServer(0L, Boolean.TRUE);
+        final TestServer secondary = new TestServer(0L, Boolean.TRUE);
+        this.handler.setServers(Arrays.<RadiusServer>asList(primary, secondary));
+        this.handler.setHedging(true);
+        this.handler.setHedgeDelay(500L);
+
+        assertEquals("alice", authenticate("alice", "secret").getId());
+        Thread.sleep(700L);
+        assertEquals(1, primary.calls.get());
+        assertEquals(0, secondary.calls.get());
+    }
+
+    public void testFirstHedgedAnswerWins() throws Exception {
+        // the hedged request is rejected before the slow primary would accept
+        final TestServer primary = new TestServer(1000L, Boolean.TRUE);
+        final TestServer secondary = new TestServer(0L, Boolean.FALSE);
+        this.handler.setServers(Arrays.<RadiusServer>asList(primary, secondary));
+        this.handler.setHedging(true);
+        this.handler.setHedgeDelay(100L);
+
+        try {
+            this.handler.authenticateAsync("alice", "secret").toCompletableFuture().get(10L, TimeUnit.SECONDS);
+            fail("The first answer, a reject, should have decided the login");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof FailedLoginException);
+        }
+    }
+
+    public void testFailedPrimaryWaitsForTheOutstandingHedgedRequest() throws Exception {
+        final TestServer primary = new TestServer(300L, new PreventedException("timed out", null));
+        final TestServer secondary = new TestServer(600L, Boolean.TRUE);
+        this.handler.setServers(Arrays.<RadiusServer>asList(primary, secondary));
+        this.handler.setHedging(true);
+        this.handler.setHedgeDelay(100L);
+
+        // failoverOnException is off, yet the hedged request was already sent and may still answer
+        assertEquals("alice", authenticate("alice", "secret").getId());
+        assertEquals(1, secondary.calls.get());
+    }
+
+    public void testHedgedLoginFailsOnceNoExchangeIsOutstanding() throws Exception {
+        final TestServer primary = new TestServer(300L, new PreventedException("timed out", null));
+        final TestServer secondary = new TestServer(400L, new PreventedException("timed out", null));
+        this.handler.setServers(Arrays.<RadiusServer>asList(primary, secondary));
+        this.handler.setHedging(true);
+        this.handler.setHedgeDelay(100L);
+
+        final CompletableFuture<Principal> result =
+                this.handler.authenticateAsync("alice", "secret").toCompletableFuture();
+        try {
+            result.get(10L, TimeUnit.SECONDS);
+            fail("Both servers failed");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof PreventedException);
+        }
+        assertEquals(1, primary.calls.get());
+        assertEquals(1, secondary.calls.get());
+    }
+
+    public void testUnexpectedErrorOpensTheCircuitBreaker() throws Exception {
+        final TestServer server = new TestServer(0L, new IllegalStateException("broken"));
+        this.handler.setServers(Arrays.<RadiusServer>asList(server));
+        this.handler.setCircuitBreakerWindow(1);
+        this.handler.setCircuitBreakerFailureThreshold(100);
+        this.handler.setCircuitBreakerOpenTime(60000L);
+
+        try {
+            authenticate("alice", "secret");
+            fail("The server's error should have been rethrown");
+        } catch (final IllegalStateException e) {
+            assertEquals("broken", e.getMessage());
+        }
+        try {
+            authenticate("alice", "secret");
+            fail("The circuit breaker should have opened");
+        } catch (final PreventedException e) {
+            assertTrue(e.getMessage().startsWith("No RADIUS server available"));
+        }
+        assertEquals(1, server.calls.get());
+    }
+
+    public void testOnlyTheWinningHedgedAnswerIsAccounted() throws Exception {
+        final TestServer primary = new TestServer(500L, Boolean.TRUE);
+        final TestServer secondary = new TestServer(0L, Boolean.TRUE);
+        final AtomicInteger logins = new AtomicInteger();
+        this.handler.setServers(Arrays.<RadiusServer>asList(primary, secondary));
+        this.handler.setHedging(true);
+        this.handler.setHedgeDelay(100L);
+        this.handler.setRadiusAccountant(new RadiusAccountant(new RadiusClientFactory()) {
+            @Override
+            public String login(final String username) {
+                logins.incrementAndGet();
+                return username;
+            }
+        });
+
+        assertEquals("alice", authenticate("alice", "secret").getId());
+        // the primary accepts as well, but too late
+        Thread.sleep(700L);
+        assertEquals(1, primary.calls.get());
+        assertEquals(1, logins.get());
+    }
+
+    public void testNoAttributesAreReleasedByDefault() throws Exception {
+        final EmbeddedRadiusServer server = startEmbeddedServer();
+        server.addUser("alice", "secret", ATTRIBUTE_ASSERTION);
+        this.handler.setServers(Arrays.<RadiusServer>asList(newRadiusServer(server)));
+        this.handler.setPrincipalIdentifierURN(EPPN);
+
+        final Principal principal = authenticate("alice", "secret");
+        assertEquals("alice@example.org", principal.getId());
+        assertTrue(principal.getAttributes().isEmpty());
+    }
+
+    public void testMappedAttributesAreReleasedUnderTheirPrincipalNames() throws Exception {
+        final EmbeddedRadiusServer server = startEmbeddedServer();
+        server.addUser("alice", "secret", ATTRIBUTE_ASSERTION);
+        this.handler.setServers(Arrays.<RadiusServer>asList(newRadiusServer(server)));
+        this.handler.setPrincipalIdentifierURN(EPPN);
+        final Map<String, String> attributeMapping = new HashMap<String, String>();
+        attributeMapping.put(AFFILIATION, "affiliation");
+        attributeMapping.put(GIVEN_NAME, "givenName");
+        this.handler.setAttributeMapping(attributeMapping);
+
+        final Map<String, Object> attributes = authenticate("alice", "secret").getAttributes();
+        assertEquals(2, attributes.size());
+        assertEquals(Arrays.asList("member@example.org", "staff@example.org"), attributes.get("affiliation"));
+        assertEquals("Alice", attributes.get("givenName"));
+    }
+
+    public void testAllAttributesAreReleasedWhenAskedTo() throws Exception {
+        final EmbeddedRadiusServer server = startEmbeddedServer();
+        server.addUser("alice", "secret", ATTRIBUTE_ASSERTION);
+        this.handler.setServers(Arrays.<RadiusServer>asList(newRadiusServer(server)));
+        this.handler.setPrincipalIdentifierURN(EPPN);
+        this.handler.setAttributeMapping(Collections.singletonMap(GIVEN_NAME, "givenName"));
+        this.handler.setReleaseAllAttributes(true);
+
+        final Map<String, Object> attributes = authenticate("alice", "secret").getAttributes();
+        assertEquals(3, attributes.size());
+        assertEquals("alice@example.org", attributes.get(EPPN));
+        assertEquals(Arrays.asList("member@example.org", "staff@example.org"), attributes.get(AFFILIATION));
+        // a mapped attribute is still renamed
+        assertEquals("Alice", attributes.get("givenName"));
+    }
+
+    public void testAttributesAreReleasedWhenTheIdentifierIsMissing() throws Exception {
+        final EmbeddedRadiusServer server = startEmbeddedServer();
+        server.addUser("alice", "secret", ATTRIBUTE_ASSERTION);
+        this.handler.setServers(Arrays.<RadiusServer>asList(newRadiusServer(server)));
+        this.handler.setPrincipalIdentifierURN("urn:oid:0.9.2342.19200300.100.1.1");
+        this.handler.setAttributeMapping(Collections.singletonMap(GIVEN_NAME, "givenName"));
+
+        final Principal principal = authenticate("alice", "secret");
+        assertEquals("alice", principal.getId());
+        assertEquals(Collections.singletonMap("givenName", "Alice"), principal.getAttributes());
+    }
+
+    private Principal authenticate(final String username, final String password) throws Exception {
+        return this.handler.authenticate(new UsernamePasswordCredential(username, password)).getPrincipal();
+    }
+
+    private EmbeddedRadiusServer startEmbeddedServer() throws Exception {
+        final EmbeddedRadiusServer server = new EmbeddedRadiusServer(SHARED_SECRET);
+        this.embeddedServers.add(server);
+        server.start();
+        server.addUser("alice", "secret", ASSERTION);
+        return server;
+    }
+
+    /**
+     * @return a server at the embedded one, which gives each transmission 200 ms and a login 1 s
+     */
+    private ABFABRadiusServerImpl newRadiusServer(final EmbeddedRadiusServer server) {
+        final RadiusClientFactory factory = new RadiusClientFactory();
+        factory.setInetAddress(server.getAddress().getHostAddress());
+        factory.setAuthenticationPort(server.getPort());
+        factory.setAccountingPort(server.getPort());
+        factory.setSharedSecret(SHARED_SECRET);
+        factory.setSocketTimeout(1);
+        final RadiusClientPool pool = new RadiusClientPool(factory);
+        pool.setRetransmissionTimer(new RetransmissionTimer(200L));
+        this.pools.add(pool);
+
+        final ABFABRadiusServerImpl radiusServer = new ABFABRadiusServerImpl(RadiusProtocol.PAP, pool);
+        radiusServer.setLoginTimeout(1000L);
+        return radiusServer;
+    }
+
+    /**
+     * A classic RADIUS server that answers after a delay, or fails.
+     */
+    private static final class TestServer implements RadiusServer {
+
+        private final long delay;
+
+        /** Boolean.TRUE to accept, Boolean.FALSE to reject, or the exception to throw. */
+        private volatile Object outcome;
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private TestServer(final long delay, final Object outcome) {
+            this.delay = delay;
+            this.outcome = outcome;
+        }
+
+        @Override
+        public boolean authenticate(final String username, final String password) throws PreventedException {
+            this.calls.incrementAndGet();
+            if (this.delay > 0L) {
+                try {
+                    Thread.sleep(this.delay);
+                } catch (final InterruptedException e) {
+                    throw new PreventedException(e);
+                }
+            }
+            final Object current = this.outcome;
+            if (current instanceof PreventedException) {
+                throw (PreventedException) current;
+            } else if (current instanceof RuntimeException) {
+                throw (RuntimeException) current;
+            }
+            return ((Boolean) current).booleanValue();
+        }
+    }
+}
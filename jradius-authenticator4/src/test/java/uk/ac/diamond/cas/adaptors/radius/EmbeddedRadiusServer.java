@@ -0,0 +1,788 @@
+/*
+ * Diamond Light Source Limited licenses this file to you
+ * under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at the
+ * following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package uk.ac.diamond.cas.adaptors.radius;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jradius.dictionary.Attr_CHAPChallenge;
+import net.jradius.dictionary.Attr_CHAPPassword;
+import net.jradius.dictionary.Attr_EAPMessage;
+import net.jradius.dictionary.Attr_MessageAuthenticator;
+import net.jradius.dictionary.Attr_State;
+import net.jradius.dictionary.Attr_UserName;
+import net.jradius.dictionary.Attr_UserPassword;
+import net.jradius.exception.UnknownAttributeException;
+import net.jradius.packet.AccessAccept;
+import net.jradius.packet.AccessChallenge;
+import net.jradius.packet.AccessReject;
+import net.jradius.packet.AccessRequest;
+import net.jradius.packet.AccountingRequest;
+import net.jradius.packet.AccountingResponse;
+import net.jradius.packet.PacketFactory;
+import net.jradius.packet.RadiusFormat;
+import net.jradius.packet.RadiusPacket;
+import net.jradius.packet.RadiusResponse;
+import net.jradius.packet.attribute.AttributeFactory;
+import net.jradius.packet.attribute.RadiusAttribute;
+import net.jradius.util.CHAP;
+import net.jradius.util.MSCHAP;
+import net.jradius.util.MessageAuthenticator;
+import net.jradius.util.RadiusRandom;
+import net.jradius.util.RadiusUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-process RADIUS server standing in for a Moonshot (ABFAB) identity provider in integration
+ * and load tests. It authenticates its configured users over PAP, CHAP, MS-CHAPv1, MS-CHAPv2,
+ * EAP-MD5 and EAP-MSCHAPv2, and attaches the user's SAML assertion to every Access-Accept, split
+ * into SAML-AAA-Assertion attributes of at most 247 bytes the way ABFAB identity providers send
+ * it. The TLS-based EAP methods (EAP-TLS, EAP-TTLS, PEAP) are refused with an EAP-Failure.
+ * Status-Server probes (RFC 5997) are answered with an empty Access-Accept, and accounting
+ * requests (RFC 2866), sent to the same port, with an Accounting-Response.
+ *
+ * Failures are injected per request: a fixed latency plus random jitter, random loss of requests
+ * or of a given number of the next ones, duplicated replies, and a silent mode in which nothing is answered at all. Like a real server,
+ * it answers a retransmitted request with the reply it already sent.
+ *
+ * <pre>
+ * final EmbeddedRadiusServer server = new EmbeddedRadiusServer("testing123");
+ * server.addUser("alice", "secret", assertion);
+ * server.start();
+ * // point a RadiusClientFactory at 127.0.0.1 and server.getPort()
+ * server.close();
+ * </pre>
+ *
+ * @author Stefan Paetow
+ */
+public class EmbeddedRadiusServer implements Closeable {
+
+    /** Name of the attribute carrying the SAML assertion. */
+    public static final String SAML_ASSERTION_ATTRIBUTE = "SAML-AAA-Assertion";
+
+    /** Largest value of a single vendor-specific RADIUS attribute such as SAML-AAA-Assertion. */
+    public static final int MAX_FRAGMENT_LENGTH = 247;
+
+    /** Number of replies kept to answer retransmissions. */
+    private static final int REPLY_CACHE_SIZE = 4096;
+
+    private static final int ACCESS_REQUEST = 1;
+    private static final int STATUS_SERVER = 12;
+
+    private static final int EAP_REQUEST = 1;
+    private static final int EAP_RESPONSE = 2;
+    private static final int EAP_SUCCESS = 3;
+    private static final int EAP_FAILURE = 4;
+
+    private static final int EAP_IDENTITY = 1;
+    private static final int EAP_NAK = 3;
+    private static final int EAP_MD5 = 4;
+    private static final int EAP_MSCHAPV2 = 26;
+
+    private static final int MSCHAPV2_CHALLENGE = 1;
+    private static final int MSCHAPV2_RESPONSE = 2;
+    private static final int MSCHAPV2_SUCCESS = 3;
+
+    /** Logger instance. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedRadiusServer.class);
+
+    static {
+        AttributeFactory.loadAttributeDictionary("net.jradius.dictionary.AttributeDictionaryImpl");
+    }
+
+    private final String sharedSecret;
+
+    /** Passwords and assertions by username. */
+    private final ConcurrentMap<String, User> users = new ConcurrentHashMap<String, User>();
+
+    /** EAP conversations in progress, by the hex of their State attribute. */
+    private final ConcurrentMap<String, EapSession> sessions = new ConcurrentHashMap<String, EapSession>();
+
+    /** Replies already sent, by source, identifier and request authenticator; guarded by itself. */
+    private final Map<String, byte[]> replies = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, byte[]> eldest) {
+            return size() > REPLY_CACHE_SIZE;
+        }
+    };
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final AtomicLong acceptCount = new AtomicLong();
+
+    private final AtomicLong rejectCount = new AtomicLong();
+
+    private final AtomicLong challengeCount = new AtomicLong();
+
+    private final AtomicLong dropCount = new AtomicLong();
+
+    private final AtomicLong accountingCount = new AtomicLong();
+
+    /** Assertion sent to users who have none of their own; null for none. */
+    private volatile String assertion;
+
+    /** EAP method offered first; a client wanting another answers with a Nak. */
+    private volatile int eapType = EAP_MD5;
+
+    /** Length of each SAML-AAA-Assertion fragment. */
+    private volatile int fragmentLength = MAX_FRAGMENT_LENGTH;
+
+    /** Time in milliseconds before each reply is sent. */
+    private volatile long latency;
+
+    /** Largest random time in milliseconds added to the latency. */
+    private volatile long latencyJitter;
+
+    /** Share of requests dropped on arrival. */
+    private volatile double lossRate;
+
+    /** Number of requests still to drop on arrival, whatever the loss rate. */
+    private final AtomicInteger pendingDrops = new AtomicInteger();
+
+    /** Share of replies sent twice. */
+    private volatile double duplicateRate;
+
+    /** Whether every request is dropped. */
+    private volatile boolean silent;
+
+    private DatagramSocket socket;
+
+    private ScheduledExecutorService sender;
+
+    private Thread receiver;
+
+    /**
+     * @param sharedSecret The secret shared with the clients
+     */
+    public EmbeddedRadiusServer(final String sharedSecret) {
+        this.sharedSecret = sharedSecret;
+    }
+
+    /**
+     * Starts answering on an ephemeral port of the loopback address.
+     *
+     * @throws SocketException if the socket cannot be opened
+     */
+    public void start() throws SocketException {
+        start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    /**
+     * Starts answering on the given address.
+     *
+     * @param address The address to bind
+     * @throws SocketException if the socket cannot be opened
+     */
+    public synchronized void start(final SocketAddress address) throws SocketException {
+        if (this.socket != null) {
+            throw new IllegalStateException("Already started");
+        }
+        this.socket = new DatagramSocket(address);
+        this.sender = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "embedded-radius-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.receiver = new Thread(this::serve, "embedded-radius-receiver");
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+        LOGGER.debug("Embedded RADIUS server listening on {}", this.socket.getLocalSocketAddress());
+    }
+
+    /**
+     * Stops answering and releases the socket.
+     */
+    @Override
+    public synchronized void close() {
+        if (this.socket == null) {
+            return;
+        }
+        this.socket.close();
+        this.sender.shutdownNow();
+        try {
+            this.receiver.join(1000L);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.socket = null;
+    }
+
+    /**
+     * @return the port the server answers on
+     */
+    public synchronized int getPort() {
+        return this.socket.getLocalPort();
+    }
+
+    /**
+     * @return the address the server answers on
+     */
+    public synchronized InetAddress getAddress() {
+        return this.socket.getLocalAddress();
+    }
+
+    /**
+     * Adds a user whose Access-Accepts carry the default SAML assertion.
+     *
+     * @param username The username
+     * @param password The password
+     */
+    public void addUser(final String username, final String password) {
+        addUser(username, password, null);
+    }
+
+    /**
+     * Adds a user, or replaces one of the same name.
+     *
+     * @param username The username
+     * @param password The password
+     * @param assertion The SAML assertion sent in the user's Access-Accepts; null for the default
+     */
+    public void addUser(final String username, final String password, final String assertion) {
+        this.users.put(username, new User(password, assertion));
+    }
+
+    /**
+     * Adds users sharing the default assertion, for configuration as a bean.
+     *
+     * @param users Passwords by username
+     */
+    public void setUsers(final Map<String, String> users) {
+        for (final Map.Entry<String, String> user : users.entrySet()) {
+            addUser(user.getKey(), user.getValue());
+        }
+    }
+
+    /**
+     * @param assertion The SAML assertion sent to users added without one; defaults to none.
+     */
+    public void setAssertion(final String assertion) {
+        this.assertion = assertion;
+    }
+
+    /**
+     * @param username The username to remove, so that the user is rejected from now on
+     */
+    public void removeUser(final String username) {
+        this.users.remove(username);
+    }
+
+    /**
+     * Sets the EAP method offered after the identity exchange. Clients configured for another
+     * supported method answer with a Nak and are then offered theirs.
+     *
+     * @param eapType The EAP type, 4 (MD5, the default) or 26 (MSCHAPv2)
+     */
+    public void setEapType(final int eapType) {
+        this.eapType = eapType;
+    }
+
+    /**
+     * @param fragmentLength The largest length of a SAML-AAA-Assertion attribute; defaults to 247.
+     */
+    public void setFragmentLength(final int fragmentLength) {
+        this.fragmentLength = Math.max(1, Math.min(fragmentLength, MAX_FRAGMENT_LENGTH));
+    }
+
+    /**
+     * @param latency Time in milliseconds before each reply is sent; defaults to 0.
+     */
+    public void setLatency(final long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @param latencyJitter Largest random time in milliseconds added to the latency; defaults to 0.
+     */
+    public void setLatencyJitter(final long latencyJitter) {
+        this.latencyJitter = latencyJitter;
+    }
+
+    /**
+     * @param lossRate Share of requests dropped on arrival, between 0 (the default) and 1.
+     */
+    public void setLossRate(final double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * @param count Number of requests to drop on arrival from now on, before the loss rate applies.
+     */
+    public void dropNext(final int count) {
+        this.pendingDrops.set(count);
+    }
+
+    /**
+     * @param duplicateRate Share of replies sent twice, between 0 (the default) and 1.
+     */
+    public void setDuplicateRate(final double duplicateRate) {
+        this.duplicateRate = duplicateRate;
+    }
+
+    /**
+     * @param silent true to drop every request, as an unreachable or overloaded server would.
+     */
+    public void setSilent(final boolean silent) {
+        this.silent = silent;
+    }
+
+    /**
+     * @return the number of requests received, dropped ones included
+     */
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    /**
+     * @return the number of Access-Accepts sent, not counting duplicates and retransmissions
+     */
+    public long getAcceptCount() {
+        return this.acceptCount.get();
+    }
+
+    /**
+     * @return the number of Access-Rejects sent, not counting duplicates and retransmissions
+     */
+    public long getRejectCount() {
+        return this.rejectCount.get();
+    }
+
+    /**
+     * @return the number of Access-Challenges sent, not counting duplicates and retransmissions
+     */
+    public long getChallengeCount() {
+        return this.challengeCount.get();
+    }
+
+    /**
+     * @return the number of requests dropped by loss or silence
+     */
+    public long getDropCount() {
+        return this.dropCount.get();
+    }
+
+    /**
+     * @return the number of Accounting-Requests answered, not counting duplicates and retransmissions
+     */
+    public long getAccountingCount() {
+        return this.accountingCount.get();
+    }
+
+    /**
+     * Receives requests until the socket is closed.
+     */
+    private void serve() {
+        final DatagramSocket socket = this.socket;
+        final byte[] buffer = new byte[RadiusPacket.MAX_PACKET_LENGTH];
+        while (!socket.isClosed()) {
+            final DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(datagram);
+            } catch (final IOException e) {
+                if (!socket.isClosed()) {
+                    LOGGER.warn("Embedded RADIUS server failed to receive: {}", e.getMessage());
+                }
+                continue;
+            }
+            this.requestCount.incrementAndGet();
+
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (this.silent || this.pendingDrops.getAndUpdate(n -> Math.max(n - 1, 0)) > 0
+                    || random.nextDouble() < this.lossRate) {
+                this.dropCount.incrementAndGet();
+                continue;
+            }
+            if (datagram.getLength() < 20) {
+                continue;
+            }
+
+            final String key = datagram.getSocketAddress() + "/" + (buffer[1] & 0xff) + "/"
+                    + RadiusUtils.byteArrayToHexString(Arrays.copyOfRange(buffer, 4, 20));
+            byte[] reply;
+            synchronized (this.replies) {
+                reply = this.replies.get(key);
+            }
+            if (reply == null) {
+                try {
+                    reply = answer(datagram);
+                } catch (final Exception e) {
+                    LOGGER.warn("Embedded RADIUS server failed to answer: {}", e.toString());
+                    continue;
+                }
+                if (reply == null) {
+                    continue;
+                }
+                synchronized (this.replies) {
+                    this.replies.put(key, reply);
+                }
+            }
+
+            final SocketAddress client = datagram.getSocketAddress();
+            final long delay = this.latency + (this.latencyJitter > 0L ? random.nextLong(this.latencyJitter + 1L) : 0L);
+            send(reply, client, delay);
+            if (random.nextDouble() < this.duplicateRate) {
+                send(reply, client, delay + 1L);
+            }
+        }
+    }
+
+    private void send(final byte[] reply, final SocketAddress client, final long delay) {
+        final DatagramSocket socket = this.socket;
+        this.sender.schedule(() -> {
+            try {
+                socket.send(new DatagramPacket(reply, reply.length, client));
+            } catch (final IOException e) {
+                LOGGER.debug("Embedded RADIUS server failed to reply to {}: {}", client, e.getMessage());
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the reply to the request on the wire, or null to ignore it
+     */
+    private byte[] answer(final DatagramPacket datagram) throws Exception {
+        // JRadius cannot parse a Status-Server packet, which is laid out like an Access-Request
+        final byte[] data = datagram.getData();
+        final boolean statusServer = (data[datagram.getOffset()] & 0xff) == STATUS_SERVER;
+        if (statusServer) {
+            data[datagram.getOffset()] = (byte) ACCESS_REQUEST;
+        }
+        final RadiusPacket packet = PacketFactory.parse(datagram, false);
+        if (packet instanceof AccountingRequest) {
+            this.accountingCount.incrementAndGet();
+            final AccountingResponse response = new AccountingResponse();
+            response.setIdentifier(packet.getIdentifier());
+            response.generateAuthenticator(packet.getAuthenticator(), this.sharedSecret);
+            final ByteBuffer buffer = ByteBuffer.allocate(RadiusPacket.MAX_PACKET_LENGTH);
+            RadiusFormat.getInstance().packPacket(response, this.sharedSecret, buffer, true);
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+        if (!(packet instanceof AccessRequest)) {
+            LOGGER.debug("Embedded RADIUS server ignoring {}", packet.getClass().getSimpleName());
+            return null;
+        }
+        final AccessRequest request = (AccessRequest) packet;
+        final boolean eap = request.findAttribute(Attr_EAPMessage.TYPE) != null;
+        final RadiusResponse response = statusServer ? new AccessAccept()
+                : eap ? answerEap(request) : answerPlain(request);
+
+        if (statusServer) {
+            LOGGER.debug("Embedded RADIUS server answering Status-Server");
+        } else if (response instanceof AccessAccept) {
+            this.acceptCount.incrementAndGet();
+        } else if (response instanceof AccessChallenge) {
+            this.challengeCount.incrementAndGet();
+        } else {
+            this.rejectCount.incrementAndGet();
+        }
+
+        response.setIdentifier(request.getIdentifier());
+        if (eap || request.findAttribute(Attr_MessageAuthenticator.TYPE) != null) {
+            MessageAuthenticator.generateResponseMessageAuthenticator(request, response, this.sharedSecret);
+        }
+        response.generateAuthenticator(request.getAuthenticator(), this.sharedSecret);
+        final ByteBuffer buffer = ByteBuffer.allocate(RadiusPacket.MAX_PACKET_LENGTH);
+        RadiusFormat.getInstance().packPacket(response, this.sharedSecret, buffer, true);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Answers PAP, CHAP and MS-CHAP requests.
+     */
+    private RadiusResponse answerPlain(final AccessRequest request) throws Exception {
+        final String username = getUsername(request);
+        final User user = username != null ? this.users.get(username) : null;
+        if (user == null) {
+            return new AccessReject();
+        }
+        final byte[] password = user.password.getBytes(StandardCharsets.UTF_8);
+
+        final boolean accepted;
+        final RadiusAttribute userPassword = request.findAttribute(Attr_UserPassword.TYPE);
+        final RadiusAttribute chapPassword = request.findAttribute(Attr_CHAPPassword.TYPE);
+        final RadiusAttribute msChapChallenge = request.findAttribute("MS-CHAP-Challenge");
+        if (userPassword != null) {
+            final byte[] decoded = RadiusUtils.decodePapPassword(userPassword.getValue().getBytes(),
+                    request.getAuthenticator(), this.sharedSecret);
+            accepted = Arrays.equals(trimPadding(decoded), password);
+        } else if (chapPassword != null) {
+            final byte[] value = chapPassword.getValue().getBytes();
+            final RadiusAttribute challenge = request.findAttribute(Attr_CHAPChallenge.TYPE);
+            final byte[] expected = CHAP.chapMD5(value[0], password,
+                    challenge != null ? challenge.getValue().getBytes() : request.getAuthenticator());
+            accepted = value.length == 17 && Arrays.equals(Arrays.copyOfRange(value, 1, 17), expected);
+        } else if (msChapChallenge != null) {
+            final byte[] challenge = msChapChallenge.getValue().getBytes();
+            final RadiusAttribute v2 = request.findAttribute("MS-CHAP2-Response");
+            final RadiusAttribute v1 = request.findAttribute("MS-CHAP-Response");
+            if (v2 != null) {
+                accepted = MSCHAP.verifyMSCHAPv2(username.getBytes(StandardCharsets.UTF_8), password,
+                        challenge, v2.getValue().getBytes());
+            } else {
+                accepted = v1 != null && Arrays.equals(MSCHAP.doMSCHAPv1(password, challenge), v1.getValue().getBytes());
+            }
+        } else {
+            accepted = false;
+        }
+        return accepted ? accept(user, null) : new AccessReject();
+    }
+
+    /**
+     * Takes an EAP conversation one step further.
+     */
+    private RadiusResponse answerEap(final AccessRequest request) throws Exception {
+        final byte[] eap = AttributeFactory.assembleAttributeList(request.getAttributes(), Attr_EAPMessage.TYPE);
+        if (eap == null || eap.length < 5 || eap[0] != EAP_RESPONSE) {
+            return eapFailure(eap != null && eap.length > 1 ? eap[1] : 0);
+        }
+        final int id = eap[1] & 0xff;
+        final int type = eap[4] & 0xff;
+
+        final RadiusAttribute state = request.findAttribute(Attr_State.TYPE);
+        final EapSession session = state != null
+                ? this.sessions.remove(RadiusUtils.byteArrayToHexString(state.getValue().getBytes())) : null;
+
+        if (type == EAP_IDENTITY) {
+            final String identity = new String(eap, 5, eap.length - 5, StandardCharsets.UTF_8);
+            return offer(new EapSession(identity), this.eapType, id);
+        }
+        if (session == null) {
+            return eapFailure(id);
+        }
+        if (type == EAP_NAK) {
+            final int wanted = eap.length > 5 ? eap[5] & 0xff : 0;
+            if (wanted == EAP_MD5 || wanted == EAP_MSCHAPV2) {
+                return offer(session, wanted, id);
+            }
+            LOGGER.debug("Embedded RADIUS server refusing EAP type {}", wanted);
+            return eapFailure(id);
+        }
+        if (type != session.type) {
+            return eapFailure(id);
+        }
+
+        final User user = this.users.get(session.identity);
+        if (user == null) {
+            return eapFailure(id);
+        }
+        final byte[] password = user.password.getBytes(StandardCharsets.UTF_8);
+
+        if (type == EAP_MD5) {
+            final int valueSize = eap.length > 5 ? eap[5] & 0xff : 0;
+            final boolean accepted = valueSize == 16 && eap.length >= 22 && Arrays.equals(
+                    Arrays.copyOfRange(eap, 6, 22), CHAP.chapMD5((byte) session.id, password, session.challenge));
+            return accepted ? accept(user, eapPacket(EAP_SUCCESS, id, -1, null)) : eapFailure(id);
+        }
+
+        // EAP-MSCHAPv2: the peer's response, then its acknowledgement of our success message
+        final int opCode = eap.length > 5 ? eap[5] & 0xff : 0;
+        if (opCode == MSCHAPV2_RESPONSE && !session.verified && eap.length >= 58) {
+            final byte[] response = new byte[50];
+            System.arraycopy(eap, 10, response, 2, 48);
+            if (!MSCHAP.verifyMSCHAPv2(session.identity.getBytes(StandardCharsets.UTF_8), password,
+                    session.challenge, response)) {
+                return eapFailure(id);
+            }
+            session.verified = true;
+            // JRadius does not check the authenticator response, so none is computed
+            final byte[] message = ("S=" + repeat('0', 40) + " M=Welcome").getBytes(StandardCharsets.US_ASCII);
+            final byte[] data = new byte[4 + message.length];
+            data[0] = MSCHAPV2_SUCCESS;
+            data[1] = (byte) session.id;
+            data[2] = (byte) (data.length >> 8);
+            data[3] = (byte) data.length;
+            System.arraycopy(message, 0, data, 4, message.length);
+            return challenge(session, EAP_MSCHAPV2, id, data);
+        }
+        if (opCode == MSCHAPV2_SUCCESS && session.verified) {
+            return accept(user, eapPacket(EAP_SUCCESS, id, -1, null));
+        }
+        return eapFailure(id);
+    }
+
+    /**
+     * Offers an EAP method to the peer with a fresh challenge.
+     */
+    private RadiusResponse offer(final EapSession session, final int type, final int lastId) {
+        session.challenge = RadiusRandom.getBytes(16);
+        final byte[] data;
+        if (type == EAP_MSCHAPV2) {
+            final byte[] name = "embedded".getBytes(StandardCharsets.US_ASCII);
+            data = new byte[5 + 16 + name.length];
+            data[0] = MSCHAPV2_CHALLENGE;
+            data[1] = (byte) (lastId + 1);
+            data[2] = (byte) (data.length >> 8);
+            data[3] = (byte) data.length;
+            data[4] = 16;
+            System.arraycopy(session.challenge, 0, data, 5, 16);
+            System.arraycopy(name, 0, data, 21, name.length);
+        } else {
+            data = new byte[17];
+            data[0] = 16;
+            System.arraycopy(session.challenge, 0, data, 1, 16);
+        }
+        return challenge(session, type, lastId, data);
+    }
+
+    /**
+     * Sends the next EAP-Request of the conversation in an Access-Challenge.
+     */
+    private RadiusResponse challenge(final EapSession session, final int type, final int lastId, final byte[] data) {
+        session.type = type;
+        session.id = (lastId + 1) & 0xff;
+        final byte[] state = RadiusRandom.getBytes(16);
+        this.sessions.put(RadiusUtils.byteArrayToHexString(state), session);
+
+        final AccessChallenge challenge = new AccessChallenge();
+        AttributeFactory.addToAttributeList(challenge.getAttributes(), Attr_EAPMessage.TYPE,
+                eapPacket(EAP_REQUEST, session.id, type, data), false);
+        challenge.addAttribute(new Attr_State(state));
+        return challenge;
+    }
+
+    /**
+     * @param eapSuccess The EAP-Success to include, or null outside EAP
+     * @return an Access-Accept carrying the user's assertion
+     */
+    private RadiusResponse accept(final User user, final byte[] eapSuccess) throws UnknownAttributeException {
+        final AccessAccept accept = new AccessAccept();
+        if (eapSuccess != null) {
+            AttributeFactory.addToAttributeList(accept.getAttributes(), Attr_EAPMessage.TYPE, eapSuccess, false);
+        }
+        final String saml = user.assertion != null ? user.assertion : this.assertion;
+        if (saml != null) {
+            final long type = AttributeFactory.getTypeByName(SAML_ASSERTION_ATTRIBUTE);
+            final byte[] assertion = saml.getBytes(StandardCharsets.UTF_8);
+            final int length = this.fragmentLength;
+            for (int offset = 0; offset < assertion.length; offset += length) {
+                accept.addAttribute(AttributeFactory.newAttribute(type,
+                        Arrays.copyOfRange(assertion, offset, Math.min(offset + length, assertion.length)), false));
+            }
+        }
+        return accept;
+    }
+
+    private RadiusResponse eapFailure(final int lastId) {
+        final AccessReject reject = new AccessReject();
+        AttributeFactory.addToAttributeList(reject.getAttributes(), Attr_EAPMessage.TYPE,
+                eapPacket(EAP_FAILURE, lastId, -1, null), false);
+        return reject;
+    }
+
+    /**
+     * @param type The EAP type, or -1 for a Success or Failure, which have none
+     */
+    private static byte[] eapPacket(final int code, final int id, final int type, final byte[] data) {
+        final int length = 4 + (type >= 0 ? 1 : 0) + (data != null ? data.length : 0);
+        final byte[] packet = new byte[length];
+        packet[0] = (byte) code;
+        packet[1] = (byte) id;
+        packet[2] = (byte) (length >> 8);
+        packet[3] = (byte) length;
+        if (type >= 0) {
+            packet[4] = (byte) type;
+            if (data != null) {
+                System.arraycopy(data, 0, packet, 5, data.length);
+            }
+        }
+        return packet;
+    }
+
+    private static String getUsername(final AccessRequest request) {
+        final RadiusAttribute username = request.findAttribute(Attr_UserName.TYPE);
+        return username != null ? new String(username.getValue().getBytes(), StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * @return the PAP password without the zero bytes padding it to a multiple of 16
+     */
+    private static byte[] trimPadding(final byte[] password) {
+        int length = password.length;
+        while (length > 0 && password[length - 1] == 0) {
+            length--;
+        }
+        return Arrays.copyOf(password, length);
+    }
+
+    private static String repeat(final char c, final int count) {
+        final char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    /**
+     * A user's password and SAML assertion.
+     */
+    private static final class User {
+
+        private final String password;
+
+        private final String assertion;
+
+        private User(final String password, final String assertion) {
+            this.password = password;
+            this.assertion = assertion;
+        }
+    }
+
+    /**
+     * An EAP conversation between Access-Challenges.
+     */
+    private static final class EapSession {
+
+        private final String identity;
+
+        /** The EAP method in use. */
+        private int type;
+
+        /** The identifier of the latest EAP-Request. */
+        private int id;
+
+        /** The challenge of the method. */
+        private byte[] challenge;
+
+        /** Whether the MSCHAPv2 response has been verified. */
+        private boolean verified;
+
+        private EapSession(final String identity) {
+            this.identity = identity;
+        }
+    }
+}